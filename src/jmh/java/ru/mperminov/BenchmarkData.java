@@ -0,0 +1,50 @@
+package ru.mperminov;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sheet-like data shared by the benchmarks. Values look like the ones in the real spreadsheet.
+ */
+final class BenchmarkData {
+
+    private static final String[] HEADERS = {
+            "Дата", "Имя", "Район", "Еда", "Одежда", "Лекарства", "Комментарий", "Волонтёр",
+            "Телефон", "Адрес", "Возраст", "Статус"
+    };
+    private static final String[] VALUES = {
+            "12.05.2025", "Иван П.", "Центральный", "2", "куртка", "нет", "просил_зайти в четверг", "Мария",
+            "+7 900 000-00-00", "ул. Ленина, 1", "54", "новый"
+    };
+
+    private BenchmarkData() {
+    }
+
+    static List<Object> headerRow(int columns) {
+        List<Object> header = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            header.add(HEADERS[i % HEADERS.length]);
+        }
+        return header;
+    }
+
+    static List<List<Object>> dataRows(int rows, int columns) {
+        List<List<Object>> data = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            List<Object> row = new ArrayList<>(columns);
+            for (int i = 0; i < columns; i++) {
+                row.add(VALUES[(i + r) % VALUES.length]);
+            }
+            data.add(row);
+        }
+        return data;
+    }
+
+    static List<String> sheetNames(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("Выдача " + (2020 + i));
+        }
+        return names;
+    }
+}
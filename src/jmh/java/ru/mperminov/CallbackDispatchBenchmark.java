@@ -0,0 +1,43 @@
+package ru.mperminov;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding callback data to an action and its arguments, as {@code processCallbackQuery} does for every button press.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallbackDispatchBenchmark {
+
+    // Mix of a typical editing session: mostly column edits, one add and one done
+    private final String[] callbacks = {
+            CallbackData.encode(CallbackAction.ADD_NEW_ROW, 0, -1, 0),
+            CallbackData.encode(CallbackAction.EDIT_COLUMN_INDEX, 0, 0, 0x5A17C0DE),
+            CallbackData.encode(CallbackAction.EDIT_COLUMN_INDEX, 0, 3, 0x5A17C0DE),
+            CallbackData.encode(CallbackAction.BACK_TO_COLUMN_SELECTION, 0, -1, 0x5A17C0DE),
+            CallbackData.encode(CallbackAction.EDIT_COLUMN_INDEX, 0, 11, 0x5A17C0DE),
+            CallbackData.encode(CallbackAction.DONE_EDITING, 0, -1, 0x5A17C0DE),
+            CallbackData.encode(CallbackAction.BACK_TO_SHEET_SELECTION),
+            "unknown_button"
+    };
+
+    @Benchmark
+    public void dispatch(Blackhole blackhole) {
+        for (String callback : callbacks) {
+            CallbackData data = CallbackData.decode(callback);
+            blackhole.consume(data);
+            if (data != null && data.getAction() == CallbackAction.EDIT_COLUMN_INDEX) {
+                blackhole.consume(data.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ru.mperminov;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyboards built on every sheet list and every column prompt, from scratch and from the {@link KeyboardCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyboardBenchmark {
+
+    @Param({"5", "30"})
+    public int buttons;
+
+    private List<String> sheetNames;
+    private List<Object> headers;
+    private SheetTemplate template;
+    private final KeyboardCache cache = new KeyboardCache();
+
+    @Setup
+    public void setUp() {
+        sheetNames = BenchmarkData.sheetNames(buttons);
+        headers = BenchmarkData.headerRow(buttons);
+        template = SheetTemplate.of("Выдача 2025", headers, List.of());
+    }
+
+    @Benchmark
+    public SendMessage sheetSelection() {
+        return HomelessGoogleSheetsBot.getSendMessage(123456789L, sheetNames);
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup columnSelection() {
+        return HomelessGoogleSheetsBot.getColumnSelectionKeyboard(0, template.getHeaderVersion(), headers);
+    }
+
+    @Benchmark
+    public ReplyKeyboardMarkup cachedSheetSelection() {
+        return cache.sheetPicker(sheetNames);
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup cachedColumnSelection() {
+        return cache.columnPrompt(0, template).getKeyboard();
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup sheetData() {
+        return HomelessGoogleSheetsBot.getSheetDataKeyboard(0, template.getHeaderVersion());
+    }
+}
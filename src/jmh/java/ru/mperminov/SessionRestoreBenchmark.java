@@ -0,0 +1,83 @@
+package ru.mperminov;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Opening the session journal at start-up, which must stay under a second, and decoding one replayed session when
+ * its chat comes back. The journal is written once with the default segment size, so the larger runs restore from
+ * a snapshot plus a partly filled segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionRestoreBenchmark {
+
+    private static final int SEGMENT_BYTES = 16 << 20; // Default of sessions.journal.segment.mb
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int COLUMNS = 12;
+
+    @Param({"10000", "100000"})
+    public int sessions;
+
+    private Path directory;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("journal-benchmark");
+        List<Object> header = BenchmarkData.headerRow(COLUMNS);
+        List<Object> templateRow = BenchmarkData.dataRows(1, COLUMNS).get(0);
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        journal.open(MAX_AGE_MILLIS);
+        for (int chat = 0; chat < sessions; chat++) {
+            UserState state = new UserState(UserState.State.AWAITING_COLUMN_TO_EDIT, BenchmarkData.sheetNames(3));
+            state.setSheetNameForEditing("Выдача 2022");
+            state.setTemplate(SheetTemplate.of("Выдача 2022", header, templateRow)); // Encoded per session all the same
+            state.setPendingEdit(chat % COLUMNS, "значение " + chat);
+            state.setDraftMessageId(chat);
+            journal.recordPut(chat, state);
+            if (chat == 0) {
+                payload = SessionJournal.encode(state);
+            }
+        }
+        journal.close(1, TimeUnit.MINUTES);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int openJournal() throws IOException, InterruptedException {
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        int restored = journal.open(MAX_AGE_MILLIS);
+        journal.close(1, TimeUnit.MINUTES);
+        return restored;
+    }
+
+    @Benchmark
+    public UserState resumeSession() {
+        return SessionJournal.decode(payload);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mperminov;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table rendering of {@code fetchSheetData}: {@link SheetTableRenderer} against the former String.format loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SheetTableRenderBenchmark {
+
+    @Param({"1", "20", "300"})
+    public int rows;
+
+    @Param({"8"})
+    public int columns;
+
+    private final SheetTableRenderer renderer = new SheetTableRenderer();
+    private List<Object> headerRow;
+    private List<List<Object>> dataRows;
+
+    @Setup
+    public void setUp() {
+        headerRow = BenchmarkData.headerRow(columns);
+        dataRows = BenchmarkData.dataRows(rows, columns);
+    }
+
+    @Benchmark
+    public List<String> renderer() {
+        return renderer.render("Расходы_2024", headerRow, dataRows);
+    }
+
+    /**
+     * The rendering as it was before SheetTableRenderer, kept as the reference point.
+     */
+    @Benchmark
+    public String stringFormatBaseline() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Последние ").append(dataRows.size()).append(" строк из *").append("Расходы_2024").append("*:\n\n");
+
+        List<Integer> colWidths = new ArrayList<>();
+        for (Object cell : headerRow) {
+            colWidths.add(String.valueOf(cell).length());
+        }
+        for (List<Object> row : dataRows) {
+            for (int i = 0; i < row.size(); i++) {
+                int cellLength = String.valueOf(row.get(i)).length();
+                if (i < colWidths.size()) {
+                    if (cellLength > colWidths.get(i)) {
+                        colWidths.set(i, cellLength);
+                    }
+                } else {
+                    colWidths.add(cellLength);
+                }
+            }
+        }
+        for (int i = 0; i < headerRow.size(); i++) {
+            String headerCell = String.valueOf(headerRow.get(i));
+            sb.append(String.format("`%-" + colWidths.get(i) + "s`", headerCell)).append(" | ");
+        }
+        sb.setLength(sb.length() - 3);
+        sb.append("\n");
+        for (int i = 0; i < headerRow.size(); i++) {
+            sb.append(String.format("%-" + (colWidths.get(i) + 2) + "s", "").replace(' ', '-')).append("|");
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append("\n");
+        for (List<Object> row : dataRows) {
+            for (int i = 0; i < row.size(); i++) {
+                String cell = String.valueOf(row.get(i));
+                sb.append(String.format("%-" + colWidths.get(i) + "s", cell)).append(" | ");
+            }
+            sb.setLength(sb.length() - 3);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
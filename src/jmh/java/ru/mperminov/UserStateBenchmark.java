@@ -0,0 +1,63 @@
+package ru.mperminov;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session updates done after every sheet view: the shared {@link SheetTemplate} stored in {@link UserState} and
+ * the pending edits of a draft.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UserStateBenchmark {
+
+    @Param({"8", "30"})
+    public int columns;
+
+    private final UserState userState = new UserState(UserState.State.IDLE, List.of());
+    private List<Object> headerRow;
+    private List<List<Object>> lastRows;
+
+    @Setup
+    public void setUp() {
+        headerRow = BenchmarkData.headerRow(columns);
+        lastRows = BenchmarkData.dataRows(1, columns);
+    }
+
+    @Benchmark
+    public UserState setTemplateRow() {
+        userState.setTemplate(HomelessGoogleSheetsBot.getSheetTemplate("Выдача 2025", headerRow, lastRows));
+        return userState;
+    }
+
+    @Benchmark
+    public UserState materializeHeaderAndTemplate() {
+        userState.setTemplate(HomelessGoogleSheetsBot.getSheetTemplate("Выдача 2025", headerRow, lastRows));
+        return userState;
+    }
+
+    @Benchmark
+    public UserState pendingEdits() {
+        userState.clearPendingEdits();
+        for (int i = columns - 1; i >= 0; i -= 3) {
+            userState.setPendingEdit(i, "значение");
+        }
+        return userState;
+    }
+
+    @Benchmark
+    public UserState materializeEmptySheet() {
+        userState.setTemplate(HomelessGoogleSheetsBot.getSheetTemplate("Выдача 2025", headerRow, List.of()));
+        return userState;
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mperminov;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports synthetic sheets of growing size with {@link SheetCsvExporter} and prints the throughput and the peak heap
+ * of every run. Rows are made up per window as the Sheets API would return them, nothing holds the whole sheet, so
+ * the peak heap must stay flat while the sheet grows; the task runs with a small heap to prove it.
+ * <p>
+ * Run with {@code ./gradlew exportBenchmark --args="--rows=1000000 --columns=10 --chunk=5000"}.
+ */
+public class CsvExportBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rows = 1_000_000;
+        int columns = 10;
+        int chunkRows = 5000;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            switch (option[0]) {
+                case "--rows":
+                    rows = Integer.parseInt(option[1]);
+                    break;
+                case "--columns":
+                    columns = Integer.parseInt(option[1]);
+                    break;
+                case "--chunk":
+                    chunkRows = Integer.parseInt(option[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf(Locale.ROOT, "heap limit %d MB, %d columns, %d rows per read%n",
+                memory.getHeapMemoryUsage().getMax() >> 20, columns, chunkRows);
+        System.out.printf(Locale.ROOT, "%10s %10s %10s %12s %10s %14s%n",
+                "rows", "MB", "ms", "rows/s", "MB/s", "peak heap MB");
+        exportOnce(rows / 100, columns, chunkRows, memory); // Warm-up, not printed
+        for (int size = Math.max(1, rows / 100); size <= rows; size *= 10) {
+            print(size, exportOnce(size, columns, chunkRows, memory));
+        }
+    }
+
+    private static long[] exportOnce(int rows, int columns, int chunkRows, MemoryMXBean memory)
+            throws IOException, InterruptedException {
+        SyntheticSheet sheet = new SyntheticSheet(rows + 1, columns);
+        SheetCsvExporter exporter = new SheetCsvExporter(sheet, chunkRows, Long.MAX_VALUE);
+        List<Object> header = new ArrayList<>();
+        for (int i = 0; i < columns; i++) {
+            header.add(i == 0 ? "Дата" : "Столбец " + (i + 1));
+        }
+        // Metadata read before the last tenth of the rows was appended, the export must still find them
+        SheetMetadataCache.SheetInfo sheetInfo = new SheetMetadataCache.SheetInfo("Лист 1", 0, rows + 1 - rows / 10,
+                columns, header);
+        CountingOutputStream out = new CountingOutputStream();
+
+        System.gc();
+        AtomicLong peak = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (running.get()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "heap-sampler");
+        sampler.start();
+        long started = System.nanoTime();
+        long exported = exporter.export(sheetInfo, out);
+        long elapsed = System.nanoTime() - started;
+        running.set(false);
+        sampler.join();
+        if (exported != rows) {
+            throw new IllegalStateException("Exported " + exported + " of " + rows + " rows");
+        }
+        return new long[] {rows, out.count, elapsed, peak.get()};
+    }
+
+    private static void print(int rows, long[] run) {
+        double seconds = run[2] / 1e9;
+        System.out.printf(Locale.ROOT, "%10d %10.1f %10d %12.0f %10.1f %14.1f%n",
+                rows, run[1] / 1048576.0, run[2] / 1_000_000, rows / seconds, run[1] / 1048576.0 / seconds,
+                run[3] / 1048576.0);
+    }
+
+    /**
+     * Answers window reads with rows made up on the spot, like the fake transport's but never stored.
+     */
+    private static final class SyntheticSheet extends SheetTailReader {
+        private final int lastRow;
+        private final int columns;
+
+        SyntheticSheet(int lastRow, int columns) {
+            super(null, "export-benchmark", null, 1, null);
+            this.lastRow = lastRow;
+            this.columns = columns;
+        }
+
+        @Override
+        TailWindow readWindow(String sheetName, int firstRow, int windowEnd) {
+            int end = Math.min(windowEnd, lastRow);
+            List<List<Object>> rows = new ArrayList<>(Math.max(0, end - firstRow + 1));
+            for (int r = firstRow; r <= end; r++) {
+                List<Object> row = new ArrayList<>(columns);
+                row.add(String.format(Locale.ROOT, "%02d.05.2025", r % 28 + 1));
+                for (int i = 1; i < columns; i++) {
+                    row.add(i % 4 == 0 ? "Иванов; \"кв. " + r + "\"" : "значение " + r + "-" + i);
+                }
+                rows.add(row);
+            }
+            return new TailWindow(List.of(), rows, firstRow);
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
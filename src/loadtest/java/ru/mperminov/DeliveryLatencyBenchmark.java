@@ -0,0 +1,43 @@
+package ru.mperminov;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the same load twice, once with updates delivered by long polling and once by webhook, and compares the time
+ * from an update leaving Telegram to the bot's reply per step.
+ * <p>
+ * Run with {@code ./gradlew deliveryBenchmark --args="--chats=200 --delivery-ms=20"}, the options are those of
+ * {@link LoadTestDriver}.
+ */
+public class DeliveryLatencyBenchmark {
+
+    private static final String[] DELIVERIES = {"polling", "webhook"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<LoadTestDriver> drivers = new ArrayList<>();
+        for (String delivery : DELIVERIES) {
+            String[] runArgs = Arrays.copyOf(args, args.length + 1);
+            runArgs[args.length] = "--delivery=" + delivery;
+            LoadTestDriver driver = new LoadTestDriver(LoadTestDriver.Options.parse(runArgs));
+            driver.run();
+            drivers.add(driver);
+            System.out.println();
+        }
+        System.out.printf(Locale.ROOT, "%-14s %14s %14s %14s %14s%n",
+                "step", "polling p50", "webhook p50", "polling p99", "webhook p99");
+        for (LoadTestDriver.Step step : LoadTestDriver.Step.values()) {
+            long[] polling = drivers.get(0).latencies(step);
+            long[] webhook = drivers.get(1).latencies(step);
+            System.out.printf(Locale.ROOT, "%-14s %14.1f %14.1f %14.1f %14.1f%n",
+                    step.name().toLowerCase(Locale.ROOT),
+                    LoadTestDriver.percentile(polling, 0.50) / 1e6,
+                    LoadTestDriver.percentile(webhook, 0.50) / 1e6,
+                    LoadTestDriver.percentile(polling, 0.99) / 1e6,
+                    LoadTestDriver.percentile(webhook, 0.99) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package ru.mperminov;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.sheets.v4.model.AppendValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
+import com.google.api.services.sheets.v4.model.GridProperties;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.SheetProperties;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.SpreadsheetProperties;
+import com.google.api.services.sheets.v4.model.UpdateValuesResponse;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process stand-in for the Sheets v4 REST API. It answers the calls the bot makes (spreadsheet metadata,
+ * {@code values().get}, {@code values().batchGet} and {@code values().append}) from in-memory sheets and
+ * sleeps a configurable time per call to imitate the network. With a quota set, reads and writes beyond it within
+ * the current minute are answered with 429 like the real API does.
+ * <p>
+ * Like the real API, responses carry more than the bot reads (spreadsheet properties, formatting rules, ranges)
+ * unless a {@code fields} mask is given, and are gzip-compressed only for clients that accept gzip and send
+ * "gzip" in the user agent. {@link #getResponseBytes()} counts bytes as sent over the wire.
+ */
+class FakeSheetsTransport extends HttpTransport {
+
+    private static final JsonFactory JSON = GsonFactory.getDefaultInstance();
+    private static final String SPREADSHEETS_PATH = "/v4/spreadsheets/";
+    private static final int GRID_SLACK_ROWS = 100; // Real sheets have empty rows below the data
+    private static final byte[] RATE_LIMIT_ERROR = ("{\"error\": {\"code\": 429, \"status\": \"RESOURCE_EXHAUSTED\", "
+            + "\"message\": \"Quota exceeded for the load test\"}}").getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, List<List<Object>>> sheets = new LinkedHashMap<>(); // Guarded by itself
+    private final long readLatencyMillis;
+    private final long writeLatencyMillis;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong uncompressedResponseBytes = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final int quotaPerMinute; // Reads and writes each, 0 for no quota
+    private long quotaMinute; // Guarded by this
+    private int readsThisMinute; // Guarded by this
+    private int writesThisMinute; // Guarded by this
+
+    FakeSheetsTransport(int sheetCount, int rowsPerSheet, int columns, long readLatencyMillis, long writeLatencyMillis,
+                        int quotaPerMinute) {
+        this.quotaPerMinute = quotaPerMinute;
+        this.readLatencyMillis = readLatencyMillis;
+        this.writeLatencyMillis = writeLatencyMillis;
+        for (int s = 0; s < sheetCount; s++) {
+            List<List<Object>> rows = new ArrayList<>(rowsPerSheet + 1);
+            rows.add(header(columns));
+            for (int r = 0; r < rowsPerSheet; r++) {
+                rows.add(row(r, columns));
+            }
+            sheets.put("Лист " + (s + 1), rows);
+        }
+    }
+
+    List<String> getSheetNames() {
+        synchronized (sheets) {
+            return new ArrayList<>(sheets.keySet());
+        }
+    }
+
+    long getReadCount() {
+        return reads.get();
+    }
+
+    long getWriteCount() {
+        return writes.get();
+    }
+
+    long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    long getUncompressedResponseBytes() {
+        return uncompressedResponseBytes.get();
+    }
+
+    long getThrottledCount() {
+        return throttled.get();
+    }
+
+    private synchronized boolean withinQuota(boolean write) {
+        if (quotaPerMinute <= 0) {
+            return true;
+        }
+        long minute = TimeUnit.NANOSECONDS.toMinutes(System.nanoTime());
+        if (minute != quotaMinute) {
+            quotaMinute = minute;
+            readsThisMinute = 0;
+            writesThisMinute = 0;
+        }
+        int used = write ? ++writesThisMinute : ++readsThisMinute;
+        return used <= quotaPerMinute;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new FakeRequest(method, url);
+    }
+
+    private String handle(String method, String url, byte[] body) throws IOException {
+        URI uri = URI.create(url);
+        String path = uri.getRawPath();
+        int idStart = path.indexOf(SPREADSHEETS_PATH) + SPREADSHEETS_PATH.length();
+        int idEnd = path.indexOf('/', idStart);
+        String rest = idEnd < 0 ? "" : path.substring(idEnd);
+        Map<String, List<String>> query = parseQuery(uri.getRawQuery());
+        String json = response(method, path.substring(idStart, idEnd < 0 ? path.length() : idEnd), rest, query, body);
+        List<String> fields = query.get("fields");
+        if (fields == null || fields.isEmpty()) {
+            return json;
+        }
+        return JSON.toString(FieldMask.parse(fields.get(0)).apply(JSON.fromString(json, GenericJson.class)));
+    }
+
+    private String response(String method, String spreadsheetId, String rest, Map<String, List<String>> query,
+                            byte[] body) throws IOException {
+        List<String> majorDimension = query.get("majorDimension");
+        if (majorDimension != null && !majorDimension.contains("ROWS")) {
+            throw new IOException("The fake only supports majorDimension=ROWS");
+        }
+        if (rest.isEmpty()) {
+            reads.incrementAndGet();
+            return JSON.toString(metadata(spreadsheetId));
+        }
+        if (rest.equals("/values:batchGet")) {
+            reads.incrementAndGet();
+            List<ValueRange> ranges = new ArrayList<>();
+            for (String range : query.getOrDefault("ranges", List.of())) {
+                ranges.add(read(range));
+            }
+            return JSON.toString(new BatchGetValuesResponse().setValueRanges(ranges));
+        }
+        if (rest.startsWith("/values/") && rest.endsWith(":append") && "POST".equals(method)) {
+            writes.incrementAndGet();
+            String range = decode(rest.substring("/values/".length(), rest.length() - ":append".length()));
+            ValueRange content = JSON.fromInputStream(new ByteArrayInputStream(body), ValueRange.class);
+            return JSON.toString(append(spreadsheetId, range, content.getValues()));
+        }
+        if (rest.startsWith("/values/")) {
+            reads.incrementAndGet();
+            return JSON.toString(read(decode(rest.substring("/values/".length()))));
+        }
+        throw new IOException("Unsupported fake Sheets call: " + method + " " + rest);
+    }
+
+    private Spreadsheet metadata(String spreadsheetId) {
+        List<Sheet> result = new ArrayList<>();
+        synchronized (sheets) {
+            int sheetId = 0;
+            for (Map.Entry<String, List<List<Object>>> entry : sheets.entrySet()) {
+                List<List<Object>> rows = entry.getValue();
+                int columns = rows.isEmpty() ? 0 : rows.get(0).size();
+                GridProperties grid = new GridProperties()
+                        .setRowCount(rows.size() + GRID_SLACK_ROWS)
+                        .setColumnCount(columns)
+                        .setFrozenRowCount(1);
+                Sheet sheet = new Sheet().setProperties(new SheetProperties()
+                        .setTitle(entry.getKey())
+                        .setSheetId(sheetId)
+                        .setIndex(sheetId)
+                        .setSheetType("GRID")
+                        .setGridProperties(grid));
+                sheet.set("conditionalFormats", List.of(conditionalFormat(sheetId, rows.size(), columns)));
+                sheet.set("protectedRanges", List.of(Map.of(
+                        "protectedRangeId", sheetId + 1,
+                        "range", gridRange(sheetId, 0, 1, 0, columns),
+                        "description", "Заголовок",
+                        "warningOnly", true)));
+                result.add(sheet);
+                sheetId++;
+            }
+        }
+        SpreadsheetProperties properties = new SpreadsheetProperties().setTitle("Учёт помощи");
+        properties.set("locale", "ru_RU");
+        properties.set("timeZone", "Europe/Moscow");
+        properties.set("autoRecalc", "ON_CHANGE");
+        Spreadsheet spreadsheet = new Spreadsheet()
+                .setSpreadsheetId(spreadsheetId)
+                .setProperties(properties)
+                .setSheets(result);
+        spreadsheet.set("spreadsheetUrl", "https://docs.google.com/spreadsheets/d/" + spreadsheetId + "/edit");
+        return spreadsheet;
+    }
+
+    private static Map<String, Object> conditionalFormat(int sheetId, int rows, int columns) {
+        Map<String, Object> color = Map.of("red", 0.96, "green", 0.8, "blue", 0.8);
+        return Map.of(
+                "ranges", List.of(gridRange(sheetId, 1, rows, 0, columns)),
+                "booleanRule", Map.of(
+                        "condition", Map.of("type", "BLANK"),
+                        "format", Map.of("backgroundColor", color, "backgroundColorStyle", Map.of("rgbColor", color))));
+    }
+
+    private static Map<String, Object> gridRange(int sheetId, int startRow, int endRow, int startColumn, int endColumn) {
+        return Map.of(
+                "sheetId", sheetId,
+                "startRowIndex", startRow,
+                "endRowIndex", endRow,
+                "startColumnIndex", startColumn,
+                "endColumnIndex", endColumn);
+    }
+
+    private ValueRange read(String a1Range) {
+        A1Range range = A1Range.parse(a1Range);
+        List<List<Object>> values = new ArrayList<>();
+        synchronized (sheets) {
+            List<List<Object>> rows = sheets.getOrDefault(range.sheetName, List.of());
+            int last = Math.min(rows.size(), range.endRow);
+            for (int r = range.startRow; r <= last; r++) {
+                List<Object> row = rows.get(r - 1);
+                int endColumn = Math.min(row.size(), range.endColumn);
+                values.add(new ArrayList<>(row.subList(Math.min(range.startColumn - 1, endColumn), endColumn)));
+            }
+        }
+        ValueRange valueRange = new ValueRange().setRange(a1Range).setMajorDimension("ROWS");
+        return values.isEmpty() ? valueRange : valueRange.setValues(values); // The API omits values of an empty range
+    }
+
+    private AppendValuesResponse append(String spreadsheetId, String a1Range, List<List<Object>> values)
+            throws IOException {
+        A1Range range = A1Range.parse(a1Range);
+        int firstRow;
+        int columns = 0;
+        synchronized (sheets) {
+            List<List<Object>> rows = sheets.get(range.sheetName);
+            if (rows == null) {
+                throw new IOException("Unable to parse range: " + a1Range);
+            }
+            firstRow = rows.size() + 1;
+            for (List<Object> row : values) {
+                rows.add(new ArrayList<>(row));
+                columns = Math.max(columns, row.size());
+            }
+        }
+        int lastRow = firstRow + values.size() - 1;
+        String updatedRange = SheetTailReader.quoteSheetName(range.sheetName) + "!A" + firstRow + ":"
+                + SheetTailReader.columnLetters(Math.max(columns, 1)) + lastRow;
+        return new AppendValuesResponse()
+                .setSpreadsheetId(spreadsheetId)
+                .setTableRange(SheetTailReader.quoteSheetName(range.sheetName) + "!A1:"
+                        + SheetTailReader.columnLetters(Math.max(columns, 1)) + (firstRow - 1))
+                .setUpdates(new UpdateValuesResponse()
+                        .setUpdatedRange(updatedRange)
+                        .setUpdatedRows(values.size())
+                        .setUpdatedColumns(columns)
+                        .setUpdatedCells(values.size() * columns));
+    }
+
+    private static List<Object> header(int columns) {
+        List<Object> header = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            header.add(i == 0 ? "Дата" : "Столбец " + (i + 1));
+        }
+        return header;
+    }
+
+    private static List<Object> row(int index, int columns) {
+        List<Object> row = new ArrayList<>(columns);
+        row.add(String.format("%02d.05.2025", index % 28 + 1));
+        for (int i = 1; i < columns; i++) {
+            row.add("значение " + index + "-" + i);
+        }
+        return row;
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> query = new LinkedHashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            query.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return query;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A1 range like {@code 'Sheet'!A5:H}, {@code 'Sheet'!A1:H1} or just {@code 'Sheet'}. Rows and columns are 1-based.
+     */
+    static final class A1Range {
+        final String sheetName;
+        final int startRow;
+        final int endRow;
+        final int startColumn;
+        final int endColumn;
+
+        private A1Range(String sheetName, int startRow, int endRow, int startColumn, int endColumn) {
+            this.sheetName = sheetName;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.startColumn = startColumn;
+            this.endColumn = endColumn;
+        }
+
+        static A1Range parse(String a1Range) {
+            String sheetName;
+            int i;
+            if (a1Range.startsWith("'")) {
+                StringBuilder name = new StringBuilder();
+                i = 1;
+                while (i < a1Range.length()) {
+                    char c = a1Range.charAt(i);
+                    if (c == '\'' && i + 1 < a1Range.length() && a1Range.charAt(i + 1) == '\'') {
+                        name.append('\'');
+                        i += 2;
+                    } else if (c == '\'') {
+                        i++;
+                        break;
+                    } else {
+                        name.append(c);
+                        i++;
+                    }
+                }
+                sheetName = name.toString();
+            } else {
+                i = a1Range.indexOf('!');
+                i = i < 0 ? a1Range.length() : i;
+                sheetName = a1Range.substring(0, i);
+            }
+            if (i >= a1Range.length() || a1Range.charAt(i) != '!') {
+                return new A1Range(sheetName, 1, Integer.MAX_VALUE, 1, Integer.MAX_VALUE);
+            }
+            String[] corners = a1Range.substring(i + 1).split(":");
+            int[] start = cell(corners[0], 1, 1);
+            int[] end = corners.length > 1 ? cell(corners[1], Integer.MAX_VALUE, Integer.MAX_VALUE) : start;
+            return new A1Range(sheetName, start[1], end[1], start[0], end[0]);
+        }
+
+        /**
+         * Returns {column, row} of a cell reference, filling in the defaults for a missing part.
+         */
+        private static int[] cell(String reference, int defaultColumn, int defaultRow) {
+            int column = 0;
+            int i = 0;
+            while (i < reference.length() && Character.isLetter(reference.charAt(i))) {
+                column = column * 26 + (Character.toUpperCase(reference.charAt(i)) - 'A' + 1);
+                i++;
+            }
+            int row = i < reference.length() ? Integer.parseInt(reference.substring(i)) : defaultRow;
+            return new int[] {column == 0 ? defaultColumn : column, row};
+        }
+    }
+
+    /**
+     * Partial response mask like {@code sheets.properties(title,gridProperties(rowCount))}: only the named fields
+     * of the response are kept, a field without a sub-mask is kept whole.
+     */
+    static final class FieldMask {
+        private final Map<String, FieldMask> children = new LinkedHashMap<>();
+
+        static FieldMask parse(String fields) {
+            FieldMask root = new FieldMask();
+            root.parseList(fields, 0);
+            return root;
+        }
+
+        /**
+         * Parses comma separated paths up to the closing parenthesis of this level, returns the index after it.
+         */
+        private int parseList(String fields, int i) {
+            while (i < fields.length()) {
+                int start = i;
+                while (i < fields.length() && ",()".indexOf(fields.charAt(i)) < 0) {
+                    i++;
+                }
+                FieldMask node = this;
+                for (String name : fields.substring(start, i).trim().split("\\.")) {
+                    node = node.children.computeIfAbsent(name, key -> new FieldMask());
+                }
+                if (i < fields.length() && fields.charAt(i) == '(') {
+                    i = node.parseList(fields, i + 1);
+                }
+                if (i < fields.length() && fields.charAt(i) == ')') {
+                    return i + 1;
+                }
+                if (i < fields.length() && fields.charAt(i) == ',') {
+                    i++;
+                }
+            }
+            return i;
+        }
+
+        Object apply(Object value) {
+            if (children.isEmpty()) {
+                return value;
+            }
+            if (value instanceof List) {
+                List<Object> masked = new ArrayList<>();
+                for (Object element : (List<?>) value) {
+                    masked.add(apply(element));
+                }
+                return masked;
+            }
+            if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                Map<String, Object> masked = new LinkedHashMap<>();
+                for (Map.Entry<String, FieldMask> child : children.entrySet()) {
+                    if (map.containsKey(child.getKey())) {
+                        masked.put(child.getKey(), child.getValue().apply(map.get(child.getKey())));
+                    }
+                }
+                return masked;
+            }
+            return value;
+        }
+    }
+
+    private final class FakeRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final String url;
+        private boolean acceptsGzip;
+        private boolean gzipUserAgent;
+
+        private FakeRequest(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Accept-Encoding".equalsIgnoreCase(name)) {
+                acceptsGzip = value.contains("gzip");
+            } else if ("User-Agent".equalsIgnoreCase(name)) {
+                gzipUserAgent = value.contains("gzip"); // Google only compresses for these
+            }
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            byte[] body = new byte[0];
+            if (getStreamingContent() != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                getStreamingContent().writeTo(out);
+                body = out.toByteArray();
+                if ("gzip".equals(getContentEncoding())) {
+                    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                        body = in.readAllBytes();
+                    }
+                }
+            }
+            sleep("GET".equals(method) ? readLatencyMillis : writeLatencyMillis);
+            if (!withinQuota(!"GET".equals(method))) {
+                throttled.incrementAndGet();
+                return new FakeResponse(429, "Too Many Requests", RATE_LIMIT_ERROR, null);
+            }
+            byte[] json = handle(method, url, body).getBytes(StandardCharsets.UTF_8);
+            uncompressedResponseBytes.addAndGet(json.length);
+            if (acceptsGzip && gzipUserAgent) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                    out.write(json);
+                }
+                responseBytes.addAndGet(compressed.size());
+                return new FakeResponse(200, "OK", compressed.toByteArray(), "gzip");
+            }
+            responseBytes.addAndGet(json.length);
+            return new FakeResponse(200, "OK", json, null);
+        }
+    }
+
+    private static final class FakeResponse extends LowLevelHttpResponse {
+        private final int statusCode;
+        private final String reasonPhrase;
+        private final byte[] json;
+        private final String contentEncoding;
+
+        private FakeResponse(int statusCode, String reasonPhrase, byte[] json, String contentEncoding) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.json = json;
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(json);
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        @Override
+        public long getContentLength() {
+            return json.length;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json; charset=UTF-8";
+        }
+
+        @Override
+        public String getStatusLine() {
+            return "HTTP/1.1 " + statusCode + " " + reasonPhrase;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return 0;
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return null;
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return null;
+        }
+    }
+}
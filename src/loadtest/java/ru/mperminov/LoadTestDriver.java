@@ -0,0 +1,507 @@
+package ru.mperminov;
+
+import com.google.api.services.sheets.v4.Sheets;
+
+import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays synthetic conversations into {@link HomelessGoogleSheetsBot#consume(List)} with the Telegram and Sheets
+ * clients replaced by local stand-ins, and reports latency and throughput per step.
+ * <p>
+ * Each conversation is /sheets, sheet selection, add_new_row, a few column edits and done_editing. A step is timed
+ * from the update until the bot's answer reaches the fake Telegram client, for done_editing until the row is stored.
+ * <p>
+ * Run with {@code ./gradlew loadTest --args="--chats=500 --rate=20"}. Options prefixed with {@code --bot.} are passed
+ * to the bot as properties, e.g. {@code --bot.sheets.append.linger.ms=200}. {@code --delivery=polling} or
+ * {@code --delivery=webhook} routes the updates through simulated long polling or a local webhook server
+ * instead of calling the bot directly.
+ */
+public class LoadTestDriver {
+
+    enum Step {
+        SHEETS,
+        SELECT_SHEET,
+        ADD_ROW,
+        EDIT_COLUMN,
+        ENTER_VALUE,
+        DONE
+    }
+
+    private static final long FIRST_CHAT_ID = 100_000L;
+
+    private final Options options;
+    private final FakeSheetsTransport sheetsTransport;
+    private final RecordingTelegramClient telegramClient;
+    private final HomelessGoogleSheetsBot bot;
+    private final UpdateFeed updateFeed;
+    private final List<String> sheetNames;
+    private final Map<Long, Conversation> conversations = new ConcurrentHashMap<>();
+    private final Map<Step, LatencyStats> stats = new EnumMap<>(Step.class);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "load-driver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CountDownLatch finished;
+    private final AtomicInteger completedConversations = new AtomicInteger();
+    private final AtomicInteger failedConversations = new AtomicInteger();
+
+    LoadTestDriver(Options options) throws IOException {
+        this.options = options;
+        this.sheetsTransport = new FakeSheetsTransport(options.sheets, options.rows, options.columns,
+                options.sheetsReadLatencyMillis, options.sheetsWriteLatencyMillis, options.sheetsQuotaPerMinute);
+        this.sheetNames = sheetsTransport.getSheetNames();
+        this.telegramClient = new RecordingTelegramClient(options.telegramLatencyMillis, this::onBotCall);
+        Sheets sheets = SheetsRequests.newService(sheetsTransport, null);
+        this.bot = new HomelessGoogleSheetsBot(options.botProperties, telegramClient, sheets);
+        this.updateFeed = createUpdateFeed();
+        this.finished = new CountDownLatch(options.chats);
+        for (Step step : Step.values()) {
+            stats.put(step, new LatencyStats());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = Options.parse(args);
+        LoadTestDriver driver = new LoadTestDriver(options);
+        driver.run();
+    }
+
+    private UpdateFeed createUpdateFeed() throws IOException {
+        switch (options.delivery) {
+            case "direct":
+                return UpdateFeed.direct(bot);
+            case "polling":
+                return new PollingUpdateFeed(bot, options.deliveryLatencyMillis);
+            case "webhook":
+                return new WebhookUpdateFeed(bot, options.deliveryLatencyMillis);
+            default:
+                throw new IllegalArgumentException("Unknown delivery " + options.delivery);
+        }
+    }
+
+    void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "Load test: %d conversations at %.1f/s, %d edits each, think time %d ms, %s delivery%n",
+                options.chats, options.rate, options.edits, options.thinkMillis, options.delivery);
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        long started = System.nanoTime();
+        for (int i = 0; i < options.chats; i++) {
+            long chatId = FIRST_CHAT_ID + i;
+            String sheetName = sheetNames.get(i % sheetNames.size());
+            scheduler.schedule(() -> start(chatId, sheetName), i * periodNanos, TimeUnit.NANOSECONDS);
+        }
+        long expectedNanos = options.chats * periodNanos + TimeUnit.SECONDS.toNanos(options.timeoutSeconds) * 2;
+        if (!finished.await(expectedNanos, TimeUnit.NANOSECONDS)) {
+            System.out.printf("Gave up waiting, %d conversations still running%n", finished.getCount());
+        }
+        long elapsed = System.nanoTime() - started;
+        report(elapsed);
+        updateFeed.close();
+        bot.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    private void start(long chatId, String sheetName) {
+        Conversation conversation = new Conversation(chatId, sheetName, options.edits);
+        conversations.put(chatId, conversation);
+        submit(conversation, Step.SHEETS);
+    }
+
+    private void submit(Conversation conversation, Step step) {
+        Update update;
+        int token;
+        synchronized (conversation) {
+            conversation.step = step;
+            conversation.stepStarted = System.nanoTime();
+            token = ++conversation.stepToken;
+            update = updateFor(conversation, step);
+        }
+        updateFeed.deliver(update);
+        scheduler.schedule(() -> {
+            synchronized (conversation) {
+                if (conversation.stepToken != token || conversation.step == null) {
+                    return;
+                }
+                stats.get(step).recordError(); // Timed out
+                finish(conversation, false);
+            }
+        }, options.timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    private Update updateFor(Conversation conversation, Step step) {
+        switch (step) {
+            case SHEETS:
+                return textUpdate(conversation, "/sheets");
+            case SELECT_SHEET:
+                return textUpdate(conversation, conversation.sheetName);
+            case ADD_ROW:
+                return callbackUpdate(conversation, conversation.button(CallbackAction.ADD_NEW_ROW, -1));
+            case EDIT_COLUMN:
+                int column = conversation.editsLeft % options.columns;
+                return callbackUpdate(conversation, conversation.button(CallbackAction.EDIT_COLUMN_INDEX, column));
+            case ENTER_VALUE:
+                return textUpdate(conversation, "нагрузка " + conversation.chatId + "-" + conversation.editsLeft);
+            case DONE:
+                return callbackUpdate(conversation, conversation.button(CallbackAction.DONE_EDITING, -1));
+            default:
+                throw new IllegalStateException("Unknown step " + step);
+        }
+    }
+
+    /**
+     * Called by the fake Telegram client for every call the bot makes.
+     */
+    private void onBotCall(long chatId, BotApiMethod<?> method, int messageId) {
+        Conversation conversation = conversations.get(chatId);
+        if (conversation == null) {
+            return;
+        }
+        synchronized (conversation) {
+            InlineKeyboardMarkup keyboard = inlineKeyboardOf(method);
+            if (keyboard != null) {
+                conversation.keyboard = keyboard; // Buttons carry ids and versions, the user presses what the bot sent
+            }
+            Step step = conversation.step;
+            if (step == null) {
+                return;
+            }
+            String text = textOf(method);
+            boolean failed = text != null && text.startsWith("❌");
+            if (!failed && !completes(step, method, text)) {
+                return; // Some other message of the same step, e.g. the "saving" note before the result
+            }
+            long latency = System.nanoTime() - conversation.stepStarted;
+            if (method instanceof SendMessage && ((SendMessage) method).getReplyMarkup() instanceof InlineKeyboardMarkup) {
+                conversation.botMessageId = messageId; // The user presses the buttons of this message next
+            }
+            if (failed) {
+                stats.get(step).recordError();
+                finish(conversation, false);
+                return;
+            }
+            stats.get(step).record(latency);
+            Step next = conversation.next(step);
+            conversation.step = null;
+            if (next == null) {
+                finish(conversation, true);
+            } else {
+                scheduler.schedule(() -> submit(conversation, next), options.thinkMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static boolean completes(Step step, BotApiMethod<?> method, String text) {
+        switch (step) {
+            case SHEETS:
+                return method instanceof SendMessage;
+            case SELECT_SHEET:
+                // Long tables come in several messages, the buttons are on the last one
+                return method instanceof SendMessage
+                        && ((SendMessage) method).getReplyMarkup() instanceof InlineKeyboardMarkup;
+            case ENTER_VALUE:
+                // The draft message is edited in place with the column keyboard again
+                return method instanceof EditMessageText
+                        && ((EditMessageText) method).getReplyMarkup() instanceof InlineKeyboardMarkup;
+            case ADD_ROW:
+            case EDIT_COLUMN:
+                return method instanceof EditMessageText;
+            case DONE:
+                return method instanceof EditMessageText && text != null && text.startsWith("✅");
+            default:
+                return false;
+        }
+    }
+
+    private void finish(Conversation conversation, boolean completed) {
+        conversation.step = null;
+        conversation.stepToken++;
+        conversations.remove(conversation.chatId);
+        (completed ? completedConversations : failedConversations).incrementAndGet();
+        finished.countDown();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-14s %8s %7s %9s %9s %9s %9s%n",
+                "step", "count", "errors", "p50 ms", "p99 ms", "max ms", "per sec");
+        long total = 0;
+        for (Step step : Step.values()) {
+            LatencyStats stepStats = stats.get(step);
+            long[] sorted = stepStats.sorted();
+            total += sorted.length;
+            System.out.printf(Locale.ROOT, "%-14s %8d %7d %9.1f %9.1f %9.1f %9.1f%n",
+                    step.name().toLowerCase(Locale.ROOT),
+                    sorted.length,
+                    stepStats.errors(),
+                    percentile(sorted, 0.50) / 1e6,
+                    percentile(sorted, 0.99) / 1e6,
+                    (sorted.length == 0 ? 0 : sorted[sorted.length - 1]) / 1e6,
+                    sorted.length / seconds);
+        }
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Conversations: %d completed, %d failed in %.1f s (%.1f steps/s)%n",
+                completedConversations.get(),
+                failedConversations.get(),
+                seconds,
+                total / seconds);
+        System.out.printf(Locale.ROOT, "Sheets calls: %d reads, %d writes, %d throttled, %d KB of responses. Telegram calls: %d%n",
+                sheetsTransport.getReadCount(),
+                sheetsTransport.getWriteCount(),
+                sheetsTransport.getThrottledCount(),
+                sheetsTransport.getResponseBytes() / 1024,
+                telegramClient.getCallCount());
+    }
+
+    /**
+     * Sorted latencies of the step in nanoseconds, for comparing runs.
+     */
+    long[] latencies(Step step) {
+        return stats.get(step).sorted();
+    }
+
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String textOf(BotApiMethod<?> method) {
+        if (method instanceof SendMessage) {
+            return ((SendMessage) method).getText();
+        }
+        if (method instanceof EditMessageText) {
+            return ((EditMessageText) method).getText();
+        }
+        return null;
+    }
+
+    private static InlineKeyboardMarkup inlineKeyboardOf(BotApiMethod<?> method) {
+        Object markup = method instanceof SendMessage ? ((SendMessage) method).getReplyMarkup()
+                : method instanceof EditMessageText ? ((EditMessageText) method).getReplyMarkup() : null;
+        return markup instanceof InlineKeyboardMarkup ? (InlineKeyboardMarkup) markup : null;
+    }
+
+    private static Update textUpdate(Conversation conversation, String text) {
+        Message message = new Message();
+        message.setChat(new Chat(conversation.chatId, "private"));
+        message.setMessageId(++conversation.userMessageId);
+        message.setText(text);
+        Update update = new Update();
+        update.setMessage(message);
+        return update;
+    }
+
+    private static Update callbackUpdate(Conversation conversation, String data) {
+        Message message = new Message(); // The bot message the pressed button belongs to
+        message.setChat(new Chat(conversation.chatId, "private"));
+        message.setMessageId(conversation.botMessageId);
+        CallbackQuery callbackQuery = new CallbackQuery();
+        callbackQuery.setId(conversation.chatId + ":" + conversation.stepToken);
+        callbackQuery.setData(data);
+        callbackQuery.setMessage(message);
+        Update update = new Update();
+        update.setCallbackQuery(callbackQuery);
+        return update;
+    }
+
+    private static final class Conversation {
+        private final long chatId;
+        private final String sheetName;
+        private int editsLeft;
+        private int botMessageId;
+        private int userMessageId;
+        private Step step; // Step waiting for the bot, null between steps
+        private long stepStarted;
+        private int stepToken; // Tells a stale timeout from the current step
+
+        private InlineKeyboardMarkup keyboard; // Last inline keyboard the bot sent or edited in
+
+        private Conversation(long chatId, String sheetName, int edits) {
+            this.chatId = chatId;
+            this.sheetName = sheetName;
+            this.editsLeft = edits;
+        }
+
+        /**
+         * Callback data of the button for the action on the last keyboard, with the given value unless it is -1.
+         */
+        private String button(CallbackAction action, int value) {
+            if (keyboard != null) {
+                for (InlineKeyboardRow row : keyboard.getKeyboard()) {
+                    for (InlineKeyboardButton button : row) {
+                        CallbackData data = CallbackData.decode(button.getCallbackData());
+                        if (data != null && data.getAction() == action && (value < 0 || data.getValue() == value)) {
+                            return button.getCallbackData();
+                        }
+                    }
+                }
+            }
+            return "missing_" + action; // Answered as a stale button, the step fails
+        }
+
+        private Step next(Step completed) {
+            switch (completed) {
+                case SHEETS:
+                    return Step.SELECT_SHEET;
+                case SELECT_SHEET:
+                    return Step.ADD_ROW;
+                case ADD_ROW:
+                    return editsLeft > 0 ? Step.EDIT_COLUMN : Step.DONE;
+                case EDIT_COLUMN:
+                    return Step.ENTER_VALUE;
+                case ENTER_VALUE:
+                    editsLeft--;
+                    return editsLeft > 0 ? Step.EDIT_COLUMN : Step.DONE;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final class LatencyStats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        synchronized void record(long latencyNanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+        }
+
+        synchronized void recordError() {
+            errors++;
+        }
+
+        synchronized int errors() {
+            return errors;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    static final class Options {
+        int chats = 200;
+        double rate = 10; // New conversations per second
+        int edits = 3; // Columns set per new row
+        long thinkMillis = 500; // Pause of the user between steps
+        int sheets = 5;
+        int rows = 500;
+        int columns = 8;
+        long sheetsReadLatencyMillis = 80;
+        long sheetsWriteLatencyMillis = 150;
+        int sheetsQuotaPerMinute; // 0 for none, the real API allows 60 reads and 60 writes
+        long telegramLatencyMillis = 40;
+        long timeoutSeconds = 30;
+        String delivery = "direct"; // direct, polling or webhook
+        long deliveryLatencyMillis = 20; // One way between Telegram and the bot when delivering updates
+        final Properties botProperties = new Properties();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            options.botProperties.setProperty("tg.bot.token", "0:load-test");
+            options.botProperties.setProperty("spreadsheet.id", "load-test");
+            options.botProperties.setProperty("sessions.journal.enabled", "false");
+            options.botProperties.setProperty("metrics.enabled", "false"); // --bot.metrics.enabled=true to scrape during a run
+            // Rows of an aborted run must not be replayed into the next one
+            options.botProperties.setProperty("sheets.outbox.dir",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "load-test-outbox-" + System.nanoTime()).toString());
+            // The fake has no quota by default, so the scheduler should not be the bottleneck either
+            options.botProperties.setProperty("sheets.rate.read", "1000");
+            options.botProperties.setProperty("sheets.rate.read.burst", "1000");
+            options.botProperties.setProperty("sheets.rate.write", "1000");
+            options.botProperties.setProperty("sheets.rate.write.burst", "1000");
+            options.botProperties.setProperty("sheets.max.concurrent", "64");
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if (name.startsWith("bot.")) {
+                    options.botProperties.setProperty(name.substring("bot.".length()), value);
+                    continue;
+                }
+                switch (name) {
+                    case "chats":
+                        options.chats = Integer.parseInt(value);
+                        break;
+                    case "rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "edits":
+                        options.edits = Integer.parseInt(value);
+                        break;
+                    case "think-ms":
+                        options.thinkMillis = Long.parseLong(value);
+                        break;
+                    case "sheets":
+                        options.sheets = Integer.parseInt(value);
+                        break;
+                    case "rows":
+                        options.rows = Integer.parseInt(value);
+                        break;
+                    case "columns":
+                        options.columns = Integer.parseInt(value);
+                        break;
+                    case "sheets-read-ms":
+                        options.sheetsReadLatencyMillis = Long.parseLong(value);
+                        break;
+                    case "sheets-write-ms":
+                        options.sheetsWriteLatencyMillis = Long.parseLong(value);
+                        break;
+                    case "sheets-quota-per-min":
+                        options.sheetsQuotaPerMinute = Integer.parseInt(value);
+                        break;
+                    case "telegram-ms":
+                        options.telegramLatencyMillis = Long.parseLong(value);
+                        break;
+                    case "timeout-s":
+                        options.timeoutSeconds = Long.parseLong(value);
+                        break;
+                    case "delivery":
+                        options.delivery = value;
+                        break;
+                    case "delivery-ms":
+                        options.deliveryLatencyMillis = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            return options;
+        }
+    }
+}
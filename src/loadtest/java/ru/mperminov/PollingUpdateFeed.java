@@ -0,0 +1,80 @@
+package ru.mperminov;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers updates the way getUpdates long polling does: a single loop asks for updates, the fake server holds the
+ * request until one arrives and answers with everything queued so far, and the next request is only sent after the
+ * bot took the batch. Updates travel as JSON, like in the webhook feed.
+ */
+class PollingUpdateFeed implements UpdateFeed {
+
+    private static final long POLL_TIMEOUT_MILLIS = 500; // Shorter than the real 50 s, so close() is quick
+    private static final int MAX_BATCH = 100; // The getUpdates limit
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    private final HomelessGoogleSheetsBot bot;
+    private final long oneWayMillis;
+    private final Thread poller;
+    private volatile boolean running = true;
+
+    PollingUpdateFeed(HomelessGoogleSheetsBot bot, long oneWayMillis) {
+        this.bot = bot;
+        this.oneWayMillis = oneWayMillis;
+        this.poller = new Thread(this::poll, "fake-get-updates");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    @Override
+    public void deliver(Update update) {
+        try {
+            pending.add(objectMapper.writeValueAsBytes(update));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        poller.interrupt();
+    }
+
+    private void poll() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (running) {
+                TimeUnit.MILLISECONDS.sleep(oneWayMillis); // getUpdates request on its way to Telegram
+                byte[] first = pending.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                TimeUnit.MILLISECONDS.sleep(oneWayMillis); // Response on its way back
+                List<Update> updates = new ArrayList<>(batch.size());
+                for (byte[] json : batch) {
+                    updates.add(objectMapper.readValue(json, Update.class));
+                }
+                batch.clear();
+                bot.consume(updates);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
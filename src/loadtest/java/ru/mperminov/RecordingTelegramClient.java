@@ -0,0 +1,96 @@
+package ru.mperminov;
+
+import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
+import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Telegram client that never touches the network. Every call is answered after a fixed delay and reported to the
+ * listener, sent messages get increasing message ids like real ones.
+ */
+class RecordingTelegramClient extends OkHttpTelegramClient {
+
+    /**
+     * Sees every call the bot made, with the id of the message it created or edited.
+     */
+    interface Listener {
+        void onCall(long chatId, BotApiMethod<?> method, int messageId);
+    }
+
+    private final long latencyMillis;
+    private final Listener listener;
+    private final AtomicInteger nextMessageId = new AtomicInteger(1_000);
+    private final AtomicLong calls = new AtomicLong();
+    private final ScheduledExecutorService network = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-telegram");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RecordingTelegramClient(long latencyMillis, Listener listener) {
+        super("0:load-test");
+        this.latencyMillis = latencyMillis;
+        this.listener = listener;
+    }
+
+    long getCallCount() {
+        return calls.get();
+    }
+
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        network.schedule(() -> {
+            try {
+                result.complete(answer(method));
+            } catch (TelegramApiException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) throws TelegramApiException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("Interrupted", e);
+        }
+        return answer(method);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> T answer(BotApiMethod<T> method) throws TelegramApiException {
+        calls.incrementAndGet();
+        long chatId;
+        int messageId;
+        if (method instanceof SendMessage) {
+            chatId = Long.parseLong(((SendMessage) method).getChatId());
+            messageId = nextMessageId.incrementAndGet();
+        } else if (method instanceof EditMessageText) {
+            chatId = Long.parseLong(((EditMessageText) method).getChatId());
+            messageId = ((EditMessageText) method).getMessageId();
+        } else {
+            throw new TelegramApiException("Not supported by the load test: " + method.getMethod());
+        }
+        listener.onCall(chatId, method, messageId);
+        Message message = new Message();
+        message.setMessageId(messageId);
+        message.setChat(new Chat(chatId, "private"));
+        return (T) message;
+    }
+}
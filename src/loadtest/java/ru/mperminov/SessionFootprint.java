@@ -0,0 +1,65 @@
+package ru.mperminov;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Prints the heap one editing session takes: many chats open the same sheet and start a draft with two edited
+ * columns, the heap growth after a full GC divided by the number of sessions is the per-session footprint.
+ * <p>
+ * Run with {@code ./gradlew sessionFootprint --args="--sessions=20000 --columns=12"}.
+ */
+public class SessionFootprint {
+
+    public static void main(String[] args) throws InterruptedException {
+        int sessions = 20_000;
+        int columns = 12;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            switch (option[0]) {
+                case "--sessions":
+                    sessions = Integer.parseInt(option[1]);
+                    break;
+                case "--columns":
+                    columns = Integer.parseInt(option[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        List<Object> header = new ArrayList<>();
+        List<Object> lastRow = new ArrayList<>();
+        for (int i = 0; i < columns; i++) {
+            header.add("Столбец " + (i + 1));
+            lastRow.add("значение " + (i + 1));
+        }
+        List<String> sheetNames = List.of("Выдача", "Ночлег", "Склад", "Волонтёры", "Контакты");
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        UserState[] states = new UserState[sessions];
+
+        long before = usedAfterGc(memory);
+        for (int i = 0; i < sessions; i++) {
+            UserState state = new UserState(UserState.State.AWAITING_COLUMN_TO_EDIT, sheetNames);
+            state.setSheetNameForEditing("Выдача");
+            // Every chat reads its own copy of the last row, as it would from the replica or the Sheets API
+            state.setTemplate(HomelessGoogleSheetsBot.getSheetTemplate("Выдача", header, List.of(new ArrayList<>(lastRow))));
+            state.setPendingEdit(1, "Иванов");
+            state.setPendingEdit(4, "2 шт.");
+            states[i] = state;
+        }
+        long after = usedAfterGc(memory);
+        System.out.printf(Locale.ROOT, "%d sessions, %d columns: %d bytes per session%n",
+                states.length, columns, (after - before) / sessions);
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
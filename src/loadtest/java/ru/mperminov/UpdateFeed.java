@@ -0,0 +1,31 @@
+package ru.mperminov;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.List;
+
+/**
+ * How the load test gets an update to the bot: straight into the consumer, or the way Telegram would deliver it.
+ */
+interface UpdateFeed {
+
+    void deliver(Update update);
+
+    void close();
+
+    /**
+     * Hands every update to the bot at once, as if delivery took no time.
+     */
+    static UpdateFeed direct(HomelessGoogleSheetsBot bot) {
+        return new UpdateFeed() {
+            @Override
+            public void deliver(Update update) {
+                bot.consume(List.of(update));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
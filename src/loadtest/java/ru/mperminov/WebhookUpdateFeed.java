@@ -0,0 +1,63 @@
+package ru.mperminov;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers updates the way Telegram does in webhook mode: each one is POSTed as JSON to a {@link WebhookServer}
+ * on a local port, after the given network delay.
+ */
+class WebhookUpdateFeed implements UpdateFeed {
+
+    private static final String PATH = "/telegram";
+    private static final String SECRET = "load-test-secret";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final WebhookServer server;
+    private final URI uri;
+    private final Executor networkDelay;
+
+    WebhookUpdateFeed(HomelessGoogleSheetsBot bot, long oneWayMillis) throws IOException {
+        this.server = new WebhookServer("127.0.0.1", 0, PATH, SECRET, 4, bot::consume);
+        this.uri = URI.create("http://127.0.0.1:" + server.getPort() + PATH);
+        this.networkDelay = CompletableFuture.delayedExecutor(oneWayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void deliver(Update update) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .header(WebhookServer.SECRET_HEADER, SECRET)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(update)))
+                    .build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        CompletableFuture.runAsync(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error != null || response.statusCode() != 200) {
+                        System.out.println("Webhook delivery failed: "
+                                + (error != null ? error : "HTTP " + response.statusCode()));
+                    }
+                }), networkDelay);
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,241 @@
+package ru.mperminov;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms, gauges and counters of the bot, written out in the Prometheus text format.
+ * Every series is a preallocated histogram addressed by enum ordinals, so recording does not allocate.
+ */
+class BotMetrics {
+
+    /**
+     * What an update asked for: a command, free text or the action of the pressed button.
+     */
+    enum UpdateType {
+        START,
+        SHEETS,
+        FIND,
+        PAGE_SIZE,
+        IMPORT,
+        EXPORT,
+        TEXT,
+        ADD_NEW_ROW,
+        EDIT_COLUMN_INDEX,
+        DONE_EDITING,
+        CANCEL_EDITING,
+        BACK_TO_SHEET_SELECTION,
+        BACK_TO_COLUMN_SELECTION,
+        SHOW_PAGE,
+        UNKNOWN_CALLBACK,
+        OTHER;
+
+        private static final UpdateType[] BY_CALLBACK_ACTION = new UpdateType[CallbackAction.values().length];
+
+        static {
+            for (CallbackAction action : CallbackAction.values()) {
+                BY_CALLBACK_ACTION[action.ordinal()] = valueOf(action.name());
+            }
+        }
+
+        static UpdateType of(Update update) {
+            if (update.hasMessage() && update.getMessage().hasText()) {
+                String text = update.getMessage().getText();
+                if (text.equals("/start")) {
+                    return START;
+                }
+                if (text.equals("/find") || text.startsWith("/find ")) {
+                    return FIND;
+                }
+                if (text.equals("/pagesize") || text.startsWith("/pagesize ")) {
+                    return PAGE_SIZE;
+                }
+                if (text.equals("/export") || text.startsWith("/export ")) {
+                    return EXPORT;
+                }
+                return text.equals("/sheets") ? SHEETS : TEXT;
+            }
+            if (update.hasMessage() && update.getMessage().hasDocument()) {
+                return IMPORT;
+            }
+            if (update.hasCallbackQuery()) {
+                CallbackAction action = CallbackData.actionOf(update.getCallbackQuery().getData()); // Decoded in full later
+                return action != null ? BY_CALLBACK_ACTION[action.ordinal()] : UNKNOWN_CALLBACK;
+            }
+            return OTHER;
+        }
+    }
+
+    enum SheetsCall {
+        SPREADSHEETS_GET,
+        VALUES_GET,
+        VALUES_BATCH_GET,
+        VALUES_APPEND
+    }
+
+    enum TelegramCall {
+        SEND_MESSAGE,
+        EDIT_MESSAGE_TEXT,
+        SEND_DOCUMENT
+    }
+
+    enum Outcome {
+        SUCCESS,
+        ERROR
+    }
+
+    // Bucket bounds of the exported histograms, in microseconds
+    private static final long[] EXPORTED_BOUNDS_MICROS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000
+    };
+    private static final int OUTCOMES = Outcome.values().length;
+
+    private final LatencyHistogram[] updates = histograms(UpdateType.values().length * OUTCOMES);
+    private final LatencyHistogram[] sheetsCalls = histograms(SheetsCall.values().length * OUTCOMES);
+    private final LatencyHistogram[] telegramCalls = histograms(TelegramCall.values().length * OUTCOMES);
+    private final LatencyHistogram render = new LatencyHistogram();
+    private final List<ScrapedValue> scrapedValues = new ArrayList<>(); // Gauges and counters
+
+    void recordUpdate(UpdateType type, Outcome outcome, long nanos) {
+        updates[type.ordinal() * OUTCOMES + outcome.ordinal()].record(nanos);
+    }
+
+    void recordSheetsCall(SheetsCall call, Outcome outcome, long nanos) {
+        sheetsCalls[call.ordinal() * OUTCOMES + outcome.ordinal()].record(nanos);
+    }
+
+    void recordTelegramCall(TelegramCall call, Outcome outcome, long nanos) {
+        telegramCalls[call.ordinal() * OUTCOMES + outcome.ordinal()].record(nanos);
+    }
+
+    void recordRender(long nanos) {
+        render.record(nanos);
+    }
+
+    /**
+     * Executes a Sheets API request and records its latency and outcome.
+     */
+    <T> T execute(SheetsCall call, AbstractGoogleClientRequest<T> request) throws IOException {
+        long started = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            T result = request.execute();
+            outcome = Outcome.SUCCESS;
+            return result;
+        } finally {
+            recordSheetsCall(call, outcome, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Registers a value read at scrape time, e.g. a queue length.
+     */
+    synchronized void gauge(String name, String help, LongSupplier value) {
+        scrapedValues.add(new ScrapedValue(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a count that only grows, read at scrape time, e.g. retries so far. It is exported with the
+     * {@code _total} suffix, so rates over it survive restarts.
+     */
+    synchronized void counter(String name, String help, LongSupplier value) {
+        scrapedValues.add(new ScrapedValue(name + "_total", help, "counter", value));
+    }
+
+    /**
+     * Writes all series in the Prometheus text exposition format. Series without observations are left out.
+     */
+    synchronized void writePrometheus(StringBuilder out) {
+        writeHeader(out, "bot_update_duration_seconds", "Time to handle one update.", "histogram");
+        for (UpdateType type : UpdateType.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                writeHistogram(out, "bot_update_duration_seconds", "type", type,
+                        outcome, updates[type.ordinal() * OUTCOMES + outcome.ordinal()]);
+            }
+        }
+        writeHeader(out, "bot_sheets_call_duration_seconds", "Time of one Google Sheets API call.", "histogram");
+        for (SheetsCall call : SheetsCall.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                writeHistogram(out, "bot_sheets_call_duration_seconds", "call", call,
+                        outcome, sheetsCalls[call.ordinal() * OUTCOMES + outcome.ordinal()]);
+            }
+        }
+        writeHeader(out, "bot_telegram_call_duration_seconds",
+                "Time from queueing a Telegram call to its response.", "histogram");
+        for (TelegramCall call : TelegramCall.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                writeHistogram(out, "bot_telegram_call_duration_seconds", "call", call,
+                        outcome, telegramCalls[call.ordinal() * OUTCOMES + outcome.ordinal()]);
+            }
+        }
+        writeHeader(out, "bot_render_duration_seconds", "Time to render a sheet table.", "histogram");
+        writeHistogram(out, "bot_render_duration_seconds", null, null, null, render);
+        for (ScrapedValue scraped : scrapedValues) {
+            writeHeader(out, scraped.name, scraped.help, scraped.type);
+            out.append(scraped.name).append(' ').append(scraped.value.getAsLong()).append('\n');
+        }
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String tag, Enum<?> tagValue,
+                                       Outcome outcome, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        StringBuilder labels = new StringBuilder();
+        if (tag != null) {
+            labels.append(tag).append("=\"").append(tagValue.name().toLowerCase(Locale.ROOT)).append("\",");
+        }
+        if (outcome != null) {
+            labels.append("outcome=\"").append(outcome.name().toLowerCase(Locale.ROOT)).append("\",");
+        }
+        for (long bound : EXPORTED_BOUNDS_MICROS) {
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(seconds(bound)).append("\"} ")
+                    .append(histogram.countBelow(bound)).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(count).append('\n');
+        String plainLabels = labels.length() > 0 ? "{" + labels.substring(0, labels.length() - 1) + "}" : "";
+        out.append(name).append("_sum").append(plainLabels).append(' ')
+                .append(seconds(histogram.getSumMicros())).append('\n');
+        out.append(name).append("_count").append(plainLabels).append(' ').append(count).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private static LatencyHistogram[] histograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private static final class ScrapedValue {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+
+        private ScrapedValue(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ru.mperminov;
+
+/**
+ * Actions behind the inline buttons. The id is what {@link CallbackData} writes, it must never change or be reused,
+ * buttons of messages sent before an update would do something else otherwise.
+ */
+enum CallbackAction {
+    ADD_NEW_ROW(1, false), // Sheet id
+    EDIT_COLUMN_INDEX(2, true), // Sheet id, column index
+    DONE_EDITING(3, true),
+    CANCEL_EDITING(4, true),
+    BACK_TO_SHEET_SELECTION(5, false),
+    BACK_TO_COLUMN_SELECTION(6, true),
+    SHOW_PAGE(7, false); // Sheet id, last sheet row of the page
+
+    private static final CallbackAction[] BY_ID = new CallbackAction[8];
+
+    static {
+        for (CallbackAction action : values()) {
+            BY_ID[action.id] = action;
+        }
+    }
+
+    private final int id;
+    private final boolean draftBound;
+
+    CallbackAction(int id, boolean draftBound) {
+        this.id = id;
+        this.draftBound = draftBound;
+    }
+
+    /**
+     * Finds the action with this id, or {@code null} for an unknown id.
+     */
+    static CallbackAction byId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Whether the button belongs to a draft keyboard, it is only valid while the header of the sheet it was built
+     * for is the one the session edits with.
+     */
+    boolean isDraftBound() {
+        return draftBound;
+    }
+}
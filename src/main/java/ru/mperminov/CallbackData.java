@@ -0,0 +1,145 @@
+package ru.mperminov;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Callback data of an inline button: action, sheet id, a number (column index or page row) and the header version
+ * of the draft it belongs to, packed into a few bytes and written as unpadded base64url. Sheets are referred to by
+ * id, so long sheet names never get near Telegram's 64 byte limit, and a rename does not break buttons.
+ * <p>
+ * Layout: format byte, action id, sheet id + 1 and number + 1 as unsigned varints, header version as 4 bytes.
+ * Data in any other format, including the text prefixes older versions wrote, does not decode and is answered as a
+ * stale button.
+ */
+final class CallbackData {
+
+    private static final int FORMAT = 1;
+    private static final int MAX_BYTES = 16;
+    private static final int MAX_CHARS = 22; // MAX_BYTES in base64 without padding
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final CallbackAction action;
+    private final int sheetId; // -1 for none
+    private final int value; // -1 for none
+    private final int headerVersion; // 0 unless the action is draft bound
+
+    private CallbackData(CallbackAction action, int sheetId, int value, int headerVersion) {
+        this.action = action;
+        this.sheetId = sheetId;
+        this.value = value;
+        this.headerVersion = headerVersion;
+    }
+
+    static String encode(CallbackAction action) {
+        return encode(action, -1, -1, 0);
+    }
+
+    static String encode(CallbackAction action, int sheetId, int value, int headerVersion) {
+        ByteBuffer out = ByteBuffer.allocate(MAX_BYTES);
+        out.put((byte) FORMAT).put((byte) action.getId());
+        putVarint(out, sheetId + 1);
+        putVarint(out, value + 1);
+        out.putInt(headerVersion);
+        return ENCODER.encodeToString(Arrays.copyOf(out.array(), out.position()));
+    }
+
+    /**
+     * Decodes callback data, or returns {@code null} if it is not in the current format.
+     */
+    static CallbackData decode(String data) {
+        if (data == null || data.isEmpty() || data.length() > MAX_CHARS) {
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(DECODER.decode(data));
+            if (in.get() != FORMAT) {
+                return null;
+            }
+            CallbackAction action = CallbackAction.byId(in.get());
+            if (action == null) {
+                return null;
+            }
+            int sheetId = getVarint(in) - 1;
+            int value = getVarint(in) - 1;
+            int headerVersion = in.getInt();
+            return in.hasRemaining() ? null : new CallbackData(action, sheetId, value, headerVersion);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            return null; // Not base64url or cut short
+        }
+    }
+
+    /**
+     * Reads only the action of callback data, from its first three characters and without allocating. Returns
+     * {@code null} if they do not start data in the current format; the rest is not checked, {@link #decode} does.
+     */
+    static CallbackAction actionOf(String data) {
+        if (data == null || data.length() < 3 || data.length() > MAX_CHARS) {
+            return null;
+        }
+        int first = base64Value(data.charAt(0));
+        int second = base64Value(data.charAt(1));
+        int third = base64Value(data.charAt(2));
+        if ((first | second | third) < 0 || ((first << 2) | (second >> 4)) != FORMAT) {
+            return null;
+        }
+        return CallbackAction.byId(((second & 0x0F) << 4) | (third >> 2));
+    }
+
+    private static int base64Value(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        }
+        return c == '-' ? 62 : c == '_' ? 63 : -1;
+    }
+
+    CallbackAction getAction() {
+        return action;
+    }
+
+    int getSheetId() {
+        return sheetId;
+    }
+
+    int getValue() {
+        return value;
+    }
+
+    int getHeaderVersion() {
+        return headerVersion;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    @Override
+    public String toString() {
+        return action + "(sheet " + sheetId + ", " + value + ", v" + Integer.toHexString(headerVersion) + ")";
+    }
+}
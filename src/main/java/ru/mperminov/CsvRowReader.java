@@ -0,0 +1,159 @@
+package ru.mperminov;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming CSV parser: quoted fields may hold delimiters, doubled quotes and line breaks.
+ * The delimiter (comma, semicolon or tab) is taken from the first line, the encoding is UTF-8 unless the start
+ * of the file is not valid UTF-8, then it is Windows-1251, which is what Excel in Russian writes.
+ */
+final class CsvRowReader implements RowReader {
+
+    private static final int SNIFF_BYTES = 64 * 1024;
+    private static final int MAX_FIELD_CHARS = 50_000; // Google Sheets limit for one cell
+    private static final Charset WINDOWS_1251 = Charset.forName("windows-1251");
+
+    private final BufferedReader in;
+    private final char delimiter;
+    private int lineNumber; // Line the current record started on
+    private int nextLineNumber = 1;
+    private final StringBuilder field = new StringBuilder();
+
+    CsvRowReader(Path file) throws IOException {
+        Charset charset = detectCharset(file);
+        this.in = new BufferedReader(new InputStreamReader(Files.newInputStream(file), charset), 1 << 16);
+        in.mark(1);
+        if (in.read() != '\uFEFF') { // Byte order mark
+            in.reset();
+        }
+        this.delimiter = detectDelimiter(in);
+    }
+
+    @Override
+    public List<String> next() throws IOException {
+        List<String> row = new ArrayList<>();
+        field.setLength(0);
+        lineNumber = nextLineNumber;
+        boolean quoted = false;
+        boolean any = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            any = true;
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    if (in.read() == '"') {
+                        append('"');
+                    } else {
+                        in.reset();
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        nextLineNumber++;
+                    }
+                    append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                row.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r') {
+                    in.mark(1);
+                    if (in.read() != '\n') {
+                        in.reset();
+                    }
+                }
+                nextLineNumber++;
+                row.add(field.toString());
+                return row;
+            } else {
+                append((char) c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("Незакрытые кавычки в строке " + lineNumber);
+        }
+        if (!any) {
+            return null;
+        }
+        row.add(field.toString());
+        return row;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void append(char c) throws IOException {
+        if (field.length() >= MAX_FIELD_CHARS) {
+            throw new IOException("Слишком длинное значение в строке " + lineNumber);
+        }
+        field.append(c);
+    }
+
+    static Charset detectCharset(Path file) throws IOException {
+        byte[] start = new byte[SNIFF_BYTES];
+        int length;
+        try (InputStream input = Files.newInputStream(file)) {
+            length = input.readNBytes(start, 0, start.length);
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // Not the end of input: a character cut off at the end of the sample is not an error
+        CoderResult result = decoder.decode(ByteBuffer.wrap(start, 0, length), CharBuffer.allocate(length + 1), false);
+        return result.isError() ? WINDOWS_1251 : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Picks the delimiter that occurs most often outside quotes in the first line.
+     */
+    private static char detectDelimiter(BufferedReader in) throws IOException {
+        in.mark(SNIFF_BYTES);
+        int commas = 0;
+        int semicolons = 0;
+        int tabs = 0;
+        boolean quoted = false;
+        for (int i = 0, c; i < SNIFF_BYTES - 1 && (c = in.read()) != -1; i++) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '\n' || c == '\r')) {
+                break;
+            } else if (!quoted && c == ',') {
+                commas++;
+            } else if (!quoted && c == ';') {
+                semicolons++;
+            } else if (!quoted && c == '\t') {
+                tabs++;
+            }
+        }
+        in.reset();
+        if (tabs > commas && tabs > semicolons) {
+            return '\t';
+        }
+        return semicolons > commas ? ';' : ',';
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mperminov;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads several columns of a draft row from one message, either {@code Имя: Иван; Возраст: 42} or one
+ * {@code column: value} pair per line. Column names are matched loosely: case, {@code ё}, spaces and punctuation
+ * do not matter, a unique prefix is enough and a typo or two is forgiven if only one column is that close.
+ */
+final class DraftEntryParser {
+
+    /**
+     * Values by column index, and the parts of the message no column was found for.
+     */
+    static final class Result {
+        private final IntObjectMap<Object> values = new IntObjectMap<>();
+        private final List<String> unmatched = new ArrayList<>();
+
+        IntObjectMap<Object> getValues() {
+            return values;
+        }
+
+        List<String> getUnmatched() {
+            return unmatched;
+        }
+    }
+
+    private DraftEntryParser() {
+    }
+
+    static Result parse(String text, List<Object> header) {
+        Result result = new Result();
+        String[] names = new String[header.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = normalize(String.valueOf(header.get(i)));
+        }
+        // Lines win over semicolons, a pasted value may contain one
+        String[] parts = text.indexOf('\n') >= 0 ? text.split("\\R") : text.split(";");
+        for (String part : parts) {
+            String trimmed = part.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int separator = separatorOf(trimmed);
+            int column = separator > 0 ? findColumn(names, normalize(trimmed.substring(0, separator))) : -1;
+            if (column < 0) {
+                result.unmatched.add(trimmed);
+            } else {
+                result.values.put(column, trimmed.substring(separator + 1).trim()); // A later value of a column wins
+            }
+        }
+        return result;
+    }
+
+    private static int separatorOf(String part) {
+        int colon = part.indexOf(':');
+        return colon >= 0 ? colon : part.indexOf('=');
+    }
+
+    /**
+     * Index of the column the name refers to, or -1 if there is none or more than one equally close.
+     */
+    static int findColumn(String[] names, String key) {
+        if (key.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(key)) {
+                return i;
+            }
+        }
+        int found = -1;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].startsWith(key)) {
+                if (found >= 0) {
+                    return -1; // Ambiguous prefix
+                }
+                found = i;
+            }
+        }
+        if (found >= 0) {
+            return found;
+        }
+        int allowed = key.length() <= 4 ? 1 : 2; // Typos forgiven, short names would match anything otherwise
+        int best = allowed + 1;
+        for (int i = 0; i < names.length; i++) {
+            int distance = distance(names[i], key, allowed);
+            if (distance < best) {
+                best = distance;
+                found = i;
+            } else if (distance == best) {
+                found = -1; // Two columns equally close, neither is picked
+            }
+        }
+        return best <= allowed ? found : -1;
+    }
+
+    static String normalize(String name) {
+        StringBuilder normalized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(c == 'ё' ? 'е' : c);
+            }
+        }
+        return normalized.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Edit distance of the two names, or {@code limit + 1} as soon as it is known to be larger than the limit.
+     */
+    private static int distance(String a, String b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) {
+            return limit + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > limit) {
+                return limit + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], limit + 1);
+    }
+}
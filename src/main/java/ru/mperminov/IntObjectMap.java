@@ -0,0 +1,91 @@
+package ru.mperminov;
+
+import java.util.Arrays;
+
+/**
+ * Small map from int keys to values, kept as two sorted arrays. Meant for a handful of entries such as the edited
+ * columns of a draft row: no boxed keys and no entry objects, lookups are a binary search. Not thread-safe.
+ */
+final class IntObjectMap<V> {
+
+    interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private static final int[] NO_KEYS = new int[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private int[] keys = NO_KEYS;
+    private Object[] values = NO_VALUES;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    V get(int key) {
+        return getOrDefault(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    V getOrDefault(int key, V defaultValue) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        return index >= 0 ? (V) values[index] : defaultValue;
+    }
+
+    void put(int key, V value) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+        index = -index - 1;
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = key;
+        values[index] = value;
+        size++;
+    }
+
+    void clear() {
+        keys = NO_KEYS; // Most drafts are done after a clear, their arrays are not worth keeping
+        values = NO_VALUES;
+        size = 0;
+    }
+
+    int keyAt(int index) {
+        return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    /**
+     * Visits the entries in ascending key order.
+     */
+    void forEach(EntryConsumer<? super V> consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(keys[i], valueAt(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            text.append(i > 0 ? ", " : "").append(keys[i]).append('=').append(values[i]);
+        }
+        return text.append('}').toString();
+    }
+}
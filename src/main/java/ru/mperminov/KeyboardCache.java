@@ -0,0 +1,91 @@
+package ru.mperminov;
+
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ready-made keyboards of the bot's spreadsheet: the sheet picker and, per sheet, the column selection keyboard
+ * with the column labels of the draft text and the keyboard under a value prompt. An entry is used as long as the
+ * sheet titles or the header it was built from are equal to the current ones, a changed header builds a new entry.
+ * <p>
+ * The markups are shared between all chats and sent as they are, callers must not modify them.
+ */
+class KeyboardCache {
+
+    private static final int MAX_SHEETS = 256; // Entries kept before the cache starts over
+
+    private volatile SheetPicker sheetPicker;
+    private final Map<Integer, ColumnPrompt> columnPrompts = new ConcurrentHashMap<>(); // By sheet id
+
+    ReplyKeyboardMarkup sheetPicker(List<String> sheetNames) {
+        SheetPicker current = sheetPicker;
+        if (current != null && (current.sheetNames == sheetNames || current.sheetNames.equals(sheetNames))) {
+            return current.keyboard;
+        }
+        current = new SheetPicker(List.copyOf(sheetNames), HomelessGoogleSheetsBot.getSheetPickerKeyboard(sheetNames));
+        sheetPicker = current;
+        return current.keyboard;
+    }
+
+    ColumnPrompt columnPrompt(int sheetId, SheetTemplate template) {
+        List<Object> header = template.getHeader();
+        ColumnPrompt current = columnPrompts.get(sheetId);
+        if (current != null && (current.header == header || current.header.equals(header))) {
+            return current;
+        }
+        if (columnPrompts.size() >= MAX_SHEETS) {
+            columnPrompts.clear();
+        }
+        current = new ColumnPrompt(sheetId, template);
+        columnPrompts.put(sheetId, current);
+        return current;
+    }
+
+    /**
+     * Keyboards and draft labels for one header.
+     */
+    static final class ColumnPrompt {
+        private final List<Object> header;
+        private final InlineKeyboardMarkup keyboard;
+        private final InlineKeyboardMarkup backKeyboard;
+        private final List<String> labels; // "column: " per column, escaped for Markdown
+
+        private ColumnPrompt(int sheetId, SheetTemplate template) {
+            this.header = template.getHeader(); // Immutable
+            this.keyboard = HomelessGoogleSheetsBot.getColumnSelectionKeyboard(sheetId, template.getHeaderVersion(), header);
+            this.backKeyboard = HomelessGoogleSheetsBot.getBackToColumnSelectionKeyboard(sheetId, template.getHeaderVersion());
+            List<String> labels = new ArrayList<>(header.size());
+            for (Object column : header) {
+                labels.add(SheetTableRenderer.escapeMarkdown(String.valueOf(column)) + ": ");
+            }
+            this.labels = List.copyOf(labels);
+        }
+
+        InlineKeyboardMarkup getKeyboard() {
+            return keyboard;
+        }
+
+        InlineKeyboardMarkup getBackKeyboard() {
+            return backKeyboard;
+        }
+
+        List<String> getLabels() {
+            return labels;
+        }
+    }
+
+    private static final class SheetPicker {
+        private final List<String> sheetNames;
+        private final ReplyKeyboardMarkup keyboard;
+
+        private SheetPicker(List<String> sheetNames, ReplyKeyboardMarkup keyboard) {
+            this.sheetNames = sheetNames;
+            this.keyboard = keyboard;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.mperminov;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the spirit of HdrHistogram: microsecond values go into log-linear buckets,
+ * 8 sub-buckets per power of two, so every bucket is accurate to 1/8 of its value. Recording does not allocate.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // About 12 days in microseconds, longer values are clamped
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    void record(long nanos) {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucketOf(micros));
+        sumMicros.add(micros);
+        count.increment();
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    /**
+     * Number of recorded values whose bucket lies entirely below {@code limitMicros}.
+     */
+    long countBelow(long limitMicros) {
+        long below = 0;
+        for (int i = 0; i < BUCKET_COUNT && upperBoundOf(i) <= limitMicros; i++) {
+            below += counts.get(i);
+        }
+        return below;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros; // Small values are exact
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT && micros >= (1L << (MAX_EXPONENT + 1))) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Smallest value in microseconds that no longer falls into the bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1L;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width;
+    }
+}
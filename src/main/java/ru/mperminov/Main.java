@@ -1,10 +1,6 @@
 package ru.mperminov;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.sheets.v4.Sheets;
-import com.google.api.services.sheets.v4.model.Sheet;
-import com.google.api.services.sheets.v4.model.Spreadsheet;
 import com.google.api.services.sheets.v4.model.ValueRange;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.ServiceAccountCredentials;
@@ -14,31 +10,56 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
 import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
-import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
+import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Document;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.meta.generics.TelegramClient;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final String DEFAULT_BOT_MODE = "polling"; // "polling" or "webhook"
+    private static final String DEFAULT_WEBHOOK_HOST = "0.0.0.0";
+    private static final String DEFAULT_WEBHOOK_PORT = "8080"; // Behind a TLS proxy, Telegram only calls 443, 80, 88 and 8443
+    private static final String DEFAULT_WEBHOOK_PATH = "/telegram";
+    private static final String DEFAULT_WEBHOOK_THREADS = "4"; // Only parse and queue, the dispatcher does the work
+    private static final String DEFAULT_WEBHOOK_MAX_CONNECTIONS = "40";
 
     private static Properties loadProperties() {
         Properties properties = new Properties();
@@ -52,6 +73,48 @@ public class Main {
         return properties;
     }
 
+    /**
+     * Starts the local webhook endpoint and tells Telegram to push updates to {@code webhook.url}.
+     * Returns {@code null} if either step fails.
+     */
+    private static WebhookServer startWebhook(Properties properties, String botToken, HomelessGoogleSheetsBot bot) {
+        String url = properties.getProperty("webhook.url");
+        if (url == null || url.isEmpty()) {
+            logger.error("bot.mode is webhook, but webhook.url is not set.");
+            return null;
+        }
+        String secret = properties.getProperty("webhook.secret");
+        WebhookServer webhookServer;
+        try {
+            webhookServer = new WebhookServer(
+                    properties.getProperty("webhook.host", DEFAULT_WEBHOOK_HOST),
+                    Integer.parseInt(properties.getProperty("webhook.port", DEFAULT_WEBHOOK_PORT)),
+                    properties.getProperty("webhook.path", DEFAULT_WEBHOOK_PATH),
+                    secret,
+                    Integer.parseInt(properties.getProperty("webhook.threads", DEFAULT_WEBHOOK_THREADS)),
+                    bot::consume);
+        } catch (IOException e) {
+            logger.error("Failed to start webhook server.", e);
+            return null;
+        }
+        SetWebhook setWebhook = new SetWebhook(url);
+        if (secret != null && !secret.isEmpty()) {
+            setWebhook.setSecretToken(secret);
+        }
+        setWebhook.setMaxConnections(Integer.parseInt(
+                properties.getProperty("webhook.max.connections", DEFAULT_WEBHOOK_MAX_CONNECTIONS)));
+        setWebhook.setAllowedUpdates(List.of("message", "callback_query")); // The only updates the bot handles
+        try {
+            new OkHttpTelegramClient(botToken).execute(setWebhook);
+            logger.info("Telegram webhook set to {}", url);
+        } catch (TelegramApiException e) {
+            logger.error("Failed to set Telegram webhook.", e);
+            webhookServer.stop();
+            return null;
+        }
+        return webhookServer;
+    }
+
     public static void main(String[] args) {
         logger.info("Application starting...");
         Properties properties = loadProperties();
@@ -59,39 +122,107 @@ public class Main {
             logger.error("Application failed to start due to missing properties.");
             return;
         }
-        try {
-            String botToken = properties.getProperty("tg.bot.token");
-            TelegramBotsLongPollingApplication botsApplication = new TelegramBotsLongPollingApplication();
-            botsApplication.registerBot(botToken, new HomelessGoogleSheetsBot(properties));
-            logger.info("Telegram bot registered successfully.");
-        } catch (TelegramApiException e) {
-            logger.error("Failed to register Telegram bot.", e);
+        String botToken = properties.getProperty("tg.bot.token");
+        HomelessGoogleSheetsBot bot = new HomelessGoogleSheetsBot(properties);
+        if ("webhook".equalsIgnoreCase(properties.getProperty("bot.mode", DEFAULT_BOT_MODE))) {
+            WebhookServer webhookServer = startWebhook(properties, botToken, bot);
+            if (webhookServer == null) {
+                bot.shutdown();
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                webhookServer.stop(); // Stop taking updates before the bot drains its queues
+                bot.shutdown();
+            }, "bot-shutdown"));
+        } else {
+            try {
+                TelegramBotsLongPollingApplication botsApplication = new TelegramBotsLongPollingApplication();
+                botsApplication.registerBot(botToken, bot);
+                Runtime.getRuntime().addShutdownHook(new Thread(bot::shutdown, "bot-shutdown"));
+                logger.info("Telegram bot registered successfully.");
+            } catch (TelegramApiException e) {
+                logger.error("Failed to register Telegram bot.", e);
+            }
         }
         logger.info("Application started successfully.");
     }
 }
 
-class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
+class HomelessGoogleSheetsBot implements LongPollingUpdateConsumer {
+
+    /**
+     * Runs the action of a pressed button that passed the staleness checks.
+     */
+    private interface CallbackHandler {
+        void handle(long chatId, UserState userState, CallbackData data, int messageId)
+                throws IOException, TelegramApiException;
+    }
 
     private static final Logger logger = LoggerFactory.getLogger(HomelessGoogleSheetsBot.class);
-    private static final int DEFAULT_ROW_COUNT = 1; // Number of last rows to fetch
-    private static final String APPLICATION_NAME = "Telegram Bot Sheets";
+    private static final String DEFAULT_PAGE_SIZE = "5"; // Rows per page unless a chat chose otherwise with /pagesize
+    private static final int MAX_PAGE_SIZE = 50;
+    private static final int MAX_FIND_RESULTS = 10; // Rows shown for one /find
+    private static final int MAX_FIND_LINE_LENGTH = 300;
+    private static final String ERROR_PREFIX = "❌ ";
     private static final String CREDENTIALS_FILE_PATH = "src/main/resources/credentials.json";
-
-    public static Sheets getSheetsService() throws IOException, GeneralSecurityException {
+    private static final String DEFAULT_MAX_CONCURRENCY = "8"; // Chats processed in parallel
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final String DEFAULT_MAX_SESSIONS = "10000"; // Sessions kept in memory before the least recently used is dropped
+    private static final String DEFAULT_SESSION_IDLE_MINUTES = "360"; // Idle time after which a session expires
+    private static final String DEFAULT_JOURNAL_DIR = "data/sessions";
+    private static final String DEFAULT_JOURNAL_SEGMENT_MB = "16";
+    private static final String DEFAULT_OUTBOX_DIR = "data/outbox";
+    private static final String DEFAULT_IMPORT_CHUNK_ROWS = "500"; // Rows per append call of a file import
+    private static final String DEFAULT_IMPORT_MAX_ROWS = "200000";
+    private static final String DEFAULT_EXPORT_CHUNK_ROWS = "5000"; // Rows per read of a file export
+    private static final String DEFAULT_FILE_THREADS = "2"; // Imports and exports running at once, over all chats
+    private static final long MAX_DOCUMENT_BYTES = 50L * 1024 * 1024; // Bot API limit for uploaded documents
+    private static final long UPLOAD_TIMEOUT_SECONDS = 300; // Longest wait for an export upload, queue included
+    private static final long PROGRESS_MESSAGE_TIMEOUT_SECONDS = 60; // Longest wait for the import progress message, queue included
+    private static final long IMPORT_PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final String DEFAULT_TAIL_WINDOW_ROWS = "20"; // Smallest row window read from the end of a sheet
+    private static final String DEFAULT_METADATA_TTL_SECONDS = "60"; // How long the sheet list is served without refresh
+    private static final String DEFAULT_APPEND_BATCH_ROWS = "20"; // Rows per sheet that trigger an immediate append
+    private static final String DEFAULT_APPEND_LINGER_MS = "500"; // How long a new row waits for others to join its batch
+    private static final String DEFAULT_TELEGRAM_GLOBAL_RATE = "30"; // Bot API limit for all chats, messages per second
+    private static final String DEFAULT_TELEGRAM_CHAT_RATE = "1"; // Bot API limit for a single chat, messages per second
+    private static final String DEFAULT_TELEGRAM_CHAT_BURST = "3"; // Messages a chat may send back to back
+    private static final String DEFAULT_TELEGRAM_MAX_QUEUED = "100"; // Calls queued per chat before new ones are rejected
+    // Sheets API quotas are 60 reads and 60 writes per minute for one user, the service account here
+    private static final String DEFAULT_SHEETS_READ_RATE = "1"; // Requests per second
+    private static final String DEFAULT_SHEETS_READ_BURST = "20";
+    private static final String DEFAULT_SHEETS_WRITE_RATE = "1";
+    private static final String DEFAULT_SHEETS_WRITE_BURST = "10";
+    private static final String DEFAULT_SHEETS_MAX_CONCURRENT = "4"; // Sheets calls in flight at once
+    private static final String DEFAULT_SHEETS_MAX_RETRIES = "5";
+    private static final String DEFAULT_SHEETS_READ_MODE = "replica"; // "replica", "tail" or "full"
+    private static final String DEFAULT_REPLICA_MAX_ROWS = "1000"; // Last rows of a sheet kept in memory
+    private static final String DEFAULT_REPLICA_MAX_MB = "64";
+    private static final String DEFAULT_REPLICA_SYNC_SECONDS = "15"; // How often grid sizes are checked for new rows
+    private static final String DEFAULT_REPLICA_VERIFY_SECONDS = "300"; // Longest time a sheet goes without a check for edits
+    private static final String DEFAULT_PREFETCH_SHEETS = "2"; // Sheets read ahead when a chat is shown the sheet menu
+    private static final String DEFAULT_PREFETCH_PER_MINUTE = "6"; // Prefetch budget, a tenth of the read quota
+    private static final String DEFAULT_PREFETCH_TTL_SECONDS = "30"; // How long a prefetched tail is served
+    private static final String DEFAULT_SEARCH_CHUNK_ROWS = "5000"; // Rows per read when older rows are indexed for /find
+    private static final String DEFAULT_SEARCH_REBUILD_HOURS = "6"; // Age after which older rows are indexed again, for edits
+    private static final String DEFAULT_METRICS_HOST = "127.0.0.1"; // Only local scrapes unless configured otherwise
+    private static final String DEFAULT_METRICS_PORT = "9091";
+
+    public static Sheets getSheetsService(int maxConnections) throws IOException, GeneralSecurityException {
         ServiceAccountCredentials credentials = ServiceAccountCredentials.fromStream(new FileInputStream(CREDENTIALS_FILE_PATH));
         logger.info("Google Sheets service credentials loaded from {}", CREDENTIALS_FILE_PATH);
-        return new Sheets.Builder(
-                GoogleNetHttpTransport.newTrustedTransport(),
-                GsonFactory.getDefaultInstance(),
-                new HttpCredentialsAdapter(credentials))
-                .setApplicationName(APPLICATION_NAME).build();
+        return SheetsRequests.newService(SheetsRequests.sharedTransport(maxConnections),
+                new HttpCredentialsAdapter(credentials));
     }
 
     @NotNull
-    private static SendMessage getSendMessage(final long chatId, final List<String> sheetNames) {
+    static SendMessage getSendMessage(final long chatId, final List<String> sheetNames) {
         SendMessage message = new SendMessage(String.valueOf(chatId), "Пожалуйста, выберите лист:");
+        message.setReplyMarkup(getSheetPickerKeyboard(sheetNames));
+        return message;
+    }
 
+    static ReplyKeyboardMarkup getSheetPickerKeyboard(List<String> sheetNames) {
         List<KeyboardRow> keyboard = new ArrayList<>();
         for (String sheetName : sheetNames) {
             KeyboardRow row = new KeyboardRow();
@@ -101,34 +232,388 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
         ReplyKeyboardMarkup keyboardMarkup = new ReplyKeyboardMarkup(keyboard);
         keyboardMarkup.setResizeKeyboard(true);
         keyboardMarkup.setOneTimeKeyboard(true);
-        message.setReplyMarkup(keyboardMarkup);
-        return message;
+        return keyboardMarkup;
+    }
+
+    static InlineKeyboardMarkup getSheetDataKeyboard(int sheetId, int headerVersion) {
+        return getSheetDataKeyboard(sheetId, headerVersion, -1, -1);
+    }
+
+    /**
+     * Keyboard under a page of rows. {@code olderEnd} and {@code newerEnd} are the last sheet rows of the pages
+     * before and after it, or -1 if there is none. The add button carries the version of the header shown.
+     */
+    static InlineKeyboardMarkup getSheetDataKeyboard(int sheetId, int headerVersion, int olderEnd, int newerEnd) {
+        List<InlineKeyboardRow> rowInline = new ArrayList<>();
+        InlineKeyboardRow pagingRow = new InlineKeyboardRow();
+        if (olderEnd > 0) {
+            InlineKeyboardButton olderButton = new InlineKeyboardButton("◀ Раньше");
+            olderButton.setCallbackData(CallbackData.encode(CallbackAction.SHOW_PAGE, sheetId, olderEnd, 0));
+            pagingRow.add(olderButton);
+        }
+        if (newerEnd > 0) {
+            InlineKeyboardButton newerButton = new InlineKeyboardButton("Позже ▶");
+            newerButton.setCallbackData(CallbackData.encode(CallbackAction.SHOW_PAGE, sheetId, newerEnd, 0));
+            pagingRow.add(newerButton);
+        }
+        if (!pagingRow.isEmpty()) {
+            rowInline.add(pagingRow);
+        }
+
+        // Add "Add New Row" button
+        InlineKeyboardButton addNewButton = new InlineKeyboardButton("➕ Добавить новую строку");
+        addNewButton.setCallbackData(CallbackData.encode(CallbackAction.ADD_NEW_ROW, sheetId, -1, headerVersion));
+        rowInline.add(new InlineKeyboardRow(addNewButton));
+
+        InlineKeyboardButton backButton = new InlineKeyboardButton("Назад");
+        backButton.setCallbackData(CallbackData.encode(CallbackAction.BACK_TO_SHEET_SELECTION));
+        rowInline.add(new InlineKeyboardRow(backButton)); // Add the back button to a new row
+        return new InlineKeyboardMarkup(rowInline);
+    }
+
+    /**
+     * Keyboard under a value prompt. Like the column selection, it belongs to the draft of one sheet and header.
+     */
+    static InlineKeyboardMarkup getBackToColumnSelectionKeyboard(int sheetId, int headerVersion) {
+        InlineKeyboardButton backToColumnSelectionButton = new InlineKeyboardButton("Назад");
+        backToColumnSelectionButton.setCallbackData(
+                CallbackData.encode(CallbackAction.BACK_TO_COLUMN_SELECTION, sheetId, -1, headerVersion));
+        return new InlineKeyboardMarkup(List.of(new InlineKeyboardRow(backToColumnSelectionButton)));
+    }
+
+    static InlineKeyboardMarkup getColumnSelectionKeyboard(int sheetId, int headerVersion, List<Object> headers) {
+        List<InlineKeyboardRow> keyboard = new ArrayList<>();
+        for (int i = 0; i < headers.size(); i++) {
+            // Each button on its own row for clarity in this version
+            InlineKeyboardRow buttonRow = new InlineKeyboardRow();
+            InlineKeyboardButton button = new InlineKeyboardButton(String.valueOf(headers.get(i)));
+            button.setCallbackData(CallbackData.encode(CallbackAction.EDIT_COLUMN_INDEX, sheetId, i, headerVersion));
+            buttonRow.add(button);
+            keyboard.add(buttonRow);
+        }
+
+        InlineKeyboardRow finalActionsRow = new InlineKeyboardRow();
+        InlineKeyboardButton doneButton = new InlineKeyboardButton("✅ Готово");
+        doneButton.setCallbackData(CallbackData.encode(CallbackAction.DONE_EDITING, sheetId, -1, headerVersion));
+        finalActionsRow.add(doneButton);
+
+        InlineKeyboardButton cancelButton = new InlineKeyboardButton("❌ Отмена");
+        cancelButton.setCallbackData(CallbackData.encode(CallbackAction.CANCEL_EDITING, sheetId, -1, headerVersion));
+        finalActionsRow.add(cancelButton);
+
+        keyboard.add(finalActionsRow);
+        return new InlineKeyboardMarkup(keyboard);
+    }
+
+    /**
+     * Shared header and template snapshot a session edits the sheet with.
+     */
+    static SheetTemplate getSheetTemplate(String sheetName, List<Object> headerRow, List<List<Object>> lastRows) {
+        List<Object> header = headerRow != null ? headerRow : List.of();
+        return SheetTemplate.of(sheetName, header, getTemplateRow(header, lastRows));
+    }
+
+    /**
+     * Row a new entry starts from: the last data row, or empty cells under the header if there are no rows yet.
+     * The last row is returned as is, {@link SheetTemplate} copies it only for a new snapshot.
+     */
+    static List<Object> getTemplateRow(List<Object> headerRow, List<List<Object>> lastRows) {
+        if (!lastRows.isEmpty()) {
+            return lastRows.get(lastRows.size() - 1);
+        }
+        List<Object> emptyTemplate = new ArrayList<>();
+        if (headerRow != null) {
+            for (int i = 0; i < headerRow.size(); i++) {
+                emptyTemplate.add("");
+            }
+        }
+        return emptyTemplate;
     }
 
     private final String botToken;
     private final String spreadsheetId;
-    private final Map<Long, UserState> userStates = new HashMap<>();
-    private TelegramClient telegramClient;
-    private Sheets sheetsService;
+    private final SessionStore userStates;
+    private SessionJournal sessionJournal;
+    private final UpdateDispatcher dispatcher;
+    private final TelegramClient telegramClient;
+    private final TelegramSendQueue sendQueue;
+    private final Sheets sheetsService;
+    private SheetsRequestScheduler sheetsScheduler;
+    private SheetMetadataCache metadataCache;
+    private SheetTailReader tailReader;
+    private SheetAppendBatcher appendBatcher;
+    private SheetReplica replica;
+    private SheetPrefetcher prefetcher;
+    private RowOutbox outbox;
+    private SheetSearchIndex searchIndex;
+    private int searchChunkRows;
+    private long searchRebuildMillis;
+    private final Set<String> sheetsBeingIndexed = ConcurrentHashMap.newKeySet(); // Archives read in the background
+    private final int defaultPageSize;
+    private final KeyboardCache keyboardCache = new KeyboardCache();
+    private final CallbackHandler[] callbackHandlers = newCallbackHandlers();
+    private SheetRowImporter rowImporter;
+    private SheetCsvExporter csvExporter;
+    private ExecutorService fileExecutor;
+    private final Set<Long> activeFileTasks = ConcurrentHashMap.newKeySet(); // Chats with an import or export running
+    private final SheetTableRenderer tableRenderer = new SheetTableRenderer();
+    private final BotMetrics metrics = new BotMetrics();
+    private MetricsServer metricsServer;
+    private final boolean tailReadEnabled;
 
     public HomelessGoogleSheetsBot(Properties properties) {
+        this(properties, new OkHttpTelegramClient(properties.getProperty("tg.bot.token")), createSheetsService(
+                Integer.parseInt(properties.getProperty("sheets.max.concurrent", DEFAULT_SHEETS_MAX_CONCURRENT))));
+    }
+
+    /**
+     * Builds the bot on the given clients, e.g. local stand-ins in the load test. Without a Sheets service the bot
+     * starts, but every spreadsheet action fails, the same as when the credentials cannot be loaded.
+     */
+    HomelessGoogleSheetsBot(Properties properties, TelegramClient telegramClient, Sheets sheetsService) {
         this.botToken = properties.getProperty("tg.bot.token");
         this.spreadsheetId = properties.getProperty("spreadsheet.id");
-        this.telegramClient = new OkHttpTelegramClient(this.botToken);
+        this.telegramClient = telegramClient;
+        this.sheetsService = sheetsService;
+        this.sendQueue = new TelegramSendQueue(telegramClient,
+                Double.parseDouble(properties.getProperty("telegram.rate.global", DEFAULT_TELEGRAM_GLOBAL_RATE)),
+                Double.parseDouble(properties.getProperty("telegram.rate.chat", DEFAULT_TELEGRAM_CHAT_RATE)),
+                Double.parseDouble(properties.getProperty("telegram.rate.chat.burst", DEFAULT_TELEGRAM_CHAT_BURST)),
+                Integer.parseInt(properties.getProperty("telegram.queue.max.per.chat", DEFAULT_TELEGRAM_MAX_QUEUED)),
+                metrics, this::onSendFailed);
+        int maxConcurrency = Integer.parseInt(properties.getProperty("dispatcher.max.concurrency", DEFAULT_MAX_CONCURRENCY));
+        this.dispatcher = new UpdateDispatcher(maxConcurrency, this::consume);
+        int maxSessions = Integer.parseInt(properties.getProperty("sessions.max.size", DEFAULT_MAX_SESSIONS));
+        long sessionIdleMinutes = Long.parseLong(properties.getProperty("sessions.idle.minutes", DEFAULT_SESSION_IDLE_MINUTES));
+        this.userStates = new SessionStore(maxSessions, sessionIdleMinutes, TimeUnit.MINUTES);
+        if (Boolean.parseBoolean(properties.getProperty("sessions.journal.enabled", "true"))) {
+            openSessionJournal(properties, TimeUnit.MINUTES.toMillis(sessionIdleMinutes));
+        }
+        this.defaultPageSize = Math.min(MAX_PAGE_SIZE,
+                Math.max(1, Integer.parseInt(properties.getProperty("sheets.page.size", DEFAULT_PAGE_SIZE))));
+        String readMode = properties.getProperty("sheets.read.mode", DEFAULT_SHEETS_READ_MODE);
+        this.tailReadEnabled = !"full".equalsIgnoreCase(readMode);
+        if (Boolean.parseBoolean(properties.getProperty("metrics.enabled", "true"))) {
+            startMetricsServer(properties);
+        }
+        if (sheetsService == null) {
+            return;
+        }
         try {
-            sheetsService = getSheetsService();
+            int tailWindowRows = Integer.parseInt(properties.getProperty("sheets.tail.window.rows", DEFAULT_TAIL_WINDOW_ROWS));
+            long metadataTtlSeconds = Long.parseLong(properties.getProperty("sheets.metadata.ttl.seconds", DEFAULT_METADATA_TTL_SECONDS));
+            sheetsScheduler = new SheetsRequestScheduler(
+                    Double.parseDouble(properties.getProperty("sheets.rate.read", DEFAULT_SHEETS_READ_RATE)),
+                    Double.parseDouble(properties.getProperty("sheets.rate.read.burst", DEFAULT_SHEETS_READ_BURST)),
+                    Double.parseDouble(properties.getProperty("sheets.rate.write", DEFAULT_SHEETS_WRITE_RATE)),
+                    Double.parseDouble(properties.getProperty("sheets.rate.write.burst", DEFAULT_SHEETS_WRITE_BURST)),
+                    Integer.parseInt(properties.getProperty("sheets.max.concurrent", DEFAULT_SHEETS_MAX_CONCURRENT)),
+                    Integer.parseInt(properties.getProperty("sheets.retry.max", DEFAULT_SHEETS_MAX_RETRIES)),
+                    metrics);
+            metadataCache = new SheetMetadataCache(sheetsService, spreadsheetId, metadataTtlSeconds * 1000L, sheetsScheduler);
+            tailReader = new SheetTailReader(sheetsService, spreadsheetId, metadataCache, tailWindowRows, sheetsScheduler);
+            int appendBatchRows = Integer.parseInt(properties.getProperty("sheets.append.batch.rows", DEFAULT_APPEND_BATCH_ROWS));
+            long appendLingerMillis = Long.parseLong(properties.getProperty("sheets.append.linger.ms", DEFAULT_APPEND_LINGER_MS));
+            appendBatcher = new SheetAppendBatcher(sheetsService, spreadsheetId, metadataCache,
+                    appendBatchRows, appendLingerMillis, sheetsScheduler);
+            if ("replica".equalsIgnoreCase(readMode)) {
+                replica = new SheetReplica(sheetsService, spreadsheetId, metadataCache, tailReader, sheetsScheduler,
+                        Integer.parseInt(properties.getProperty("sheets.replica.max.rows", DEFAULT_REPLICA_MAX_ROWS)),
+                        Long.parseLong(properties.getProperty("sheets.replica.max.mb", DEFAULT_REPLICA_MAX_MB)) << 20,
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(
+                                properties.getProperty("sheets.replica.sync.seconds", DEFAULT_REPLICA_SYNC_SECONDS))),
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(
+                                properties.getProperty("sheets.replica.verify.seconds", DEFAULT_REPLICA_VERIFY_SECONDS))),
+                        metrics);
+            }
+            searchIndex = new SheetSearchIndex();
+            searchChunkRows = Integer.parseInt(properties.getProperty("sheets.search.chunk.rows", DEFAULT_SEARCH_CHUNK_ROWS));
+            searchRebuildMillis = TimeUnit.HOURS.toMillis(Long.parseLong(
+                    properties.getProperty("sheets.search.rebuild.hours", DEFAULT_SEARCH_REBUILD_HOURS)));
+            metrics.gauge("bot_search_index_tokens", "Distinct tokens in the /find index.", searchIndex::getTokenCount);
+            if (replica != null) {
+                replica.setChangeListener(searchIndex);
+                replica.preload(); // /find answers from memory from the first query on
+            }
+            if (tailReadEnabled && Boolean.parseBoolean(properties.getProperty("sheets.prefetch.enabled", "true"))) {
+                // With a replica, prefetches load the sheets it dropped or marked stale
+                prefetcher = new SheetPrefetcher(tailReader, replica, sheetsScheduler,
+                        Integer.parseInt(properties.getProperty("sheets.prefetch.sheets", DEFAULT_PREFETCH_SHEETS)),
+                        Double.parseDouble(properties.getProperty("sheets.prefetch.per.minute", DEFAULT_PREFETCH_PER_MINUTE)),
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(
+                                properties.getProperty("sheets.prefetch.ttl.seconds", DEFAULT_PREFETCH_TTL_SECONDS))),
+                        metrics);
+            }
+            rowImporter = new SheetRowImporter(sheetsService, spreadsheetId, sheetsScheduler,
+                    Integer.parseInt(properties.getProperty("sheets.import.chunk.rows", DEFAULT_IMPORT_CHUNK_ROWS)),
+                    Integer.parseInt(properties.getProperty("sheets.import.max.rows", DEFAULT_IMPORT_MAX_ROWS)));
+            csvExporter = new SheetCsvExporter(tailReader,
+                    Integer.parseInt(properties.getProperty("sheets.export.chunk.rows", DEFAULT_EXPORT_CHUNK_ROWS)),
+                    MAX_DOCUMENT_BYTES);
+            fileExecutor = Executors.newFixedThreadPool(
+                    Integer.parseInt(properties.getProperty("sheets.file.threads", DEFAULT_FILE_THREADS)), runnable -> {
+                        Thread thread = new Thread(runnable, "sheet-files");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            if (Boolean.parseBoolean(properties.getProperty("sheets.outbox.enabled", "true"))) {
+                openOutbox(properties);
+            }
             logger.info("HomelessGoogleSheetsBot initialized successfully. Spreadsheet ID: {}", spreadsheetId);
         } catch (Exception e) {
             logger.error("Error initializing HomelessGoogleSheetsBot or Google Sheets service.", e);
         }
     }
 
+    private static Sheets createSheetsService(int maxConnections) {
+        try {
+            return getSheetsService(maxConnections);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            logger.error("Error initializing Google Sheets service.", e);
+            return null;
+        }
+    }
+
+    private void startMetricsServer(Properties properties) {
+        metrics.gauge("bot_dispatcher_queue_depth", "Updates waiting for a worker.", dispatcher::getQueueDepth);
+        metrics.gauge("bot_dispatcher_active_chats", "Chats with updates in flight.", dispatcher::getActiveChats);
+        metrics.gauge("bot_sessions", "Sessions held in memory.", userStates::size);
+        metrics.counter("bot_session_evictions", "Sessions dropped by idle time or size pressure.", userStates::evictionCount);
+        metrics.gauge("bot_telegram_queued_calls", "Telegram calls waiting to be sent.", sendQueue::getQueuedCount);
+        String host = properties.getProperty("metrics.host", DEFAULT_METRICS_HOST);
+        int port = Integer.parseInt(properties.getProperty("metrics.port", DEFAULT_METRICS_PORT));
+        try {
+            metricsServer = new MetricsServer(host, port, metrics);
+        } catch (IOException e) {
+            logger.error("Failed to start metrics endpoint on {}:{}", host, port, e);
+        }
+    }
+
+    private void openSessionJournal(Properties properties, long sessionIdleMillis) {
+        Path journalDir = Paths.get(properties.getProperty("sessions.journal.dir", DEFAULT_JOURNAL_DIR));
+        int segmentBytes = Integer.parseInt(properties.getProperty("sessions.journal.segment.mb", DEFAULT_JOURNAL_SEGMENT_MB)) << 20;
+        SessionJournal journal = new SessionJournal(journalDir, segmentBytes);
+        try {
+            int restored = journal.open(sessionIdleMillis);
+            userStates.setEvictionListener(journal::recordRemove);
+            userStates.setMissLoader(journal::restore); // Replayed sessions are decoded when their chat returns
+            sessionJournal = journal;
+            logger.info("Restored {} sessions from {}", restored, journalDir);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to open session journal in {}, sessions will not survive a restart", journalDir, e);
+        }
+    }
+
+    private void openOutbox(Properties properties) {
+        Path outboxDir = Paths.get(properties.getProperty("sheets.outbox.dir", DEFAULT_OUTBOX_DIR));
+        RowOutbox rowOutbox = new RowOutbox(outboxDir, appendBatcher, tailReader, metrics);
+        try {
+            int replayed = rowOutbox.open(this::onOutboxResult);
+            outbox = rowOutbox;
+            logger.info("Row outbox opened in {}, {} rows left from the last run", outboxDir, replayed);
+        } catch (IOException | RuntimeException e) {
+            rowOutbox.close();
+            logger.error("Failed to open row outbox in {}, rows are appended directly", outboxDir, e);
+        }
+    }
+
+    private void onOutboxResult(RowOutbox.Entry entry, int rowNumber, Throwable error) {
+        String sheetName = entry.getSheetName();
+        if (error != null) {
+            editAppendResult(entry.getChatId(), entry.getMessageId(),
+                    "❌ Таблица не приняла строку для " + sheetName + ": " + error.getMessage());
+            return;
+        }
+        logger.info("Outbox stored row {} in sheet {} for user {}", rowNumber, sheetName, entry.getChatId());
+        if (replica != null) {
+            replica.onRowAppended(sheetName, rowNumber, entry.getRow());
+        }
+        if (prefetcher != null) {
+            prefetcher.invalidate(sheetName);
+        }
+        editAppendResult(entry.getChatId(), entry.getMessageId(), "✅ Новая строка успешно добавлена в " + sheetName + "!");
+    }
+
+    private void persistSession(long chatId) {
+        if (sessionJournal == null) {
+            return;
+        }
+        UserState userState = userStates.get(chatId);
+        if (userState != null) {
+            sessionJournal.recordPut(chatId, userState);
+        }
+    }
+
+    /**
+     * Stops taking updates and writes out rows and messages that are still queued.
+     */
+    void shutdown() {
+        logger.info("Shutting down HomelessGoogleSheetsBot...");
+        try {
+            dispatcher.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (appendBatcher != null) {
+                appendBatcher.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            if (outbox != null) {
+                outbox.close(); // After the batcher, so rows it still wrote are marked done
+            }
+            if (fileExecutor != null) {
+                fileExecutor.shutdownNow(); // An interrupted import reports how many rows it added
+            }
+            if (replica != null) {
+                replica.shutdown();
+            }
+            if (prefetcher != null) {
+                prefetcher.shutdown();
+            }
+            sendQueue.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS); // After the batcher, it still reports results
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            if (sessionJournal != null) {
+                sessionJournal.close(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while shutting down", e);
+        }
+        logger.info("HomelessGoogleSheetsBot shut down.");
+    }
+
     private String quoteSheetName(String sheetName) {
         return "'" + sheetName.replace("'", "''") + "'";
     }
 
     @Override
+    public void consume(final List<Update> updates) {
+        updates.forEach(dispatcher::submit);
+        logger.debug("Dispatched {} updates. Queue depth: {}, active chats: {}, sessions: {}, evicted sessions: {}, queued sends: {}",
+                updates.size(),
+                dispatcher.getQueueDepth(),
+                dispatcher.getActiveChats(),
+                userStates.size(),
+                userStates.evictionCount(),
+                sendQueue.getQueuedCount());
+    }
+
+    /**
+     * Handles a single update. Called by the dispatcher, never concurrently for the same chat.
+     */
     public void consume(final Update update) {
+        long started = System.nanoTime();
+        BotMetrics.Outcome outcome = BotMetrics.Outcome.ERROR;
+        try {
+            outcome = handleUpdate(update) ? BotMetrics.Outcome.SUCCESS : BotMetrics.Outcome.ERROR;
+        } finally {
+            persistSession(UpdateDispatcher.chatIdOf(update));
+            metrics.recordUpdate(BotMetrics.UpdateType.of(update), outcome, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Returns {@code false} if handling failed and the user got an error message.
+     */
+    private boolean handleUpdate(final Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             String messageText = update.getMessage().getText();
             long chatId = update.getMessage().getChatId();
@@ -141,6 +626,15 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
                 } else if (messageText.equals("/sheets")) {
                     logger.debug("Processing /sheets command for chatId {}", chatId);
                     listAvailableSheets(chatId);
+                } else if (messageText.equals("/pagesize") || messageText.startsWith("/pagesize ")) {
+                    logger.debug("Processing /pagesize command for chatId {}", chatId);
+                    setPageSize(chatId, messageText.substring("/pagesize".length()).trim());
+                } else if (messageText.equals("/export") || messageText.startsWith("/export ")) {
+                    logger.debug("Processing /export command for chatId {}", chatId);
+                    exportSheet(chatId, messageText.substring("/export".length()).trim());
+                } else if (messageText.equals("/find") || messageText.startsWith("/find ")) {
+                    logger.debug("Processing /find command for chatId {}", chatId);
+                    findRows(chatId, messageText.substring("/find".length()).trim());
                 } else {
                     logger.debug("Processing user input for chatId {}: {}", chatId, messageText);
                     processUserInput(chatId, messageText, messageId);
@@ -148,6 +642,18 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             } catch (Exception e) {
                 logger.error("Error processing message from chatId {}: {}", chatId, messageText, e);
                 sendErrorMessage(chatId, "Ошибка при обработке вашего запроса: " + e.getMessage());
+                return false;
+            }
+        } else if (update.hasMessage() && update.getMessage().hasDocument()) {
+            long chatId = update.getMessage().getChatId();
+            Document document = update.getMessage().getDocument();
+            logger.info("Received document {} ({} bytes) from chatId {}", document.getFileName(), document.getFileSize(), chatId);
+            try {
+                importDocument(chatId, document);
+            } catch (Exception e) {
+                logger.error("Error processing document from chatId {}", chatId, e);
+                sendErrorMessage(chatId, "Ошибка при обработке файла: " + e.getMessage());
+                return false;
             }
         } else if (update.hasCallbackQuery()) {
             long chatId = update.getCallbackQuery().getMessage().getChatId();
@@ -159,17 +665,418 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             } catch (Exception e) {
                 logger.error("Error processing callback query from chatId {}: {}", chatId, callbackData, e);
                 sendErrorMessage(chatId, "Ошибка при обработке вашего выбора: " + e.getMessage());
+                return false;
             }
         }
+        return true;
     }
 
     private void sendStartMessage(long chatId) throws TelegramApiException {
         SendMessage message = new SendMessage(String.valueOf(chatId), "Добро пожаловать в Homeless Sheets Bot!\n\n" +
-                "Используйте /sheets, чтобы увидеть доступные таблицы.");
+                "Используйте /sheets, чтобы увидеть доступные таблицы, или /find <текст>, чтобы найти запись.\n" +
+                "/export <лист> пришлёт лист файлом CSV.");
         execute(message);
         logger.debug("Sent start message to chatId {}", chatId);
     }
 
+    /**
+     * Starts importing an uploaded CSV or XLSX file into the sheet the chat has open. The file is downloaded and
+     * parsed on an import thread, the chat sees one message with the progress.
+     */
+    private void importDocument(long chatId, Document document) throws TelegramApiException {
+        UserState userState = userStates.get(chatId);
+        if (userState == null || userState.getSheetNameForEditing() == null || userState.getHeaderRowForEditing().isEmpty()) {
+            sendMessage(chatId, "Сначала откройте лист через /sheets, затем пришлите файл CSV или XLSX с названиями столбцов в первой строке.");
+            return;
+        }
+        if (rowImporter == null) {
+            sendErrorMessage(chatId, "Импорт сейчас недоступен.");
+            return;
+        }
+        String fileName = document.getFileName() != null ? document.getFileName().toLowerCase(Locale.ROOT) : "";
+        boolean xlsx = fileName.endsWith(".xlsx");
+        boolean csv = fileName.endsWith(".csv") || fileName.endsWith(".txt") || "text/csv".equals(document.getMimeType());
+        if (!xlsx && !csv) {
+            sendMessage(chatId, "Поддерживаются файлы CSV и XLSX.");
+            return;
+        }
+        if (!activeFileTasks.add(chatId)) {
+            sendMessage(chatId, "Импорт или выгрузка уже идёт, дождитесь окончания.");
+            return;
+        }
+        String sheetName = userState.getSheetNameForEditing();
+        List<Object> header = new ArrayList<>(userState.getHeaderRowForEditing());
+        CompletableFuture<Message> progressMessage;
+        try {
+            progressMessage = sendQueue.submit(chatId,
+                    new SendMessage(String.valueOf(chatId), "📥 Загружаем файл для листа " + sheetName + "..."));
+            fileExecutor.execute(() -> {
+                try {
+                    runImport(chatId, sheetName, header, document, xlsx, progressMessage);
+                } finally {
+                    activeFileTasks.remove(chatId);
+                }
+            });
+        } catch (TelegramApiException | RuntimeException e) {
+            activeFileTasks.remove(chatId);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a whole sheet as a CSV document. Without a name, exports the sheet the chat has open.
+     */
+    private void exportSheet(long chatId, String sheetName) throws IOException, TelegramApiException {
+        if (sheetName.isEmpty()) {
+            UserState userState = userStates.get(chatId);
+            sheetName = userState != null && userState.getSheetNameForEditing() != null ? userState.getSheetNameForEditing() : "";
+        }
+        List<String> sheetTitles = metadataCache.get().getSheetTitles();
+        SheetMetadataCache.SheetInfo sheetInfo = sheetName.isEmpty() ? null : metadataCache.getSheet(sheetName);
+        if (sheetInfo == null) {
+            for (String title : sheetTitles) {
+                if (title.equalsIgnoreCase(sheetName)) {
+                    sheetInfo = metadataCache.getSheet(title);
+                    break;
+                }
+            }
+        }
+        if (sheetInfo == null) {
+            List<String> escapedTitles = new ArrayList<>(sheetTitles.size());
+            for (String title : sheetTitles) {
+                escapedTitles.add(SheetTableRenderer.escapeMarkdown(title));
+            }
+            sendMessage(chatId, "Укажите лист, например: /export " + (escapedTitles.isEmpty() ? "Лист1" : escapedTitles.get(0))
+                    + "\nДоступные листы: " + String.join(", ", escapedTitles));
+            return;
+        }
+        if (csvExporter == null) {
+            sendErrorMessage(chatId, "Выгрузка сейчас недоступна.");
+            return;
+        }
+        if (!activeFileTasks.add(chatId)) {
+            sendMessage(chatId, "Импорт или выгрузка уже идёт, дождитесь окончания.");
+            return;
+        }
+        SheetMetadataCache.SheetInfo exported = sheetInfo;
+        try {
+            sendMessage(chatId, "📤 Готовим выгрузку листа " + exported.getTitle() + "...");
+            fileExecutor.execute(() -> {
+                try {
+                    runExport(chatId, exported);
+                } finally {
+                    activeFileTasks.remove(chatId);
+                }
+            });
+        } catch (TelegramApiException | RuntimeException e) {
+            activeFileTasks.remove(chatId);
+            throw e;
+        }
+    }
+
+    private void runExport(long chatId, SheetMetadataCache.SheetInfo sheetInfo) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("export-", ".csv");
+            long rows;
+            try (OutputStream out = Files.newOutputStream(file)) {
+                rows = csvExporter.export(sheetInfo, out);
+            }
+            String fileName = sheetInfo.getTitle().replaceAll("[\\\\/:*?\"<>|]", "_") + "_" + LocalDate.now() + ".csv";
+            SendDocument sendDocument = new SendDocument(String.valueOf(chatId), new InputFile(file.toFile(), fileName));
+            sendDocument.setCaption("Лист " + sheetInfo.getTitle() + ": строк " + rows);
+            // Waits for the upload, the file is deleted afterwards
+            sendQueue.submitUpload(chatId, sendDocument).get(UPLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                e = (Exception) e.getCause();
+            }
+            logger.error("Export of sheet {} for chatId {} failed", sheetInfo.getTitle(), chatId, e);
+            sendErrorMessage(chatId, "Не удалось выгрузить лист " + sheetInfo.getTitle() + ": " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("Could not delete export file {}", file, e);
+                }
+            }
+        }
+    }
+
+    private void runImport(long chatId, String sheetName, List<Object> header, Document document, boolean xlsx,
+                           CompletableFuture<Message> progressMessage) {
+        java.io.File downloaded = null;
+        int messageId = -1;
+        SheetRowImporter.Result result = null;
+        try {
+            messageId = progressMessage.get(PROGRESS_MESSAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS).getMessageId();
+            org.telegram.telegrambots.meta.api.objects.File file = telegramClient.execute(new GetFile(document.getFileId()));
+            downloaded = telegramClient.downloadFile(file); // A temporary file, rows are streamed from disk
+            int progressMessageId = messageId;
+            long[] lastReport = {System.nanoTime()};
+            try (RowReader reader = xlsx ? new XlsxRowReader(downloaded.toPath()) : new CsvRowReader(downloaded.toPath())) {
+                result = rowImporter.importRows(sheetName, header, reader, progress -> {
+                    long now = System.nanoTime();
+                    if (progress.isDone() || now - lastReport[0] >= IMPORT_PROGRESS_INTERVAL_NANOS) {
+                        lastReport[0] = now;
+                        editAppendResult(chatId, progressMessageId, describeImport(sheetName, progress));
+                    }
+                });
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.error("Import of {} for chatId {} failed", document.getFileName(), chatId, e);
+            String text = "❌ Не удалось импортировать файл: " + e.getMessage();
+            if (messageId > 0) {
+                editAppendResult(chatId, messageId, text);
+            } else {
+                sendErrorMessage(chatId, text);
+            }
+        } finally {
+            if (downloaded != null && !downloaded.delete()) {
+                downloaded.deleteOnExit();
+            }
+            if (result != null && result.getAppended() > 0) {
+                metadataCache.invalidate(); // The grid grew
+                if (replica != null) {
+                    replica.markStale(sheetName);
+                }
+                if (prefetcher != null) {
+                    prefetcher.invalidate(sheetName);
+                }
+            }
+        }
+    }
+
+    static String describeImport(String sheetName, SheetRowImporter.Result progress) {
+        StringBuilder text = new StringBuilder();
+        if (!progress.isDone()) {
+            text.append("📥 Импорт в ").append(sheetName).append(": добавлено ").append(progress.getAppended()).append(" строк...");
+            return text.toString();
+        }
+        if (progress.getError() != null) {
+            text.append("⚠️ Импорт в ").append(sheetName).append(" остановлен: ").append(progress.getError())
+                    .append(".\nДобавлено строк: ").append(progress.getAppended());
+        } else {
+            text.append("✅ Импорт в ").append(sheetName).append(" завершён.\nДобавлено строк: ").append(progress.getAppended());
+        }
+        if (progress.getSkipped() > 0) {
+            text.append("\nПропущено пустых или слишком длинных строк: ").append(progress.getSkipped());
+        }
+        if (!progress.getIgnoredColumns().isEmpty()) {
+            text.append("\nСтолбцы, которых нет в листе: ").append(String.join(", ", progress.getIgnoredColumns()));
+        }
+        return text.toString();
+    }
+
+    private int pageSizeOf(UserState userState) {
+        return userState != null && userState.getPageSize() > 0 ? userState.getPageSize() : defaultPageSize;
+    }
+
+    private void setPageSize(long chatId, String argument) throws TelegramApiException {
+        UserState userState = userStates.computeIfAbsent(chatId, k -> new UserState(UserState.State.IDLE, null));
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(argument);
+        } catch (NumberFormatException e) {
+            pageSize = 0;
+        }
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            sendMessage(chatId, "Сейчас на странице " + pageSizeOf(userState) + " строк. Чтобы изменить, напишите /pagesize и число от 1 до "
+                    + MAX_PAGE_SIZE + ", например: /pagesize 10");
+            return;
+        }
+        userState.setPageSize(pageSize);
+        sendMessage(chatId, "Теперь на странице " + pageSize + " строк.");
+    }
+
+    /**
+     * Answers {@code /find} from the search index, the newest matching rows of all sheets first. The rows the replica
+     * holds are searched in memory, older ones, and all of them without a replica, in the archive of the sheet. The
+     * reply names the rows whose archive is still being read.
+     */
+    private void findRows(long chatId, String query) throws IOException, TelegramApiException {
+        if (query.isEmpty()) {
+            sendMessage(chatId, "Напишите, что искать, например: /find Иванов");
+            return;
+        }
+        if (searchIndex == null) {
+            sendErrorMessage(chatId, "Поиск сейчас недоступен.");
+            return;
+        }
+        long started = System.nanoTime();
+        StringBuilder text = new StringBuilder();
+        List<String> unsearched = new ArrayList<>();
+        int found = 0;
+        for (String sheetName : metadataCache.get().getSheetTitles()) {
+            SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheet(sheetName);
+            if (sheetInfo == null) {
+                continue;
+            }
+            List<Object> header = sheetInfo.getHeaderRow();
+            int liveStart = Integer.MAX_VALUE; // First row searched in memory
+            if (replica != null) {
+                if (!searchIndex.isIndexed(sheetName)) {
+                    replica.tail(sheetName, 1); // Loads and indexes the sheet, only before the preload got to it
+                }
+                liveStart = searchIndex.liveStart(sheetName);
+                List<Object> replicaHeader = replica.header(sheetName);
+                if (replicaHeader != null) {
+                    header = replicaHeader;
+                }
+                for (int rowNumber : searchIndex.search(sheetName, query, MAX_FIND_RESULTS - found)) {
+                    List<Object> row = replica.row(sheetName, rowNumber);
+                    if (row == null) {
+                        continue; // Dropped from the replica since the search
+                    }
+                    appendFoundRow(text, sheetName, rowNumber, header, row);
+                    found++;
+                }
+            }
+            int untilRow = liveStart == Integer.MAX_VALUE ? Integer.MAX_VALUE : liveStart - 1; // Left to the archive
+            if (untilRow >= SheetTailReader.FIRST_DATA_ROW) {
+                if (!updateArchive(sheetName, sheetInfo.getRowCount(), untilRow)) {
+                    int from = searchIndex.archiveEnd(sheetName) + 1;
+                    unsearched.add(SheetTableRenderer.escapeMarkdown(sheetName) + " (строки " + from
+                            + (untilRow == Integer.MAX_VALUE ? " и ниже)" : "–" + untilRow + ")"));
+                }
+                if (found < MAX_FIND_RESULTS) {
+                    int belowRow = Math.min(untilRow, searchIndex.archiveEnd(sheetName)) + 1;
+                    found += appendArchivedRows(text, sheetName, header, query, MAX_FIND_RESULTS - found, belowRow);
+                }
+            }
+            if (found >= MAX_FIND_RESULTS) {
+                break;
+            }
+        }
+        logger.info("Found {} rows for '{}' in {} ms for chatId {}, {} sheets partly searched",
+                found, query, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), chatId, unsearched.size());
+        String note = unsearched.isEmpty() ? "" : "\n\n⏳ Ещё не проиндексированы, повторите поиск через минуту: "
+                + String.join(", ", unsearched);
+        if (found == 0) {
+            sendMessage(chatId, "🔎 Ничего не найдено по запросу: " + SheetTableRenderer.escapeMarkdown(query) + note);
+            return;
+        }
+        String title = found >= MAX_FIND_RESULTS ? "🔎 Первые " + found + " совпадений:" : "🔎 Найдено: " + found;
+        sendMessage(chatId, title + "\n" + text + note);
+    }
+
+    /**
+     * Brings the archive of the sheet up to {@code untilRow}, or to its end if that is {@link Integer#MAX_VALUE}.
+     * Only the few rows added since the last search are read right away, a whole archive is read in the
+     * background. Returns {@code false} while rows up to there are not in the archive yet.
+     */
+    private boolean updateArchive(String sheetName, int gridRows, int untilRow) {
+        if (searchIndex.isArchiveOlderThan(sheetName, searchRebuildMillis)) {
+            indexInBackground(sheetName, gridRows, untilRow, true); // Edited rows, the old archive serves meanwhile
+        }
+        if (!searchIndex.isArchiveBehind(sheetName, gridRows, untilRow)) {
+            return true;
+        }
+        if (replica == null && searchIndex.archiveEnd(sheetName) >= SheetTailReader.FIRST_DATA_ROW
+                && !sheetsBeingIndexed.contains(sheetName)) {
+            try {
+                searchIndex.extendArchive(sheetName, tailReader::readWindow, gridRows, untilRow, searchChunkRows);
+                return !searchIndex.isArchiveBehind(sheetName, gridRows, untilRow);
+            } catch (IOException e) {
+                logger.warn("Failed to index new rows of sheet {}", sheetName, e);
+                return false;
+            }
+        }
+        indexInBackground(sheetName, gridRows, untilRow, false);
+        return false;
+    }
+
+    private void indexInBackground(String sheetName, int gridRows, int untilRow, boolean rebuild) {
+        if (!sheetsBeingIndexed.add(sheetName)) {
+            return;
+        }
+        try {
+            fileExecutor.execute(() -> {
+                long started = System.nanoTime();
+                try {
+                    if (rebuild) {
+                        searchIndex.rebuildArchive(sheetName, tailReader::readWindow, gridRows, untilRow, searchChunkRows);
+                    } else {
+                        searchIndex.extendArchive(sheetName, tailReader::readWindow, gridRows, untilRow, searchChunkRows);
+                    }
+                    logger.info("Indexed rows of sheet {} up to row {} in {} ms", sheetName,
+                            searchIndex.archiveEnd(sheetName), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to index rows of sheet {}", sheetName, e);
+                } finally {
+                    sheetsBeingIndexed.remove(sheetName);
+                }
+            });
+        } catch (RuntimeException e) {
+            sheetsBeingIndexed.remove(sheetName);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the archive's matches below {@code belowRow} again with one call and appends those that still match,
+     * returns how many.
+     */
+    private int appendArchivedRows(StringBuilder text, String sheetName, List<Object> header, String query, int limit,
+                                   int belowRow) throws IOException {
+        List<Integer> rowNumbers = searchIndex.searchArchive(sheetName, query, limit, belowRow);
+        if (rowNumbers.isEmpty()) {
+            return 0;
+        }
+        List<List<Object>> rows = tailReader.readRows(sheetName, rowNumbers);
+        if (rows == null) {
+            return 0;
+        }
+        int found = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            if (SheetSearchIndex.matches(rows.get(i), query)) { // Edited since the archive was read otherwise
+                appendFoundRow(text, sheetName, rowNumbers.get(i), header, rows.get(i));
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static void appendFoundRow(StringBuilder text, String sheetName, int rowNumber, List<Object> header,
+                                       List<Object> row) {
+        text.append("\n*").append(SheetTableRenderer.escapeMarkdown(sheetName)).append("*, строка ")
+                .append(rowNumber).append(":\n")
+                .append(SheetTableRenderer.escapeMarkdown(describeRow(header, row)));
+    }
+
+    /**
+     * Non-empty cells of a row as "column: value", shortened to one readable line.
+     */
+    static String describeRow(List<Object> header, List<Object> row) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < row.size(); i++) {
+            String value = row.get(i) == null ? "" : String.valueOf(row.get(i)).trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            if (line.length() > 0) {
+                line.append("; ");
+            }
+            Object column = header != null && i < header.size() ? header.get(i) : null;
+            if (column != null && !String.valueOf(column).isBlank()) {
+                line.append(String.valueOf(column).trim()).append(": ");
+            }
+            line.append(value);
+        }
+        if (line.length() > MAX_FIND_LINE_LENGTH) {
+            line.setLength(MAX_FIND_LINE_LENGTH - 1);
+            line.append('…');
+        }
+        return line.toString();
+    }
+
     private void sendMessage(long chatId, String text) throws TelegramApiException {
         SendMessage message = new SendMessage(String.valueOf(chatId), text);
         message.setParseMode("Markdown");
@@ -177,9 +1084,24 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
         logger.debug("Sent message to chatId {}: {}", chatId, text.lines().findFirst().orElse(""));
     }
 
+    /**
+     * Tells the chat in plain text that an answer could not be shown, a draft would look frozen otherwise.
+     */
+    private void onSendFailed(long chatId, BotApiMethod<?> method, Throwable cause) {
+        if (method instanceof SendMessage && ((SendMessage) method).getText().startsWith(ERROR_PREFIX)) {
+            return; // An error message itself, reporting it would only fail again
+        }
+        if (cause instanceof TelegramApiRequestException && ((TelegramApiRequestException) cause).getApiResponse() != null
+                && ((TelegramApiRequestException) cause).getApiResponse().contains("message is not modified")) {
+            return; // The message already shows what the edit had
+        }
+        sendErrorMessage(chatId, "Не удалось показать ответ: " + cause.getMessage()
+                + ". Попробуйте ещё раз или начните заново с /sheets.");
+    }
+
     private void sendErrorMessage(long chatId, String errorText) {
         try {
-            SendMessage message = new SendMessage(String.valueOf(chatId), "❌ " + errorText);
+            SendMessage message = new SendMessage(String.valueOf(chatId), ERROR_PREFIX + errorText); // Plain text
             execute(message);
             logger.warn("Sent error message to chatId {}: {}", chatId, errorText);
         } catch (TelegramApiException e) {
@@ -188,21 +1110,23 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
     }
 
     private void execute(SendMessage message) throws TelegramApiException {
+        long started = System.nanoTime();
         try {
-            telegramClient.execute(message);
-            logger.trace("Executed SendMessage to chatId {}", message.getChatId());
+            sendQueue.submit(Long.parseLong(message.getChatId()), message); // The queue records the result
         } catch (TelegramApiException e) {
-            logger.error("Failed to execute SendMessage to chatId {}", message.getChatId(), e);
+            metrics.recordTelegramCall(BotMetrics.TelegramCall.SEND_MESSAGE, BotMetrics.Outcome.ERROR, System.nanoTime() - started);
+            logger.error("Failed to queue SendMessage to chatId {}", message.getChatId(), e);
             throw new TelegramApiException("Не удалось отправить сообщение", e);
         }
     }
 
     private void execute(EditMessageText message) throws TelegramApiException {
+        long started = System.nanoTime();
         try {
-            telegramClient.execute(message);
-            logger.trace("Executed EditMessageText for chatId {} messageId {}", message.getChatId(), message.getMessageId());
+            sendQueue.submit(Long.parseLong(message.getChatId()), message); // The queue records the result
         } catch (TelegramApiException e) {
-            logger.error("Failed to execute EditMessageText for chatId {} messageId {}",
+            metrics.recordTelegramCall(BotMetrics.TelegramCall.EDIT_MESSAGE_TEXT, BotMetrics.Outcome.ERROR, System.nanoTime() - started);
+            logger.error("Failed to queue EditMessageText for chatId {} messageId {}",
                     message.getChatId(),
                     message.getMessageId(),
                     e);
@@ -212,38 +1136,46 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
 
     private void listAvailableSheets(long chatId) throws IOException, TelegramApiException {
         logger.debug("Listing available sheets for chatId {}", chatId);
-        Spreadsheet spreadsheet = sheetsService.spreadsheets().get(this.spreadsheetId).execute();
-        List<Sheet> sheets = spreadsheet.getSheets();
+        List<String> sheetNames = metadataCache.get().getSheetTitles();
 
-        if (sheets.isEmpty()) {
+        if (sheetNames.isEmpty()) {
             logger.warn("No sheets found in spreadsheet {} for chatId {}", this.spreadsheetId, chatId);
             sendMessage(chatId, "В этой электронной таблице не найдено листов.");
             return;
         }
 
-        List<String> sheetNames = new ArrayList<>();
-        for (Sheet sheet : sheets) {
-            sheetNames.add(sheet.getProperties().getTitle());
-        }
         logger.info("Found sheets for chatId {}: {}", chatId, sheetNames);
 
-        userStates.put(chatId, new UserState(UserState.State.SELECTING_SHEET, sheetNames));
+        UserState previous = userStates.get(chatId);
+        UserState menuState = new UserState(UserState.State.SELECTING_SHEET, sheetNames);
+        menuState.setPageSize(previous != null ? previous.getPageSize() : 0); // Chosen with /pagesize, outlives the draft
+        userStates.put(chatId, menuState);
         logger.debug("Updated user state for chatId {} to SELECTING_SHEET", chatId);
 
-        SendMessage message = getSendMessage(chatId, sheetNames);
+        SendMessage message = new SendMessage(String.valueOf(chatId), "Пожалуйста, выберите лист:");
+        message.setReplyMarkup(keyboardCache.sheetPicker(sheetNames));
 
         execute(message);
+        if (prefetcher != null) {
+            prefetcher.onMenuShown(chatId, sheetNames, pageSizeOf(menuState)); // While the user picks
+        }
     }
 
     private void processUserInput(long chatId, String messageText, int messageId) throws IOException, TelegramApiException {
-        UserState userState = userStates.getOrDefault(chatId, new UserState(UserState.State.IDLE, null));
+        UserState userState = userStates.get(chatId);
+        if (userState == null) {
+            userState = new UserState(UserState.State.IDLE, null);
+        }
         logger.debug("Processing user input for chatId {} with state {}. Message: {}", chatId, userState.getState(), messageText);
 
         if (userState.getState() == UserState.State.SELECTING_SHEET) {
             List<String> availableSheets = userState.getAvailableSheets();
             if (availableSheets != null && availableSheets.contains(messageText)) {
                 logger.info("User {} selected sheet: {}", chatId, messageText);
-                fetchSheetData(chatId, messageText, DEFAULT_ROW_COUNT);
+                if (prefetcher != null) {
+                    prefetcher.recordSelection(chatId, messageText);
+                }
+                fetchSheetData(chatId, messageText, pageSizeOf(userState));
             } else {
                 logger.warn("User {} selected an invalid sheet: {}. Available: {}", chatId, messageText, availableSheets);
                 sendMessage(chatId,
@@ -251,7 +1183,9 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             }
         } else if (userState.getState() == UserState.State.AWAITING_NEW_VALUE_FOR_EDIT) {
             logger.info("User {} provided new value for edit: {}", chatId, messageText);
-            processProvidedValueForEdit(chatId, messageText, userState, messageId);
+            processProvidedValueForEdit(chatId, messageText, userState);
+        } else if (userState.getState() == UserState.State.AWAITING_COLUMN_TO_EDIT) {
+            processFastEntry(chatId, messageText, userState);
         } else {
             logger.warn("User {} sent message in unexpected state {}: {}", chatId, userState.getState(), messageText);
             sendMessage(chatId,
@@ -261,109 +1195,74 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
 
     private void fetchSheetData(long chatId, String sheetName, int rowCount) throws IOException, TelegramApiException {
         logger.info("Fetching sheet data for chatId {}, sheet: {}, rowCount: {}", chatId, sheetName, rowCount);
-        String range = quoteSheetName(sheetName);
-
-        ValueRange response = sheetsService.spreadsheets().values().get(this.spreadsheetId, range).execute();
-        List<List<Object>> values = response.getValues();
-
-        if (values == null || values.isEmpty()) {
-            logger.warn("No data found in sheet {} for chatId {}", sheetName, chatId);
-            sendMessage(chatId, "Нет данных в листе: " + sheetName);
-            return;
-        }
-        logger.debug("Fetched {} rows from sheet {} for chatId {}", values.size(), sheetName, chatId);
 
-        // Determine which rows to display
-        int totalRows = values.size();
-        List<List<Object>> lastRows;
         List<Object> headerRow = null;
-
-        if (totalRows > 0) {
-            headerRow = values.get(0); // Always get the header row
-        }
-
-        if (totalRows <= 1) { // Only header or no data
-            lastRows = new ArrayList<>(); // No data rows to show if only header or empty
-        } else if (totalRows <= rowCount + 1) { // Not enough rows to skip, show all data rows
-            lastRows = values.subList(1, totalRows);
-        } else { // Enough rows to show only the last 'rowCount' data rows
-            lastRows = values.subList(totalRows - rowCount, totalRows);
+        List<List<Object>> lastRows;
+        int firstShownRow; // Sheet row of lastRows.get(0)
+        SheetTailReader.TailWindow tail;
+        SheetTailReader.TailWindow prefetched = prefetcher != null ? prefetcher.take(sheetName, rowCount) : null;
+        if (prefetched != null) {
+            tail = prefetched;
+        } else if (replica != null) {
+            tail = replica.tail(sheetName, rowCount);
+        } else {
+            tail = tailReadEnabled ? tailReader.readTail(sheetName, rowCount) : null;
         }
 
-        // Build a message from the rows
-        StringBuilder sb = new StringBuilder();
-        sb.append("Последние ").append(lastRows.size()).append(" строк из *").append(sheetName).append("*:\n\n");
-
-        // Determine column widths for alignment
-        List<Integer> colWidths = new ArrayList<>();
-        if (headerRow != null) {
-            for (Object cell : headerRow) {
-                colWidths.add(String.valueOf(cell).length());
+        if (tail != null) {
+            if (tail.getHeaderRow().isEmpty() && tail.getRows().isEmpty()) {
+                logger.warn("No data found in sheet {} for chatId {}", sheetName, chatId);
+                sendMessage(chatId, "Нет данных в листе: " + SheetTableRenderer.escapeMarkdown(sheetName));
+                return;
             }
-        }
-        for (List<Object> row : lastRows) {
-            for (int i = 0; i < row.size(); i++) {
-                int cellLength = String.valueOf(row.get(i)).length();
-                if (i < colWidths.size()) {
-                    if (cellLength > colWidths.get(i)) {
-                        colWidths.set(i, cellLength);
-                    }
-                } else {
-                    colWidths.add(cellLength);
-                }
+            headerRow = tail.getHeaderRow();
+            lastRows = tail.getRows();
+            firstShownRow = tail.getFirstRowNumber();
+            logger.debug("Fetched header and {} tail rows from sheet {} for chatId {}", lastRows.size(), sheetName, chatId);
+        } else {
+            String range = quoteSheetName(sheetName);
+            ValueRange response = sheetsScheduler.execute(BotMetrics.SheetsCall.VALUES_GET,
+                    SheetsRequests.values(sheetsService, this.spreadsheetId, range));
+            List<List<Object>> values = response.getValues();
+
+            if (values == null || values.isEmpty()) {
+                logger.warn("No data found in sheet {} for chatId {}", sheetName, chatId);
+                sendMessage(chatId, "Нет данных в листе: " + SheetTableRenderer.escapeMarkdown(sheetName));
+                return;
             }
-        }
+            logger.debug("Fetched {} rows from sheet {} for chatId {}", values.size(), sheetName, chatId);
 
-        // Optional: Show headers if available
-        if (headerRow != null && !headerRow.isEmpty()) {
-            for (int i = 0; i < headerRow.size(); i++) {
-                String headerCell = String.valueOf(headerRow.get(i));
-                sb.append(String.format("`%-" + (i < colWidths.size() ? colWidths.get(i) : headerCell.length()) + "s`",
-                        headerCell)).append(" | ");
-            }
-            if (sb.length() > 3) {
-                sb.setLength(sb.length() - 3); // Remove trailing " | "
-            }
-            sb.append("\n");
+            // Determine which rows to display
+            int totalRows = values.size();
 
-            for (int i = 0; i < headerRow.size(); i++) {
-                sb.append(String.format("%-" + (i < colWidths.size() ? colWidths.get(i) + 2 : 2) + "s", "").replace(' ', '-'))
-                        .append("|");
-            }
-            if (sb.length() > 1) {
-                sb.setLength(sb.length() - 1); // Remove trailing "|"
+            if (totalRows > 0) {
+                headerRow = values.get(0); // Always get the header row
             }
-            sb.append("\n");
-        }
 
-        for (List<Object> row : lastRows) {
-            for (int i = 0; i < row.size(); i++) {
-                String cell = String.valueOf(row.get(i));
-                sb.append(String.format("%-" + (i < colWidths.size() ? colWidths.get(i) : cell.length()) + "s", cell))
-                        .append(" | ");
+            if (totalRows <= 1) { // Only header or no data
+                lastRows = new ArrayList<>(); // No data rows to show if only header or empty
+            } else if (totalRows <= rowCount + 1) { // Not enough rows to skip, show all data rows
+                lastRows = values.subList(1, totalRows);
+            } else { // Enough rows to show only the last 'rowCount' data rows
+                lastRows = values.subList(totalRows - rowCount, totalRows);
             }
-            if (sb.length() > 3) {
-                sb.setLength(sb.length() - 3); // Remove trailing " | "
-            }
-            sb.append("\n");
+            firstShownRow = totalRows - lastRows.size() + 1;
         }
 
-        SendMessage message = new SendMessage(String.valueOf(chatId), sb.toString());
+        // Long tables go out as several messages, the buttons are attached to the last one
+        long renderStarted = System.nanoTime();
+        List<String> pages = tableRenderer.render(sheetName, headerRow, lastRows);
+        metrics.recordRender(System.nanoTime() - renderStarted);
+        for (int i = 0; i < pages.size() - 1; i++) {
+            sendMessage(chatId, pages.get(i));
+        }
+        SendMessage message = new SendMessage(String.valueOf(chatId), pages.get(pages.size() - 1));
         // Optionally enable Markdown or HTML formatting
         message.setParseMode("Markdown");
 
-        // Add "Add New Row" button
-        List<InlineKeyboardRow> rowInline = new ArrayList<>();
-        InlineKeyboardButton addNewButton = new InlineKeyboardButton("➕ Добавить новую строку");
-        addNewButton.setCallbackData("add_new_row_" + sheetName);
-        rowInline.add(new InlineKeyboardRow(addNewButton));
-
-        InlineKeyboardButton backButton = new InlineKeyboardButton("Назад");
-        backButton.setCallbackData("back_to_sheet_selection");
-        rowInline.add(new InlineKeyboardRow(backButton)); // Add the back button to a new row
-
-        InlineKeyboardMarkup inlineKeyboardMarkup = new InlineKeyboardMarkup(rowInline);
-        message.setReplyMarkup(inlineKeyboardMarkup);
+        SheetTemplate template = getSheetTemplate(sheetName, headerRow, lastRows);
+        message.setReplyMarkup(getSheetDataKeyboard(sheetIdOf(sheetName), template.getHeaderVersion(),
+                firstShownRow > SheetTailReader.FIRST_DATA_ROW ? firstShownRow - 1 : -1, -1));
 
         // Store header and last row for potential editing
         // Use computeIfAbsent to ensure we are working with the instance in the map
@@ -371,24 +1270,7 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
 
         userState.setSheetNameForEditing(sheetName); // Keep track of which sheet this data is for
 
-        if (headerRow != null && !headerRow.isEmpty()) {
-            userState.setHeaderRowForEditing(new ArrayList<>(headerRow)); // store a copy
-        } else {
-            userState.setHeaderRowForEditing(new ArrayList<>()); // Ensure it's an empty list, not null
-        }
-
-        if (!lastRows.isEmpty()) {
-            userState.setTemplateRowForEditing(new ArrayList<>(lastRows.get(
-                    lastRows.size() - 1))); // store a copy of the actual last data row
-        } else if (headerRow != null && !headerRow.isEmpty()) { // Template based on header if no data rows but header exists
-            List<Object> emptyTemplate = new ArrayList<>();
-            for (int i = 0; i < headerRow.size(); i++) {
-                emptyTemplate.add("");
-            }
-            userState.setTemplateRowForEditing(emptyTemplate);
-        } else {
-            userState.setTemplateRowForEditing(new ArrayList<>()); // Ensure it's an empty list if no other template
-        }
+        userState.setTemplate(template);
 
         // The userState object is already in the map (or was just added by computeIfAbsent)
         // and has been modified directly. No explicit userStates.put() is needed here for these changes.
@@ -397,74 +1279,246 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
         execute(message); // Send message with inline button
     }
 
+    /**
+     * Replaces the rows in the message with the page ending at {@code endRow}. A page is one windowed read of
+     * its own rows, or none if the replica holds them, so paging deep into a sheet costs the same as its tail.
+     */
+    private void showPage(long chatId, UserState userState, int messageId, String sheetName, int endRow)
+            throws IOException, TelegramApiException {
+        int pageSize = pageSizeOf(userState);
+        int startRow = Math.max(SheetTailReader.FIRST_DATA_ROW, endRow - pageSize + 1);
+        SheetTailReader.TailWindow page = replica != null ? replica.window(sheetName, startRow, endRow) : null;
+        if (page == null) {
+            page = tailReader.readWindow(sheetName, startRow, endRow);
+        }
+        if (page == null) {
+            sendErrorMessage(chatId, "Лист " + sheetName + " больше не найден. Используйте /sheets, чтобы выбрать другой.");
+            return;
+        }
+        boolean atEnd = page.getFirstRowNumber() + page.getRows().size() - 1 < endRow;
+        if (page.getRows().isEmpty()) { // Rows were deleted since the buttons were made, show the newest ones
+            page = replica != null ? replica.tail(sheetName, pageSize) : tailReader.readTail(sheetName, pageSize);
+            if (page == null) {
+                sendErrorMessage(chatId, "Лист " + sheetName + " больше не найден. Используйте /sheets, чтобы выбрать другой.");
+                return;
+            }
+        }
+
+        // The message is edited in place, so the page has to fit into one: drop its oldest rows until it does
+        List<List<Object>> rows = page.getRows();
+        int firstRow = page.getFirstRowNumber();
+        List<String> parts = tableRenderer.render(sheetName, page.getHeaderRow(), rows, firstRow);
+        while (parts.size() > 1 && rows.size() > 1) {
+            rows = rows.subList(1, rows.size());
+            firstRow++;
+            parts = tableRenderer.render(sheetName, page.getHeaderRow(), rows, firstRow);
+        }
+        int lastRow = firstRow + rows.size() - 1;
+        int olderEnd = firstRow > SheetTailReader.FIRST_DATA_ROW ? firstRow - 1 : -1;
+        int newerEnd = atEnd || lastRow >= lastDataRow(sheetName) ? -1 : lastRow + pageSize;
+
+        EditMessageText pageText = new EditMessageText(parts.get(0));
+        pageText.setChatId(String.valueOf(chatId));
+        pageText.setMessageId(messageId);
+        pageText.setParseMode("Markdown");
+        pageText.setReplyMarkup(getSheetDataKeyboard(sheetIdOf(sheetName),
+                SheetTemplate.headerVersionOf(page.getHeaderRow()), olderEnd, newerEnd));
+        execute(pageText);
+        logger.debug("Showed rows {}-{} of sheet {} to chatId {}", firstRow, lastRow, sheetName, chatId);
+    }
+
+    /**
+     * Last row that may hold data: the newest replica row, else the grid size, which may include blank rows.
+     */
+    private int lastDataRow(String sheetName) throws IOException {
+        int lastRow = replica != null ? replica.lastRowNumber(sheetName) : -1;
+        if (lastRow > 0) {
+            return lastRow;
+        }
+        SheetMetadataCache.SheetInfo info = metadataCache.getSheet(sheetName);
+        return info != null ? info.getRowCount() : -1;
+    }
+
     private void processCallbackQuery(long chatId, String callbackData, int messageId) throws IOException, TelegramApiException {
         UserState userState = userStates.get(chatId);
         if (userState == null) {
-            sendErrorMessage(chatId, "Состояние сессии не найдено. Пожалуйста, начните сначала с команды /start или /sheets.");
+            // Buttons only exist on messages we sent, so a missing session means it expired or was evicted
+            logger.info("Session of chatId {} expired, ignoring callback {}", chatId, callbackData);
+            EditMessageText expiredText = new EditMessageText(
+                    "⌛ Сессия истекла. Пожалуйста, начните сначала с команды /sheets.");
+            expiredText.setChatId(String.valueOf(chatId));
+            expiredText.setMessageId(messageId);
+            expiredText.setReplyMarkup(null); // Stale buttons must not be pressed again
+            execute(expiredText);
             return;
         }
 
-        if (callbackData.startsWith("add_new_row_")) {
-            String sheetNameFromCallback = callbackData.substring("add_new_row_".length());
-            // Ensure we have the correct sheetName and header in userState
-            // getHeaderRowForEditing() should now never be null due to constructor initialization
-            if (userState.getHeaderRowForEditing().isEmpty()) {
-                sendErrorMessage(chatId,
-                        "Не удалось начать добавление новой строки. Информация о заголовках отсутствует или пуста. Пожалуйста, попробуйте /sheets еще раз с листом, у которого есть заголовок.");
-                userState.setState(UserState.State.IDLE);
-                userStates.put(chatId, userState); // Save the reset state
-                return;
+        CallbackData data = CallbackData.decode(callbackData);
+        if (data == null || !isCurrent(userState, data)) {
+            logger.info("Stale button {} pressed by chatId {}", callbackData, chatId);
+            EditMessageText staleText = new EditMessageText(
+                    "⌛ Эта кнопка устарела. Пожалуйста, начните сначала с команды /sheets.");
+            staleText.setChatId(String.valueOf(chatId));
+            staleText.setMessageId(messageId);
+            staleText.setReplyMarkup(null);
+            execute(staleText);
+            return;
+        }
+        callbackHandlers[data.getAction().ordinal()].handle(chatId, userState, data, messageId);
+    }
+
+    /**
+     * Checks a button against the session before anything else runs: draft buttons must be made for the sheet and
+     * header the session edits, column buttons must name an existing column. Only metadata already cached is read,
+     * a dispatcher worker never waits for Google here; before the first load the sheet is not checked.
+     */
+    private boolean isCurrent(UserState userState, CallbackData data) {
+        if (!data.getAction().isDraftBound()) {
+            return true;
+        }
+        SheetTemplate template = userState.getTemplate();
+        if (data.getHeaderVersion() != template.getHeaderVersion()) {
+            return false;
+        }
+        SheetMetadataCache.Snapshot metadata = metadataCache.getIfPresent();
+        String sheetName = userState.getSheetNameForEditing();
+        SheetMetadataCache.SheetInfo info = metadata != null && sheetName != null
+                ? metadata.getSheetsByTitle().get(sheetName) : null;
+        if (metadata != null && data.getSheetId() != (info != null ? info.getSheetId() : -1)) {
+            return false;
+        }
+        return data.getAction() != CallbackAction.EDIT_COLUMN_INDEX
+                || (data.getValue() >= 0 && data.getValue() < template.getHeader().size());
+    }
+
+    private int sheetIdOf(String sheetName) throws IOException {
+        SheetMetadataCache.SheetInfo info = sheetName != null ? metadataCache.getSheet(sheetName) : null;
+        return info != null ? info.getSheetId() : -1;
+    }
+
+    /**
+     * Handler per {@link CallbackAction}, indexed by ordinal.
+     */
+    private CallbackHandler[] newCallbackHandlers() {
+        CallbackHandler[] handlers = new CallbackHandler[CallbackAction.values().length];
+        handlers[CallbackAction.ADD_NEW_ROW.ordinal()] = this::onAddNewRow;
+        handlers[CallbackAction.SHOW_PAGE.ordinal()] = this::onShowPage;
+        handlers[CallbackAction.EDIT_COLUMN_INDEX.ordinal()] = this::onEditColumn;
+        handlers[CallbackAction.DONE_EDITING.ordinal()] = this::onDoneEditing;
+        handlers[CallbackAction.CANCEL_EDITING.ordinal()] = this::onCancelEditing;
+        handlers[CallbackAction.BACK_TO_SHEET_SELECTION.ordinal()] = this::onBackToSheetSelection;
+        handlers[CallbackAction.BACK_TO_COLUMN_SELECTION.ordinal()] = this::onBackToColumnSelection;
+        return handlers;
+    }
+
+    private void onAddNewRow(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheetById(data.getSheetId());
+        if (sheetInfo == null) {
+            sendErrorMessage(chatId, "Лист больше не найден. Используйте /sheets, чтобы выбрать другой.");
+            return;
+        }
+        String sheetNameFromCallback = sheetInfo.getTitle();
+        // The session holds the header of the sheet it showed last, which need not be the one of this button
+        SheetTemplate template = userState.getTemplate();
+        boolean matches = sheetNameFromCallback.equals(template.getSheetName())
+                && template.getHeaderVersion() == data.getHeaderVersion();
+        if (replica != null || !matches) {
+            // The table may be minutes old or of another sheet, start from the newest row of the button's sheet
+            SheetTailReader.TailWindow tail = replica != null
+                    ? replica.tail(sheetNameFromCallback, 1)
+                    : tailReader.readTail(sheetNameFromCallback, 1);
+            if (tail != null && !tail.getHeaderRow().isEmpty()) {
+                userState.setTemplate(getSheetTemplate(sheetNameFromCallback, tail.getHeaderRow(), tail.getRows()));
+            } else if (!matches) {
+                userState.setTemplate(SheetTemplate.EMPTY); // Never a row shaped for another sheet
             }
-            userState.setSheetNameForEditing(sheetNameFromCallback); // Confirm sheet name from callback
-            userState.clearPendingEdits(); // Clear any previous edits
-            userState.setState(UserState.State.AWAITING_COLUMN_TO_EDIT);
-            userStates.put(chatId, userState); // Save state changes before prompting
-            logger.debug("User {} state set to AWAITING_COLUMN_TO_EDIT for sheet {}", chatId, sheetNameFromCallback);
-            promptForColumnSelection(chatId, userState, messageId, true);
-        } else if (callbackData.startsWith("edit_column_index_")) {
-            int columnIndex = Integer.parseInt(callbackData.substring("edit_column_index_".length()));
-            userState.setColumnIndexBeingEdited(columnIndex);
-            userState.setState(UserState.State.AWAITING_NEW_VALUE_FOR_EDIT);
-            userStates.put(chatId, userState);
-            logger.debug("User {} callback: edit_column_index_{}. State set to AWAITING_NEW_VALUE_FOR_EDIT", chatId, columnIndex);
-            promptForNewValue(chatId, userState, messageId);
-        } else if (callbackData.equals("done_editing")) {
-            logger.info("User {} callback: done_editing. Appending row to sheet {}", chatId, userState.getSheetNameForEditing());
-            appendRowToSheet(chatId, userState, messageId);
-            listAvailableSheets(chatId);
-            logger.debug("User {} state set to SELECTING_SHEET after done_editing", chatId);
-        } else if (callbackData.equals("cancel_editing")) {
-            logger.info("User {} callback: cancel_editing. Cancelling row addition.", chatId);
-            // Remove the current message with inline keyboard by editing its text and removing keyboard.
-            EditMessageText editText = new EditMessageText("Добавление строки отменено. Выберите лист:");
-            editText.setChatId(String.valueOf(chatId));
-            editText.setMessageId(messageId);
-            editText.setReplyMarkup(null);
-            execute(editText);
+        }
+        // getHeaderRowForEditing() should now never be null due to constructor initialization
+        if (userState.getHeaderRowForEditing().isEmpty()) {
+            sendErrorMessage(chatId,
+                    "Не удалось начать добавление новой строки. Информация о заголовках отсутствует или пуста. Пожалуйста, попробуйте /sheets еще раз с листом, у которого есть заголовок.");
+            userState.setState(UserState.State.IDLE);
+            userStates.put(chatId, userState); // Save the reset state
+            return;
+        }
+        userState.setSheetNameForEditing(sheetNameFromCallback); // Confirm sheet name from callback
+        userState.clearPendingEdits(); // Clear any previous edits
+        userState.setDraftMessageId(messageId); // The draft is edited in place from now on
+        userState.setState(UserState.State.AWAITING_COLUMN_TO_EDIT);
+        userStates.put(chatId, userState); // Save state changes before prompting
+        logger.debug("User {} state set to AWAITING_COLUMN_TO_EDIT for sheet {}", chatId, sheetNameFromCallback);
+        promptForColumnSelection(chatId, userState, messageId, true);
+    }
 
-            // Clear edits and go back to sheet selection
-            userState.clearPendingEdits();
-            listAvailableSheets(chatId); // This will send a new message with sheet options
-            userState.setState(UserState.State.SELECTING_SHEET); // listAvailableSheets already sets this, but being explicit.
-            userStates.put(chatId, userState); // Ensure state is saved
-            logger.debug("User {} state set to SELECTING_SHEET after cancel_editing and listing sheets", chatId);
-        } else if (callbackData.equals("back_to_sheet_selection")) {
-            logger.info("User {} callback: back_to_sheet_selection.", chatId);
-            listAvailableSheets(chatId);
-            userState.setState(UserState.State.SELECTING_SHEET);
-            userStates.put(chatId, userState);
-            logger.debug("User {} state set to SELECTING_SHEET", chatId);
-        } else if (callbackData.equals("back_to_column_selection")) {
-            logger.info("User {} callback: back_to_column_selection.", chatId);
-            userState.setState(UserState.State.AWAITING_COLUMN_TO_EDIT);
-            userStates.put(chatId, userState); // Save state
-            logger.debug("User {} state set to AWAITING_COLUMN_TO_EDIT", chatId);
-            promptForColumnSelection(chatId, userState, messageId, true); // true to edit the current message
+    private void onShowPage(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheetById(data.getSheetId());
+        if (sheetInfo == null) {
+            sendErrorMessage(chatId, "Лист больше не найден. Используйте /sheets, чтобы выбрать другой.");
+            return;
         }
+        showPage(chatId, userState, messageId, sheetInfo.getTitle(), data.getValue());
+    }
+
+    private void onEditColumn(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        int columnIndex = data.getValue();
+        userState.setColumnIndexBeingEdited(columnIndex);
+        userState.setDraftMessageId(messageId);
+        userState.setState(UserState.State.AWAITING_NEW_VALUE_FOR_EDIT);
+        userStates.put(chatId, userState);
+        logger.debug("User {} callback: edit column {}. State set to AWAITING_NEW_VALUE_FOR_EDIT", chatId, columnIndex);
+        promptForNewValue(chatId, userState, messageId);
+    }
+
+    private void onDoneEditing(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        logger.info("User {} callback: done_editing. Appending row to sheet {}", chatId, userState.getSheetNameForEditing());
+        appendRowToSheet(chatId, userState, messageId);
+        listAvailableSheets(chatId);
+        logger.debug("User {} state set to SELECTING_SHEET after done_editing", chatId);
+    }
+
+    private void onCancelEditing(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        logger.info("User {} callback: cancel_editing. Cancelling row addition.", chatId);
+        // Remove the current message with inline keyboard by editing its text and removing keyboard.
+        EditMessageText editText = new EditMessageText("Добавление строки отменено. Выберите лист:");
+        editText.setChatId(String.valueOf(chatId));
+        editText.setMessageId(messageId);
+        editText.setReplyMarkup(null);
+        execute(editText);
+
+        // Clear edits and go back to sheet selection
+        userState.clearPendingEdits();
+        listAvailableSheets(chatId); // This will send a new message with sheet options
+        userState.setState(UserState.State.SELECTING_SHEET); // listAvailableSheets already sets this, but being explicit.
+        userStates.put(chatId, userState); // Ensure state is saved
+        logger.debug("User {} state set to SELECTING_SHEET after cancel_editing and listing sheets", chatId);
+    }
+
+    private void onBackToSheetSelection(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        logger.info("User {} callback: back_to_sheet_selection.", chatId);
+        listAvailableSheets(chatId);
+        userState.setState(UserState.State.SELECTING_SHEET);
+        userStates.put(chatId, userState);
+        logger.debug("User {} state set to SELECTING_SHEET", chatId);
+    }
+
+    private void onBackToColumnSelection(long chatId, UserState userState, CallbackData data, int messageId)
+            throws IOException, TelegramApiException {
+        logger.info("User {} callback: back_to_column_selection.", chatId);
+        userState.setDraftMessageId(messageId);
+        userState.setState(UserState.State.AWAITING_COLUMN_TO_EDIT);
+        userStates.put(chatId, userState); // Save state
+        logger.debug("User {} state set to AWAITING_COLUMN_TO_EDIT", chatId);
+        promptForColumnSelection(chatId, userState, messageId, true); // true to edit the current message
     }
 
     private void promptForColumnSelection(long chatId, UserState userState, int messageId, boolean isFirstPrompt)
-            throws TelegramApiException {
+            throws IOException, TelegramApiException {
         logger.debug("Prompting user {} for column selection. isFirstPrompt: {}. Current edits: {}",
                 chatId,
                 isFirstPrompt,
@@ -478,6 +1532,8 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             return;
         }
 
+        KeyboardCache.ColumnPrompt prompt = keyboardCache.columnPrompt(
+                sheetIdOf(userState.getSheetNameForEditing()), userState.getTemplate());
         StringBuilder sb = new StringBuilder("Текущий черновик новой строки:\n");
         List<Object> currentRowData = new ArrayList<>(userState.getTemplateRowForEditing());
         userState.getPendingEdits().forEach((index, value) -> {
@@ -486,38 +1542,16 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             }
         });
 
-        for (int i = 0; i < headers.size(); i++) {
-            Object header = headers.get(i);
+        List<String> labels = prompt.getLabels();
+        for (int i = 0; i < labels.size(); i++) {
             Object value = (i < currentRowData.size()) ? currentRowData.get(i) : "(пусто)";
-            sb.append(String.format("`%s`: %s\n", header, value));
+            sb.append(labels.get(i)).append(SheetTableRenderer.escapeMarkdown(String.valueOf(value))).append('\n');
         }
         sb.append("\nКакой столбец вы хотите установить/изменить?");
+        sb.append("\nМожно заполнить несколько сразу одним сообщением: `Столбец: значение; Столбец: значение`"
+                + " или по столбцу на строку.");
 
-        List<InlineKeyboardRow> keyboard = new ArrayList<>();
-        InlineKeyboardRow keyboardRow = new InlineKeyboardRow();
-
-        for (int i = 0; i < headers.size(); i++) {
-            // Each button on its own row for clarity in this version
-            InlineKeyboardRow buttonRow = new InlineKeyboardRow();
-            InlineKeyboardButton button = new InlineKeyboardButton(String.valueOf(headers.get(i)));
-            button.setCallbackData("edit_column_index_" + i);
-            buttonRow.add(button);
-            keyboard.add(buttonRow);
-        }
-
-        InlineKeyboardRow finalActionsRow = new InlineKeyboardRow();
-        InlineKeyboardButton doneButton = new InlineKeyboardButton("✅ Готово");
-        doneButton.setCallbackData("done_editing");
-        finalActionsRow.add(doneButton);
-
-        InlineKeyboardButton cancelButton = new InlineKeyboardButton("❌ Отмена");
-        cancelButton.setCallbackData("cancel_editing");
-        finalActionsRow.add(cancelButton);
-
-        // keyboard.add(keyboardRow); // This would add an empty row if keyboardRow wasn't populated correctly
-        keyboard.add(finalActionsRow);
-
-        InlineKeyboardMarkup inlineKeyboardMarkup = new InlineKeyboardMarkup(keyboard);
+        InlineKeyboardMarkup inlineKeyboardMarkup = prompt.getKeyboard();
 
         if (isFirstPrompt) {
             EditMessageText editText = new EditMessageText(sb.toString());
@@ -534,7 +1568,7 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
         }
     }
 
-    private void promptForNewValue(long chatId, UserState userState, int messageId) throws TelegramApiException {
+    private void promptForNewValue(long chatId, UserState userState, int messageId) throws IOException, TelegramApiException {
         List<Object> headers = userState.getHeaderRowForEditing();
         int columnIndex = userState.getColumnIndexBeingEdited();
         String columnName = String.valueOf(headers.get(columnIndex));
@@ -546,47 +1580,65 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
                         ? userState.getTemplateRowForEditing().get(columnIndex)
                         : ""));
 
+        // Escaping is not possible inside Markdown entities, the values are shown as plain text
         String text = String.format(
-                "Редактирование столбца: *%s*\nТекущее значение: `%s`\n\nПожалуйста, отправьте новое значение для этого столбца.",
-                columnName,
-                currentValue);
+                "Редактирование столбца: %s\nТекущее значение: %s\n\nПожалуйста, отправьте новое значение для этого столбца.",
+                SheetTableRenderer.escapeMarkdown(columnName),
+                SheetTableRenderer.escapeMarkdown(String.valueOf(currentValue)));
 
         EditMessageText editText = new EditMessageText(text);
         editText.setChatId(String.valueOf(chatId));
         editText.setMessageId(messageId);
         // editText.setReplyMarkup(null); // Remove keyboard, wait for text input
 
-        InlineKeyboardButton backToColumnSelectionButton = new InlineKeyboardButton("Назад");
-        backToColumnSelectionButton.setCallbackData("back_to_column_selection");
-        InlineKeyboardRow keyboardRow = new InlineKeyboardRow(backToColumnSelectionButton);
-        List<InlineKeyboardRow> keyboard = new ArrayList<>();
-        keyboard.add(keyboardRow);
-        InlineKeyboardMarkup inlineKeyboardMarkup = new InlineKeyboardMarkup(keyboard);
-        editText.setReplyMarkup(inlineKeyboardMarkup);
+        editText.setReplyMarkup(keyboardCache.columnPrompt(
+                sheetIdOf(userState.getSheetNameForEditing()), userState.getTemplate()).getBackKeyboard());
 
         editText.setParseMode("Markdown");
         execute(editText);
     }
 
-    private void processProvidedValueForEdit(long chatId, String newValue, UserState userState, int lastBotMessageId)
+    private void processProvidedValueForEdit(long chatId, String newValue, UserState userState)
             throws TelegramApiException, IOException {
         int columnIndex = userState.getColumnIndexBeingEdited();
         String columnName = String.valueOf(userState.getHeaderRowForEditing().get(columnIndex));
         logger.info("User {} provided value '{}' for column '{}' (index {}).", chatId, newValue, columnName, columnIndex);
         userState.setPendingEdit(columnIndex, newValue);
+        userState.setState(UserState.State.AWAITING_COLUMN_TO_EDIT);
         userStates.put(chatId, userState);
+        showDraft(chatId, userState);
+    }
 
-        // Delete the user's message containing the new value (optional, for cleaner interface)
-        // try {
-        //     DeleteMessage deleteUserMessage = new DeleteMessage(String.valueOf(chatId), userMessageId); // userMessageId would be needed
-        //     telegramClient.execute(deleteUserMessage);
-        // } catch (TelegramApiException e) { e.printStackTrace(); /* Failed to delete, not critical */ }
-
-        // String columnName = String.valueOf(userState.getHeaderRowForEditing().get(columnIndex));
-        // String diffText = String.format("Updated *%s* from `%s` to `%s`.", columnName, originalValue, newValue); // Diff text was removed as per flow
-        // sendMessage(chatId, diffText);
+    /**
+     * Fills several columns from one message while the draft waits for a column, see {@link DraftEntryParser}.
+     */
+    private void processFastEntry(long chatId, String messageText, UserState userState)
+            throws TelegramApiException, IOException {
+        DraftEntryParser.Result entry = DraftEntryParser.parse(messageText, userState.getHeaderRowForEditing());
+        if (entry.getValues().isEmpty()) {
+            logger.debug("User {} sent text without known columns while choosing a column: {}", chatId, messageText);
+            sendMessage(chatId, "Не удалось найти столбцы в сообщении. Выберите столбец кнопкой или отправьте"
+                    + " значения в виде `Столбец: значение; Столбец: значение`.");
+            return;
+        }
+        logger.info("User {} filled {} columns of sheet {} from one message, {} parts unmatched",
+                chatId, entry.getValues().size(), userState.getSheetNameForEditing(), entry.getUnmatched().size());
+        entry.getValues().forEach(userState::setPendingEdit);
+        userStates.put(chatId, userState);
+        showDraft(chatId, userState);
+        if (!entry.getUnmatched().isEmpty()) {
+            SendMessage unmatched = new SendMessage(String.valueOf(chatId), // Plain text, the parts are user input
+                    "⚠️ Не удалось сопоставить со столбцами:\n" + String.join("\n", entry.getUnmatched()));
+            execute(unmatched);
+        }
+    }
 
-        promptForColumnSelection(chatId, userState, lastBotMessageId, false);
+    /**
+     * Shows the draft with the column keyboard again, in place of the draft message when the session knows it.
+     */
+    private void showDraft(long chatId, UserState userState) throws TelegramApiException, IOException {
+        int draftMessageId = userState.getDraftMessageId();
+        promptForColumnSelection(chatId, userState, draftMessageId, draftMessageId > 0);
     }
 
     private void appendRowToSheet(long chatId, UserState userState, int messageId) throws IOException, TelegramApiException {
@@ -615,22 +1667,57 @@ class HomelessGoogleSheetsBot implements LongPollingSingleThreadUpdateConsumer {
             }
         }
 
-        ValueRange body = new ValueRange().setValues(List.of(newRow));
-        sheetsService.spreadsheets().values()
-                .append(this.spreadsheetId, quoteSheetName(sheetName), body)
-                .setValueInputOption("USER_ENTERED")
-                .setInsertDataOption("INSERT_ROWS")
-                .execute();
-        logger.info("Successfully appended row to sheet {} for user {}", sheetName, chatId);
+        if (outbox != null) {
+            String key = chatId + ":" + messageId; // One row per "done" message, a repeated press is ignored
+            int lastKnownRow = replica != null ? replica.lastRowNumber(sheetName) : -1;
+            if (outbox.enqueue(key, chatId, messageId, sheetName, newRow, lastKnownRow)) {
+                EditMessageText queuedText = new EditMessageText("📨 Строка сохранена и будет добавлена в " + sheetName
+                        + ". Сообщим, когда она появится в таблице.");
+                queuedText.setChatId(String.valueOf(chatId));
+                queuedText.setMessageId(messageId);
+                queuedText.setReplyMarkup(null);
+                execute(queuedText);
+            }
+            return;
+        }
 
-        EditMessageText editText = new EditMessageText("✅ Новая строка успешно добавлена в " + sheetName + "!");
+        // Remove the inline keyboard right away so the row cannot be submitted twice
+        EditMessageText pendingText = new EditMessageText("⏳ Сохраняем новую строку в " + sheetName + "...");
+        pendingText.setChatId(String.valueOf(chatId));
+        pendingText.setMessageId(messageId);
+        pendingText.setReplyMarkup(null);
+        execute(pendingText);
+
+        appendBatcher.enqueue(sheetName, newRow).whenComplete((rowNumber, error) -> {
+            if (error != null) {
+                logger.error("Failed to append row to sheet {} for user {}", sheetName, chatId, error);
+                editAppendResult(chatId, messageId, "❌ Не удалось добавить строку в " + sheetName + ": " + error.getMessage());
+                return;
+            }
+            logger.info("Successfully appended row {} to sheet {} for user {}", rowNumber, sheetName, chatId);
+            if (replica != null) {
+                replica.onRowAppended(sheetName, rowNumber, newRow);
+            }
+            if (prefetcher != null) {
+                prefetcher.invalidate(sheetName);
+            }
+            editAppendResult(chatId, messageId, "✅ Новая строка успешно добавлена в " + sheetName + "!");
+        });
+
+        // Optionally, resend the sheet data to show the new row
+        // fetchSheetData(chatId, sheetName, pageSizeOf(userState));
+    }
+
+    private void editAppendResult(long chatId, int messageId, String text) {
+        EditMessageText editText = new EditMessageText(text);
         editText.setChatId(String.valueOf(chatId));
         editText.setMessageId(messageId);
         editText.setReplyMarkup(null); // Remove inline keyboard
-        execute(editText);
-
-        // Optionally, resend the sheet data to show the new row
-        // fetchSheetData(chatId, sheetName, DEFAULT_ROW_COUNT);
+        try {
+            execute(editText);
+        } catch (TelegramApiException e) {
+            logger.error("Failed to report append result to chatId {}", chatId, e);
+        }
     }
 }
 
@@ -650,17 +1737,17 @@ class UserState {
 
     // Fields for the editing flow
     private String sheetNameForEditing;
-    private List<Object> headerRowForEditing;
-    private List<Object> templateRowForEditing; // Based on the last row of the sheet
-    private Map<Integer, Object> pendingEdits; // Column index to new value
+    private SheetTemplate template = SheetTemplate.EMPTY; // Shared with other sessions on the same sheet
+    private IntObjectMap<Object> pendingEdits; // Column index to new value
     private int columnIndexBeingEdited; // Index of the column currently being edited
+    private int draftMessageId; // Bot message showing the draft, 0 if unknown
+    private int pageSize; // Rows per page chosen with /pagesize, 0 for the default
 
     public UserState(State state, List<String> availableSheets) {
         this.state = state;
-        this.availableSheets = availableSheets != null ? new ArrayList<>(availableSheets) : new ArrayList<>();
-        this.pendingEdits = new HashMap<>();
-        this.headerRowForEditing = new ArrayList<>(); // Initialize to empty
-        this.templateRowForEditing = new ArrayList<>(); // Initialize to empty
+        // The sheet list of the metadata snapshot is immutable already and shared as is
+        this.availableSheets = availableSheets != null ? List.copyOf(availableSheets) : List.of();
+        this.pendingEdits = new IntObjectMap<>();
     }
 
 
@@ -675,7 +1762,7 @@ class UserState {
     public List<String> getAvailableSheets() {
         if (availableSheets == null) { // Defensive null check though constructor initializes
             logger.warn("getAvailableSheets called when availableSheets is null. Initializing to empty list.");
-            availableSheets = new ArrayList<>();
+            availableSheets = List.of();
         }
         return availableSheets;
     }
@@ -688,30 +1775,32 @@ class UserState {
         this.sheetNameForEditing = sheetNameForEditing;
     }
 
-    public List<Object> getHeaderRowForEditing() {
-        return headerRowForEditing;
+    public SheetTemplate getTemplate() {
+        return template;
     }
 
-    public void setHeaderRowForEditing(List<Object> headerRowForEditing) {
-        this.headerRowForEditing = headerRowForEditing;
+    public void setTemplate(SheetTemplate template) {
+        this.template = template != null ? template : SheetTemplate.EMPTY;
     }
 
-    public List<Object> getTemplateRowForEditing() {
-        if (templateRowForEditing == null) { // Defensive null check
-            logger.warn("getTemplateRowForEditing called when templateRowForEditing is null. Initializing to empty list.");
-            templateRowForEditing = new ArrayList<>();
-        }
-        return templateRowForEditing;
+    /**
+     * Header of the sheet being edited, read-only and never {@code null}.
+     */
+    public List<Object> getHeaderRowForEditing() {
+        return template.getHeader();
     }
 
-    public void setTemplateRowForEditing(List<Object> templateRowForEditing) {
-        this.templateRowForEditing = new ArrayList<>(templateRowForEditing); // Ensure mutable copy
+    /**
+     * Row a new entry starts from, read-only and never {@code null}.
+     */
+    public List<Object> getTemplateRowForEditing() {
+        return template.getTemplateRow();
     }
 
-    public Map<Integer, Object> getPendingEdits() {
+    public IntObjectMap<Object> getPendingEdits() {
         if (pendingEdits == null) { // Defensive null check
             logger.warn("getPendingEdits called when pendingEdits is null. Initializing to empty map.");
-            pendingEdits = new HashMap<>();
+            pendingEdits = new IntObjectMap<>();
         }
         return pendingEdits;
     }
@@ -724,6 +1813,22 @@ class UserState {
         this.columnIndexBeingEdited = columnIndexBeingEdited;
     }
 
+    public int getDraftMessageId() {
+        return draftMessageId;
+    }
+
+    public void setDraftMessageId(int draftMessageId) {
+        this.draftMessageId = draftMessageId;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
     public void setPendingEdit(int columnIndex, Object value) {
         this.pendingEdits.put(columnIndex, value);
     }
@@ -734,7 +1839,7 @@ class UserState {
             logger.debug("Pending edits cleared.");
         } else {
             logger.warn("clearPendingEdits called when pendingEdits is null.");
-            pendingEdits = new HashMap<>(); // Initialize if it was null
+            pendingEdits = new IntObjectMap<>(); // Initialize if it was null
         }
     }
 }
\ No newline at end of file
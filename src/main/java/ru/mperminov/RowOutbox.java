@@ -0,0 +1,590 @@
+package ru.mperminov;
+
+import com.google.api.client.http.HttpResponseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of finished rows between the chat and the sheet. A row is on disk before the user is told it was
+ * accepted, a background worker then hands it to the {@link SheetAppendBatcher} and retries until the sheet
+ * has it, across restarts too.
+ * <p>
+ * Every row carries an idempotency key: the same key is only queued once, and is remembered for a day after the row
+ * is in the sheet, so a second press on "done" does not add a second row. An append that failed without a clear
+ * answer (a timeout, a 5xx) may still have been applied, before sending such a row again the worker looks for it
+ * among the rows added after it was queued. The same check runs for rows replayed after a restart.
+ */
+class RowOutbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(RowOutbox.class);
+    private static final int MAGIC = 0x484C4F31; // "HLO1"
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES; // length + crc
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DONE = 2; // Key only, written by older runs
+    private static final byte TYPE_FINISHED = 3; // Key and the time the row was finished
+    private static final long COMPACTION_BYTES = 1 << 20; // Log size after which only pending rows are kept
+    private static final int VERIFY_CHUNK_ROWS = 1000; // Rows per read when looking for a row that may already be in the sheet
+    private static final long FINISHED_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1); // How long a finished key blocks a repeat
+    private static final double SAME_NUMBER_TOLERANCE = 1e-12; // Relative, a date serial keeps well under a second
+    private static final LocalDate SERIAL_EPOCH = LocalDate.of(1899, 12, 30); // Day 0 of Sheets date serials
+    private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+    private static final Pattern DATE_TIME = Pattern.compile(
+            "(\\d{1,4})([./-])(\\d{1,2})\\2(\\d{1,4})(?:[ T]+(\\d{1,2}):(\\d{2})(?::(\\d{2}))?)?" // Date, optional time
+                    + "|(\\d{1,2}):(\\d{2})(?::(\\d{2}))?"); // Time alone
+
+    /**
+     * Told once per row when the sheet has it ({@code error} is {@code null}) or refused it for good.
+     */
+    interface ResultListener {
+        void onResult(Entry entry, int rowNumber, Throwable error);
+    }
+
+    private final Path logPath;
+    private final SheetAppendBatcher appendBatcher;
+    private final SheetTailReader tailReader;
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final Map<String, Long> finished = new ConcurrentHashMap<>(); // Key -> finish time, pruned on compaction
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "row-outbox-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FileChannel channel; // Guarded by this
+    private ResultListener listener;
+    private volatile boolean closed;
+
+    RowOutbox(Path directory, SheetAppendBatcher appendBatcher, SheetTailReader tailReader, BotMetrics metrics) {
+        this.logPath = directory.resolve("rows.outbox");
+        this.appendBatcher = appendBatcher;
+        this.tailReader = tailReader;
+        metrics.gauge("bot_outbox_pending", "Rows accepted from users but not yet in the sheet.", pending::size);
+    }
+
+    /**
+     * Replays rows a previous run did not finish and starts sending them. Returns their number.
+     */
+    synchronized int open(ResultListener listener) throws IOException {
+        this.listener = listener;
+        Files.createDirectories(logPath.getParent());
+        long validEnd = replay();
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (validEnd < 0) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC));
+        } else {
+            channel.truncate(validEnd); // Drop a torn record the last run may have left behind
+        }
+        channel.position(channel.size());
+        channel.force(true);
+        for (Entry entry : pending.values()) {
+            entry.uncertain = true; // The last run may have sent it without recording the answer
+            worker.execute(() -> send(entry));
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Replayed {} rows from the outbox", pending.size());
+        }
+        return pending.size();
+    }
+
+    /**
+     * Stores the row durably and queues it for the sheet. Returns {@code false} if a row with the key is already
+     * queued or was finished less than a day ago, the row is then ignored.
+     *
+     * @param lastKnownRow last data row of the sheet known right now, or -1; a row found at or above it while
+     *                     checking for an earlier append cannot be ours
+     */
+    boolean enqueue(String key, long chatId, int messageId, String sheetName, List<Object> row, int lastKnownRow)
+            throws IOException {
+        Entry entry = new Entry(key, chatId, messageId, sheetName, row, lastKnownRow, System.currentTimeMillis());
+        if (isRecentlyFinished(key, entry.createdAt)) {
+            logger.info("Row {} was already stored, ignoring the repeat", key);
+            return false;
+        }
+        if (pending.putIfAbsent(key, entry) != null) {
+            logger.info("Row {} is already in the outbox, ignoring the repeat", key);
+            return false;
+        }
+        try {
+            write(TYPE_ADD, encode(entry));
+        } catch (IOException | RuntimeException e) {
+            pending.remove(key, entry);
+            throw e;
+        }
+        worker.execute(() -> send(entry));
+        return true;
+    }
+
+    private boolean isRecentlyFinished(String key, long now) {
+        Long finishedAt = finished.get(key);
+        return finishedAt != null && now - finishedAt < FINISHED_RETENTION_MILLIS;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the worker. Rows still pending stay in the log and are sent by the next run.
+     */
+    synchronized void close() {
+        closed = true;
+        worker.shutdownNow();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to close the outbox log", e);
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Outbox closed with {} rows left for the next start", pending.size());
+        }
+    }
+
+    private void send(Entry entry) {
+        if (closed || pending.get(entry.key) != entry) {
+            return;
+        }
+        if (entry.uncertain) {
+            int rowNumber;
+            try {
+                rowNumber = findInSheet(entry);
+            } catch (IOException | RuntimeException e) {
+                retryLater(entry, e);
+                return;
+            }
+            if (rowNumber > 0) {
+                logger.info("Row {} was already appended to sheet {} at row {}", entry.key, entry.sheetName, rowNumber);
+                finish(entry, rowNumber, null);
+                return;
+            }
+        }
+        entry.attempts++;
+        CompletableFuture<Integer> result;
+        try {
+            result = appendBatcher.enqueue(entry.sheetName, entry.row);
+        } catch (RuntimeException e) { // The batcher is shutting down
+            retryLater(entry, e);
+            return;
+        }
+        result.whenComplete((rowNumber, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause == null) {
+                finish(entry, rowNumber, null);
+            } else if (isRefused(cause)) {
+                logger.error("Sheet {} refused row {}, dropping it", entry.sheetName, entry.key, cause);
+                finish(entry, -1, cause);
+            } else {
+                entry.uncertain |= !isThrottled(cause);
+                retryLater(entry, cause);
+            }
+        });
+    }
+
+    private void retryLater(Entry entry, Throwable cause) {
+        if (closed) {
+            return;
+        }
+        long backoff = SheetsRequestScheduler.backoffMillis(entry.attempts); // Capped, a row is never given up
+        logger.warn("Row {} for sheet {} not stored yet (attempt {}), next try in {} ms: {}",
+                entry.key, entry.sheetName, entry.attempts, backoff, cause.toString());
+        worker.schedule(() -> send(entry), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(Entry entry, int rowNumber, Throwable error) {
+        long now = System.currentTimeMillis();
+        finished.put(entry.key, now); // Before leaving pending, so a repeat always finds the key in one of them
+        if (!pending.remove(entry.key, entry)) {
+            return;
+        }
+        try {
+            write(TYPE_FINISHED, encodeFinished(entry.key, now));
+        } catch (IOException | RuntimeException e) {
+            // Replayed on the next start, where the sheet check finds the row and does not add it again
+            logger.warn("Failed to record row {} as done in the outbox", entry.key, e);
+        }
+        try {
+            listener.onResult(entry, rowNumber, error);
+        } catch (RuntimeException e) {
+            logger.error("Outbox listener failed for row {}", entry.key, e);
+        }
+    }
+
+    /**
+     * Returns the newest sheet row holding the entry's cells below its last known row, or -1. All rows from there
+     * to the end are read, however many were appended since; with no known row, the whole sheet.
+     * Cells are read as stored and compared by what the sheet made of the sent text, see {@link #sameCell}.
+     */
+    private int findInSheet(Entry entry) throws IOException {
+        int found = -1;
+        for (int first = Math.max(SheetTailReader.FIRST_DATA_ROW, entry.lastKnownRow + 1); ; first += VERIFY_CHUNK_ROWS) {
+            SheetTailReader.TailWindow window = tailReader.readUnformattedWindow(entry.sheetName, first,
+                    first + VERIFY_CHUNK_ROWS - 1);
+            if (window == null) {
+                return -1; // Sheet is gone, the append fails for good
+            }
+            List<List<Object>> rows = window.getRows();
+            for (int i = 0; i < rows.size(); i++) {
+                if (sameCells(rows.get(i), entry.row)) {
+                    found = window.getFirstRowNumber() + i;
+                }
+            }
+            if (rows.size() < VERIFY_CHUNK_ROWS) {
+                return found; // Blank rows at the end were dropped, the data ends in this window
+            }
+        }
+    }
+
+    static boolean sameCells(List<Object> stored, List<Object> sent) {
+        int size = Math.max(stored.size(), sent.size());
+        for (int i = 0; i < size; i++) {
+            if (!sameCell(cellAt(stored, i), cellAt(sent, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object cellAt(List<Object> row, int index) {
+        return index < row.size() ? row.get(index) : null;
+    }
+
+    /**
+     * Whether an unformatted cell holds what was sent as {@code USER_ENTERED} text. Sheets stores such text as a
+     * number when it reads as one (a decimal with either separator, a percentage, a date or a time as a serial
+     * number) and as text otherwise, without a leading {@code '}.
+     */
+    static boolean sameCell(Object stored, Object sent) {
+        String text = sent == null ? "" : String.valueOf(sent).trim();
+        if (stored instanceof Number) {
+            double value = ((Number) stored).doubleValue();
+            for (double reading : numericReadings(text)) {
+                if (Math.abs(reading - value) <= SAME_NUMBER_TOLERANCE * Math.max(1, Math.abs(value))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (stored instanceof Boolean) {
+            boolean value = (Boolean) stored;
+            return text.equalsIgnoreCase(value ? "TRUE" : "FALSE") || text.equalsIgnoreCase(value ? "ИСТИНА" : "ЛОЖЬ");
+        }
+        String storedText = stored == null ? "" : String.valueOf(stored).trim();
+        if (text.startsWith("'")) {
+            text = text.substring(1).trim();
+        }
+        return storedText.equals(text);
+    }
+
+    /**
+     * The numbers Sheets may have stored for the text, depending on the spreadsheet locale.
+     */
+    private static List<Double> numericReadings(String text) {
+        List<Double> readings = new ArrayList<>(2);
+        String compact = text.replace(" ", "").replace("\u00A0", "");
+        double scale = 1;
+        if (compact.endsWith("%")) {
+            compact = compact.substring(0, compact.length() - 1);
+            scale = 0.01;
+        }
+        addNumber(readings, compact.replace(',', '.'), scale); // Decimal comma
+        addNumber(readings, compact.replace(",", ""), scale); // Thousands comma
+        Matcher matcher = DATE_TIME.matcher(text);
+        if (matcher.matches()) {
+            if (matcher.group(1) != null) {
+                int first = Integer.parseInt(matcher.group(1));
+                int second = Integer.parseInt(matcher.group(3));
+                int third = Integer.parseInt(matcher.group(4));
+                double time = dayFraction(matcher.group(5), matcher.group(6), matcher.group(7));
+                if (matcher.group(1).length() == 4) {
+                    addDate(readings, first, second, third, time); // yyyy-M-d
+                } else if (matcher.group(4).length() == 4) {
+                    addDate(readings, third, second, first, time); // d.M.yyyy
+                    addDate(readings, third, first, second, time); // M/d/yyyy
+                }
+            } else {
+                readings.add(dayFraction(matcher.group(8), matcher.group(9), matcher.group(10)));
+            }
+        }
+        return readings;
+    }
+
+    private static void addNumber(List<Double> readings, String text, double scale) {
+        if (NUMBER.matcher(text).matches()) {
+            readings.add(Double.parseDouble(text) * scale);
+        }
+    }
+
+    private static void addDate(List<Double> readings, int year, int month, int day, double time) {
+        try {
+            readings.add(ChronoUnit.DAYS.between(SERIAL_EPOCH, LocalDate.of(year, month, day)) + time);
+        } catch (DateTimeException e) {
+            // Not a date in this order
+        }
+    }
+
+    private static double dayFraction(String hours, String minutes, String seconds) {
+        if (hours == null) {
+            return 0;
+        }
+        int total = Integer.parseInt(hours) * 3600 + Integer.parseInt(minutes) * 60
+                + (seconds != null ? Integer.parseInt(seconds) : 0);
+        return total / 86400.0;
+    }
+
+    /**
+     * A 4xx other than 429 means the request was refused as such (sheet deleted, bad range), a retry cannot help.
+     */
+    private static boolean isRefused(Throwable error) {
+        if (error instanceof HttpResponseException) {
+            int status = ((HttpResponseException) error).getStatusCode();
+            return status >= 400 && status < 500 && status != 429;
+        }
+        return false;
+    }
+
+    /**
+     * A 429 is answered before anything is written, the row is certainly not in the sheet.
+     */
+    private static boolean isThrottled(Throwable error) {
+        return error instanceof HttpResponseException && ((HttpResponseException) error).getStatusCode() == 429;
+    }
+
+    private synchronized void write(byte type, byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Outbox is closed");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + 1 + payload.length);
+        record.putInt(1 + payload.length);
+        record.putInt(crcOf(type, payload));
+        record.put(type);
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        if (type == TYPE_DONE && channel.size() > COMPACTION_BYTES) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending rows and the keys finished within the retention, called with the lock
+     * held.
+     */
+    private void compact() throws IOException {
+        Path tmp = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC));
+            for (Entry entry : pending.values()) {
+                writeRecord(out, TYPE_ADD, encode(entry));
+            }
+            long now = System.currentTimeMillis();
+            finished.values().removeIf(finishedAt -> now - finishedAt >= FINISHED_RETENTION_MILLIS);
+            for (Map.Entry<String, Long> key : finished.entrySet()) {
+                writeRecord(out, TYPE_FINISHED, encodeFinished(key.getKey(), key.getValue()));
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        logger.info("Compacted the outbox log to {} pending rows and {} finished keys", pending.size(), finished.size());
+    }
+
+    private static void writeRecord(FileChannel out, byte type, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + 1 + payload.length);
+        record.putInt(1 + payload.length).putInt(crcOf(type, payload)).put(type).put(payload).flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    /**
+     * Loads the rows that were added but not finished and the keys finished within the retention. Returns the offset
+     * after the last valid record, or -1 if there is no usable log.
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(logPath)) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(logPath));
+        if (buffer.remaining() < Integer.BYTES || buffer.getInt() != MAGIC) {
+            logger.warn("Outbox log {} is not valid, starting a new one", logPath);
+            return -1;
+        }
+        long validEnd = buffer.position();
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 1 || length > buffer.remaining()) {
+                break; // End of the written part or a torn write
+            }
+            byte type = buffer.get();
+            byte[] payload = new byte[length - 1];
+            buffer.get(payload);
+            if (crcOf(type, payload) != crc) {
+                break;
+            }
+            if (type == TYPE_ADD) {
+                Entry entry = decode(payload);
+                pending.put(entry.key, entry);
+            } else if (type == TYPE_DONE) {
+                Entry entry = pending.remove(new String(payload, StandardCharsets.UTF_8));
+                if (entry != null) {
+                    finished.put(entry.key, entry.createdAt); // The finish time was not recorded, the add time is close
+                }
+            } else if (type == TYPE_FINISHED) {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                String key = readString(in);
+                pending.remove(key);
+                finished.put(key, in.getLong());
+            }
+            validEnd = buffer.position();
+        }
+        long now = System.currentTimeMillis();
+        finished.values().removeIf(finishedAt -> now - finishedAt >= FINISHED_RETENTION_MILLIS);
+        return validEnd;
+    }
+
+    private static int crcOf(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, entry.key);
+            out.writeLong(entry.chatId);
+            out.writeInt(entry.messageId);
+            writeString(out, entry.sheetName);
+            out.writeInt(entry.lastKnownRow);
+            out.writeLong(entry.createdAt);
+            out.writeInt(entry.row.size());
+            for (Object cell : entry.row) {
+                writeString(out, cell != null ? String.valueOf(cell) : "");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory stream cannot fail", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeFinished(String key, long finishedAt) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, key);
+            out.writeLong(finishedAt);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory stream cannot fail", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] payload) {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        String key = readString(in);
+        long chatId = in.getLong();
+        int messageId = in.getInt();
+        String sheetName = readString(in);
+        int lastKnownRow = in.getInt();
+        long createdAt = in.getLong();
+        int cells = in.getInt();
+        List<Object> row = new ArrayList<>(cells);
+        for (int i = 0; i < cells; i++) {
+            row.add(readString(in));
+        }
+        return new Entry(key, chatId, messageId, sheetName, row, lastKnownRow, createdAt);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    static final class Entry {
+        private final String key;
+        private final long chatId;
+        private final int messageId;
+        private final String sheetName;
+        private final List<Object> row;
+        private final int lastKnownRow;
+        private final long createdAt;
+        private volatile int attempts; // Only changed by the worker thread
+        private volatile boolean uncertain;
+
+        private Entry(String key, long chatId, int messageId, String sheetName, List<Object> row,
+                      int lastKnownRow, long createdAt) {
+            this.key = key;
+            this.chatId = chatId;
+            this.messageId = messageId;
+            this.sheetName = sheetName;
+            this.row = Collections.unmodifiableList(new ArrayList<>(row));
+            this.lastKnownRow = lastKnownRow;
+            this.createdAt = createdAt;
+        }
+
+        long getChatId() {
+            return chatId;
+        }
+
+        int getMessageId() {
+            return messageId;
+        }
+
+        String getSheetName() {
+            return sheetName;
+        }
+
+        List<Object> getRow() {
+            return row;
+        }
+
+        long getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ru.mperminov;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Rows of an uploaded table, read one at a time so a file is never held in memory as a whole.
+ */
+interface RowReader extends Closeable {
+
+    /**
+     * Returns the cells of the next row, or {@code null} at the end of the file.
+     */
+    List<String> next() throws IOException;
+
+    /**
+     * Row of the file the last returned row came from, for error messages.
+     */
+    int getLineNumber();
+}
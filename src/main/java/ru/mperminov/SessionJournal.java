@@ -0,0 +1,506 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of session transitions, so drafts survive a restart.
+ * <p>
+ * Records go into a memory-mapped segment file, which makes them safe against a process crash as soon as they
+ * are copied into the mapping. When the segment fills up, the latest state of every chat is written to a snapshot
+ * file and the segment starts over. Both files carry a generation number, a segment whose generation differs from
+ * the snapshot is left over from an interrupted compaction and is ignored on replay.
+ * <p>
+ * Callers only encode the state and hand the bytes to a queue, the file is written by a background thread.
+ * Replayed sessions are kept encoded and only decoded when their chat shows up again, so a restart does not
+ * pay for sessions that are never resumed.
+ */
+class SessionJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionJournal.class);
+    private static final int MAGIC = 0x484C5331; // "HLS1"
+    private static final int FILE_HEADER_BYTES = Integer.BYTES + Long.BYTES; // magic + generation
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES; // length + crc
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final long FORCE_INTERVAL_MILLIS = 1000; // How often dirty pages are pushed to disk
+    private static final double COMPACTION_THRESHOLD = 0.75; // Segment fill ratio that triggers a snapshot
+    private static final Record POISON = new Record(0L, 0L, (byte) 0, null);
+    private static final byte[] ZEROS = new byte[1 << 16];
+
+    private final Path segmentPath;
+    private final Path snapshotPath;
+    private final int segmentBytes;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Map<Long, Record> latest = new HashMap<>(); // Live state per chat, owned by the writer thread
+    private final Map<Long, byte[]> dormant = new ConcurrentHashMap<>(); // Replayed but not yet resumed sessions
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long generation;
+    private long maxAgeMillis;
+    private Thread writer;
+
+    SessionJournal(Path directory, int segmentBytes) {
+        this.segmentPath = directory.resolve("sessions.journal");
+        this.snapshotPath = directory.resolve("sessions.snapshot");
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Replays the snapshot and the segment and starts the writer. Sessions written more than
+     * {@code maxAgeMillis} ago are dropped. Returns the number of sessions that can be resumed.
+     */
+    int open(long maxAgeMillis) throws IOException {
+        long start = System.nanoTime();
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(segmentPath.getParent());
+        generation = replaySnapshot();
+        int segmentEnd = replaySegment();
+        dropExpired();
+        for (Record record : latest.values()) {
+            dormant.put(record.chatId, record.payload);
+        }
+        openSegment(segmentEnd);
+        logger.info("Replayed session journal in {} ms: {} sessions, generation {}",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                dormant.size(),
+                generation);
+
+        writer = new Thread(this::writeLoop, "session-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return dormant.size();
+    }
+
+    /**
+     * Returns the replayed session of the chat, or {@code null} if there is none. A session is handed out once,
+     * afterwards it lives in the session store.
+     */
+    UserState restore(long chatId) {
+        byte[] payload = dormant.remove(chatId);
+        return payload != null ? decode(payload) : null;
+    }
+
+    /**
+     * Queues the current state of a chat. Cheap enough to call after every update.
+     */
+    void recordPut(long chatId, UserState state) {
+        dormant.remove(chatId);
+        queue.add(new Record(chatId, System.currentTimeMillis(), TYPE_PUT, encode(state)));
+    }
+
+    void recordRemove(long chatId) {
+        dormant.remove(chatId);
+        queue.add(new Record(chatId, System.currentTimeMillis(), TYPE_REMOVE, null));
+    }
+
+    /**
+     * Writes everything still queued and stops the writer.
+     */
+    void close(long timeout, TimeUnit unit) throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        queue.add(POISON);
+        writer.join(unit.toMillis(timeout));
+        if (writer.isAlive()) {
+            logger.warn("Session journal writer did not finish in time, {} records left in queue", queue.size());
+        }
+    }
+
+    private void writeLoop() {
+        long lastForce = System.currentTimeMillis();
+        boolean dirty = false;
+        List<Record> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Record first = queue.poll(FORCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                boolean stop = false;
+                for (Record record : batch) {
+                    if (record == POISON) {
+                        stop = true;
+                        break;
+                    }
+                    append(record);
+                    dirty = true;
+                }
+                batch.clear();
+                long now = System.currentTimeMillis();
+                if (dirty && (stop || now - lastForce >= FORCE_INTERVAL_MILLIS)) {
+                    segment.force();
+                    lastForce = now;
+                    dirty = false;
+                }
+                if (stop) {
+                    logger.info("Session journal closed with {} live sessions", latest.size());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Session journal writer interrupted");
+        } catch (IOException | RuntimeException e) {
+            logger.error("Session journal writer failed, sessions are no longer persisted", e);
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        if (record.type == TYPE_PUT) {
+            latest.put(record.chatId, record);
+        } else {
+            latest.remove(record.chatId);
+        }
+        int needed = RECORD_HEADER_BYTES + record.bodyLength();
+        if (needed > segmentBytes - FILE_HEADER_BYTES - Integer.BYTES) {
+            logger.error("Session of chatId {} is too large for the journal ({} bytes), not persisted", record.chatId, needed);
+            return;
+        }
+        if (segment.position() + needed > segmentBytes * COMPACTION_THRESHOLD
+                || segment.position() + needed + Integer.BYTES > segmentBytes) {
+            compact();
+        }
+        writeRecord(segment, record, generation);
+    }
+
+    /**
+     * Writes every live session into a new snapshot and resets the segment to the new generation.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        long nextGeneration = generation + 1;
+        dropExpired();
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(nextGeneration);
+            out.writeInt(latest.size());
+            for (Record record : latest.values()) {
+                writeRecord(out, record, nextGeneration);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        resetSegment(segment.position(), nextGeneration);
+        generation = nextGeneration;
+        logger.info("Compacted session journal: {} sessions in snapshot generation {} ({} ms)",
+                latest.size(),
+                generation,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Maps the segment for writing. Appends continue after {@code validEnd}, or the segment starts over
+     * if it could not be replayed ({@code validEnd < 0}).
+     */
+    private void openSegment(int validEnd) throws IOException {
+        segmentChannel = FileChannel.open(segmentPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        if (validEnd < 0) {
+            resetSegment(segmentBytes, generation); // Unknown content from an older run
+        } else {
+            zeroSegment(validEnd, segmentBytes); // Drop a torn record the last run may have left behind
+            segment.position(validEnd);
+        }
+    }
+
+    /**
+     * Zeroes the used part first, then publishes the new generation.
+     */
+    private void resetSegment(int used, long newGeneration) {
+        zeroSegment(FILE_HEADER_BYTES, used);
+        segment.putInt(0, MAGIC);
+        segment.putLong(Integer.BYTES, newGeneration);
+        segment.force();
+        segment.position(FILE_HEADER_BYTES);
+    }
+
+    private void zeroSegment(int from, int to) {
+        segment.position(from);
+        while (segment.position() < to) {
+            segment.put(ZEROS, 0, Math.min(ZEROS.length, to - segment.position()));
+        }
+    }
+
+    private void dropExpired() {
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        latest.values().removeIf(record -> {
+            if (record.timestamp < oldestAllowed) {
+                dormant.remove(record.chatId);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private long replaySnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0L;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        if (buffer.remaining() < FILE_HEADER_BYTES + Integer.BYTES || buffer.getInt() != MAGIC) {
+            logger.warn("Session snapshot {} is not valid, starting without it", snapshotPath);
+            return 0L;
+        }
+        long snapshotGeneration = buffer.getLong();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Record record = readRecord(buffer, snapshotGeneration);
+            if (record == null) {
+                logger.warn("Session snapshot {} is truncated after {} of {} records", snapshotPath, i, count);
+                break;
+            }
+            latest.put(record.chatId, record);
+        }
+        return snapshotGeneration;
+    }
+
+    /**
+     * Applies the segment records on top of the snapshot. Returns the offset after the last valid record,
+     * or -1 if the segment is missing or belongs to another generation.
+     */
+    private int replaySegment() throws IOException {
+        if (!Files.exists(segmentPath)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            if (channel.size() != segmentBytes) {
+                logger.info("Session journal segment has a different size, starting a new one");
+                return -1;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getLong() != generation) {
+                logger.info("Session journal segment belongs to another generation, skipping it");
+                return -1;
+            }
+            int replayed = 0;
+            int validEnd = buffer.position();
+            Record record;
+            while ((record = readRecord(buffer, generation)) != null) {
+                if (record.type == TYPE_PUT) {
+                    latest.put(record.chatId, record);
+                } else {
+                    latest.remove(record.chatId);
+                }
+                validEnd = buffer.position();
+                replayed++;
+            }
+            logger.debug("Replayed {} session journal records", replayed);
+            return validEnd;
+        }
+    }
+
+    private static void writeRecord(ByteBuffer buffer, Record record, long generation) {
+        int bodyLength = record.bodyLength();
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER_BYTES);
+        buffer.putLong(record.chatId);
+        buffer.putLong(record.timestamp);
+        buffer.put(record.type);
+        if (record.payload != null) {
+            buffer.put(record.payload);
+        }
+        buffer.putInt(start + Integer.BYTES, crcOf(record, generation));
+        buffer.putInt(start, bodyLength); // Written last: a torn record has length 0 and ends the replay
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record, long generation) throws IOException {
+        out.writeInt(record.bodyLength());
+        out.writeInt(crcOf(record, generation));
+        out.writeLong(record.chatId);
+        out.writeLong(record.timestamp);
+        out.writeByte(record.type);
+        if (record.payload != null) {
+            out.write(record.payload);
+        }
+    }
+
+    private static Record readRecord(ByteBuffer buffer, long generation) {
+        if (buffer.remaining() < RECORD_HEADER_BYTES) {
+            return null;
+        }
+        int bodyLength = buffer.getInt();
+        int crc = buffer.getInt();
+        int fixed = Long.BYTES + Long.BYTES + 1;
+        if (bodyLength < fixed || bodyLength > buffer.remaining()) {
+            return null; // End of the written part or a torn write
+        }
+        long chatId = buffer.getLong();
+        long timestamp = buffer.getLong();
+        byte type = buffer.get();
+        byte[] payload = null;
+        if (bodyLength > fixed) {
+            payload = new byte[bodyLength - fixed];
+            buffer.get(payload);
+        }
+        Record record = new Record(chatId, timestamp, type, payload);
+        if (crcOf(record, generation) != crc || (type != TYPE_PUT && type != TYPE_REMOVE)) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * The generation is part of the checksum, so leftovers of an older generation never pass as valid records.
+     */
+    private static int crcOf(Record record, long generation) {
+        CRC32 crc = new CRC32();
+        ByteBuffer fixed = ByteBuffer.allocate(Long.BYTES * 3 + 1);
+        fixed.putLong(generation).putLong(record.chatId).putLong(record.timestamp).put(record.type);
+        crc.update(fixed.array());
+        if (record.payload != null) {
+            crc.update(record.payload);
+        }
+        return (int) crc.getValue();
+    }
+
+    static byte[] encode(UserState state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(state.getState().ordinal());
+            writeStrings(out, state.getAvailableSheets());
+            writeString(out, state.getSheetNameForEditing());
+            writeValues(out, state.getHeaderRowForEditing());
+            writeValues(out, state.getTemplateRowForEditing());
+            IntObjectMap<Object> pendingEdits = state.getPendingEdits();
+            out.writeInt(pendingEdits.size());
+            for (int i = 0; i < pendingEdits.size(); i++) {
+                out.writeInt(pendingEdits.keyAt(i));
+                Object value = pendingEdits.valueAt(i);
+                writeString(out, value != null ? String.valueOf(value) : null);
+            }
+            out.writeInt(state.getColumnIndexBeingEdited());
+            out.writeInt(state.getPageSize());
+            out.writeInt(state.getDraftMessageId());
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory stream cannot fail", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static UserState decode(byte[] payload) {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        UserState.State state = UserState.State.values()[in.get()];
+        UserState userState = new UserState(state, readStrings(in));
+        String sheetName = readString(in);
+        userState.setSheetNameForEditing(sheetName);
+        List<Object> header = readValues(in);
+        userState.setTemplate(SheetTemplate.of(sheetName, header, readValues(in))); // Restored sessions share it too
+        int edits = in.getInt();
+        for (int i = 0; i < edits; i++) {
+            int columnIndex = in.getInt();
+            userState.setPendingEdit(columnIndex, readString(in));
+        }
+        userState.setColumnIndexBeingEdited(in.getInt());
+        if (in.hasRemaining()) { // Written by versions without page sizes otherwise
+            userState.setPageSize(in.getInt());
+        }
+        if (in.hasRemaining()) { // Written by versions that sent a new draft message for every value otherwise
+            userState.setDraftMessageId(in.getInt());
+        }
+        return userState;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, List<Object> values) throws IOException {
+        out.writeInt(values.size());
+        for (Object value : values) {
+            writeString(out, value != null ? String.valueOf(value) : null);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static List<Object> readValues(ByteBuffer in) {
+        int count = in.getInt();
+        List<Object> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static final class Record {
+        private final long chatId;
+        private final long timestamp;
+        private final byte type;
+        private final byte[] payload;
+
+        private Record(long chatId, long timestamp, byte type, byte[] payload) {
+            this.chatId = chatId;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        private int bodyLength() {
+            return Long.BYTES + Long.BYTES + 1 + (payload != null ? payload.length : 0);
+        }
+    }
+}
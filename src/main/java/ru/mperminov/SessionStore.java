@@ -0,0 +1,285 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Bounded store of {@link UserState} per chat with LRU and idle-time eviction.
+ * Chat ids are kept as primitive longs in an open-addressing table, all storage is allocated up front.
+ */
+class SessionStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionStore.class);
+    private static final int NIL = -1;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int maxSessions;
+    private final long idleTtlNanos;
+
+    // Hash table: slot -> entry index + 1, 0 marks an empty slot
+    private final int[] table;
+    private final int tableMask;
+
+    // Entries, addressed by index
+    private final long[] keys;
+    private final UserState[] values;
+    private final long[] lastAccess;
+    private final int[] prev; // Towards the most recently used entry
+    private final int[] next; // Towards the least recently used entry
+    private int head = NIL; // Most recently used
+    private int tail = NIL; // Least recently used
+    private int freeList = NIL; // Chained through next[]
+    private int size;
+
+    private long evictions;
+    private LongConsumer evictionListener = chatId -> { };
+    private LongFunction<UserState> missLoader = chatId -> null;
+    private long lastSweep = System.nanoTime();
+
+    SessionStore(int maxSessions, long idleTtl, TimeUnit unit) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+        this.idleTtlNanos = unit.toNanos(idleTtl);
+        int tableSize = Integer.highestOneBit(maxSessions * 2 - 1) << 1; // Load factor <= 0.5
+        this.table = new int[tableSize];
+        this.tableMask = tableSize - 1;
+        this.keys = new long[maxSessions];
+        this.values = new UserState[maxSessions];
+        this.lastAccess = new long[maxSessions];
+        this.prev = new int[maxSessions];
+        this.next = new int[maxSessions];
+        for (int i = 0; i < maxSessions; i++) {
+            next[i] = i + 1 < maxSessions ? i + 1 : NIL;
+        }
+        this.freeList = 0;
+        logger.info("Session store created for {} sessions, idle TTL {} min", maxSessions, unit.toMinutes(idleTtl));
+    }
+
+    /**
+     * Registers a callback for sessions dropped by idle time or size pressure. It runs under the store lock.
+     */
+    synchronized void setEvictionListener(LongConsumer evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Registers a source for sessions that are not in memory, e.g. ones replayed from disk. It runs under the store lock.
+     */
+    synchronized void setMissLoader(LongFunction<UserState> missLoader) {
+        this.missLoader = missLoader;
+    }
+
+    /**
+     * Returns the session of the chat or {@code null} if there is none or it expired.
+     */
+    synchronized UserState get(long chatId) {
+        long now = System.nanoTime();
+        int entry = find(chatId);
+        if (entry == NIL) {
+            UserState loaded = missLoader.apply(chatId);
+            if (loaded != null) {
+                entry = insert(chatId);
+                values[entry] = loaded;
+                lastAccess[entry] = now;
+            }
+            return loaded;
+        }
+        if (now - lastAccess[entry] > idleTtlNanos) {
+            evict(entry);
+            return null;
+        }
+        touch(entry, now);
+        return values[entry];
+    }
+
+    synchronized void put(long chatId, UserState state) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+        int entry = find(chatId);
+        if (entry == NIL) {
+            entry = insert(chatId);
+        }
+        values[entry] = state;
+        touch(entry, now);
+    }
+
+    synchronized UserState computeIfAbsent(long chatId, LongFunction<UserState> factory) {
+        UserState existing = get(chatId);
+        if (existing != null) {
+            return existing;
+        }
+        UserState created = factory.apply(chatId);
+        put(chatId, created);
+        return created;
+    }
+
+    synchronized void remove(long chatId) {
+        int entry = find(chatId);
+        if (entry != NIL) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Drops every session that was idle for longer than the TTL. Returns the number of evicted sessions.
+     */
+    synchronized int evictExpired() {
+        long now = System.nanoTime();
+        lastSweep = now;
+        int evicted = 0;
+        // The LRU list is ordered by access time, expired entries are all at the tail
+        while (tail != NIL && now - lastAccess[tail] > idleTtlNanos) {
+            evict(tail);
+            evicted++;
+        }
+        if (evicted > 0) {
+            logger.debug("Evicted {} idle sessions. Resident sessions: {}", evicted, size);
+        }
+        return evicted;
+    }
+
+    /**
+     * Number of sessions currently held in memory.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Total number of sessions dropped because of idle time or size pressure.
+     */
+    synchronized long evictionCount() {
+        return evictions;
+    }
+
+    int capacity() {
+        return maxSessions;
+    }
+
+    private void sweepIfDue(long now) {
+        if (now - lastSweep > SWEEP_INTERVAL_NANOS) {
+            evictExpired();
+        }
+    }
+
+    private int insert(long chatId) {
+        if (freeList == NIL) {
+            logger.debug("Session store is full ({}), evicting least recently used chatId {}", maxSessions, keys[tail]);
+            evict(tail);
+        }
+        int entry = freeList;
+        freeList = next[entry];
+        keys[entry] = chatId;
+        prev[entry] = NIL;
+        next[entry] = NIL;
+        linkHead(entry);
+
+        int slot = slotOf(chatId);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = entry + 1;
+        size++;
+        return entry;
+    }
+
+    private int find(long chatId) {
+        int slot = slotOf(chatId);
+        while (true) {
+            int stored = table[slot];
+            if (stored == 0) {
+                return NIL;
+            }
+            if (keys[stored - 1] == chatId) {
+                return stored - 1;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+    }
+
+    private void evict(int entry) {
+        long chatId = keys[entry];
+        removeEntry(entry);
+        evictions++;
+        evictionListener.accept(chatId);
+    }
+
+    private void removeEntry(int entry) {
+        deleteSlot(keys[entry]);
+        unlink(entry);
+        values[entry] = null;
+        next[entry] = freeList;
+        freeList = entry;
+        size--;
+    }
+
+    /**
+     * Removes the key from the linear-probing table, shifting later entries of the cluster back.
+     */
+    private void deleteSlot(long chatId) {
+        int slot = slotOf(chatId);
+        while (keys[table[slot] - 1] != chatId) {
+            slot = (slot + 1) & tableMask;
+        }
+        int gap = slot;
+        int probe = (gap + 1) & tableMask;
+        while (table[probe] != 0) {
+            int home = slotOf(keys[table[probe] - 1]);
+            // Move the entry into the gap if its home slot does not lie between the gap and the probe
+            if (((probe - home) & tableMask) >= ((probe - gap) & tableMask)) {
+                table[gap] = table[probe];
+                gap = probe;
+            }
+            probe = (probe + 1) & tableMask;
+        }
+        table[gap] = 0;
+    }
+
+    private void touch(int entry, long now) {
+        lastAccess[entry] = now;
+        if (entry != head) {
+            unlink(entry);
+            linkHead(entry);
+        }
+    }
+
+    private void linkHead(int entry) {
+        prev[entry] = NIL;
+        next[entry] = head;
+        if (head != NIL) {
+            prev[head] = entry;
+        }
+        head = entry;
+        if (tail == NIL) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        int before = prev[entry];
+        int after = next[entry];
+        if (before != NIL) {
+            next[before] = after;
+        } else {
+            head = after;
+        }
+        if (after != NIL) {
+            prev[after] = before;
+        } else {
+            tail = before;
+        }
+        prev[entry] = NIL;
+        next[entry] = NIL;
+    }
+
+    private int slotOf(long chatId) {
+        long h = chatId * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential ids
+        return (int) (h ^ (h >>> 32)) & tableMask;
+    }
+}
@@ -0,0 +1,183 @@
+package ru.mperminov;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.AppendValuesResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for new rows. Rows are grouped by sheet and written with one
+ * {@code values().append} per sheet once the batch is full or the linger time has passed.
+ * Every row gets its own future which completes when the row is stored in the sheet.
+ */
+class SheetAppendBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetAppendBatcher.class);
+
+    private final Sheets sheetsService;
+    private final String spreadsheetId;
+    private final SheetMetadataCache metadataCache;
+    private final int maxBatchRows;
+    private final long lingerMillis;
+    private final SheetsRequestScheduler scheduler;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheet-append-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, List<PendingRow>> pendingBySheet = new HashMap<>(); // Guarded by this
+
+    SheetAppendBatcher(Sheets sheetsService, String spreadsheetId, SheetMetadataCache metadataCache,
+                       int maxBatchRows, long lingerMillis, SheetsRequestScheduler scheduler) {
+        this.sheetsService = sheetsService;
+        this.spreadsheetId = spreadsheetId;
+        this.metadataCache = metadataCache;
+        this.maxBatchRows = Math.max(1, maxBatchRows);
+        this.lingerMillis = Math.max(0L, lingerMillis);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Queues a row for the given sheet. The future completes with the 1-based sheet row the data landed in
+     * ({@code -1} if the API did not report it) or exceptionally with the error of the write.
+     */
+    CompletableFuture<Integer> enqueue(String sheetName, List<Object> row) {
+        PendingRow pendingRow = new PendingRow(row);
+        boolean scheduleLinger = false;
+        boolean flushNow = false;
+        synchronized (this) {
+            List<PendingRow> batch = pendingBySheet.computeIfAbsent(sheetName, k -> new ArrayList<>());
+            batch.add(pendingRow);
+            if (batch.size() >= maxBatchRows) {
+                flushNow = true;
+            } else if (batch.size() == 1) {
+                scheduleLinger = true; // First row of a new batch starts the linger timer
+            }
+        }
+        if (flushNow) {
+            flusher.execute(() -> flush(sheetName));
+        } else if (scheduleLinger) {
+            flusher.schedule(() -> flush(sheetName), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        return pendingRow.result;
+    }
+
+    /**
+     * Writes out everything still queued and stops the flusher.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        List<String> sheets;
+        synchronized (this) {
+            sheets = new ArrayList<>(pendingBySheet.keySet());
+        }
+        for (String sheetName : sheets) {
+            flusher.execute(() -> flush(sheetName));
+        }
+        flusher.shutdown();
+        if (!flusher.awaitTermination(timeout, unit)) {
+            logger.warn("Append flusher did not finish in time, queued rows may be lost");
+        }
+    }
+
+    private void flush(String sheetName) {
+        List<PendingRow> batch;
+        synchronized (this) {
+            batch = pendingBySheet.remove(sheetName);
+        }
+        if (batch == null || batch.isEmpty()) {
+            return; // Already flushed by the size trigger
+        }
+        try {
+            int firstRow = append(sheetName, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(firstRow > 0 ? firstRow + i : -1);
+            }
+            logger.info("Appended batch of {} rows to sheet {}", batch.size(), sheetName);
+        } catch (IOException | RuntimeException e) {
+            if (batch.size() == 1 || !isRefused(e)) {
+                // Without a clear refusal the batch may have been written, sending rows again could duplicate them
+                logger.error("Failed to append {} rows to sheet {}", batch.size(), sheetName, e);
+                batch.forEach(pendingRow -> pendingRow.result.completeExceptionally(e));
+                return;
+            }
+            // Find out which rows are the problem, the others still get written
+            logger.warn("Batch append of {} rows to sheet {} failed, retrying rows one by one", batch.size(), sheetName, e);
+            for (PendingRow pendingRow : batch) {
+                try {
+                    pendingRow.result.complete(append(sheetName, List.of(pendingRow)));
+                } catch (IOException | RuntimeException rowError) {
+                    logger.error("Failed to append row to sheet {}", sheetName, rowError);
+                    pendingRow.result.completeExceptionally(rowError);
+                }
+            }
+        } finally {
+            metadataCache.invalidate(); // The grid of this sheet grew
+        }
+    }
+
+    /**
+     * A 4xx answer means the API rejected the request before writing anything.
+     */
+    private static boolean isRefused(Exception e) {
+        if (!(e instanceof HttpResponseException)) {
+            return false;
+        }
+        int status = ((HttpResponseException) e).getStatusCode();
+        return status >= 400 && status < 500;
+    }
+
+    private int append(String sheetName, List<PendingRow> batch) throws IOException {
+        List<List<Object>> values = new ArrayList<>(batch.size());
+        for (PendingRow pendingRow : batch) {
+            values.add(pendingRow.row);
+        }
+        AppendValuesResponse response = scheduler.execute(BotMetrics.SheetsCall.VALUES_APPEND,
+                SheetsRequests.append(sheetsService, spreadsheetId, SheetTailReader.quoteSheetName(sheetName), values));
+        if (response == null || response.getUpdates() == null) {
+            return -1;
+        }
+        return firstRowOf(response.getUpdates().getUpdatedRange());
+    }
+
+    /**
+     * Extracts the first row number from an A1 range like {@code 'Sheet'!A15:F17}, or -1.
+     */
+    static int firstRowOf(String a1Range) {
+        if (a1Range == null) {
+            return -1;
+        }
+        int i = a1Range.lastIndexOf('!') + 1;
+        while (i < a1Range.length() && Character.isLetter(a1Range.charAt(i))) {
+            i++;
+        }
+        int row = 0;
+        boolean hasDigits = false;
+        while (i < a1Range.length() && Character.isDigit(a1Range.charAt(i))) {
+            row = row * 10 + (a1Range.charAt(i) - '0');
+            hasDigits = true;
+            i++;
+        }
+        return hasDigits ? row : -1;
+    }
+
+    private static final class PendingRow {
+        private final List<Object> row;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private PendingRow(List<Object> row) {
+            this.row = row;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes a whole sheet as CSV for {@code /export}. The sheet is read in windows of {@code chunkRows} rows and every
+ * window is encoded straight into the output, so memory holds one window at a time however long the sheet is.
+ * <p>
+ * The file is UTF-8 with a byte order mark and semicolons, which is what Excel in Russian opens without asking;
+ * {@link CsvRowReader} reads it back. Blank rows are left out.
+ */
+class SheetCsvExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetCsvExporter.class);
+    static final char DELIMITER = ';';
+
+    private final SheetTailReader tailReader;
+    private final int chunkRows;
+    private final long maxBytes;
+
+    SheetCsvExporter(SheetTailReader tailReader, int chunkRows, long maxBytes) {
+        this.tailReader = tailReader;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Writes the header and the data rows of the sheet into {@code out}, returns the number of data rows.
+     * Fails once the file would grow beyond {@code maxBytes}. Does not close {@code out}.
+     */
+    long export(SheetMetadataCache.SheetInfo sheetInfo, OutputStream out) throws IOException {
+        long started = System.nanoTime();
+        LimitedOutputStream limited = new LimitedOutputStream(out, maxBytes);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(limited, StandardCharsets.UTF_8), 1 << 16);
+        writer.write('\uFEFF'); // Byte order mark
+        int width = sheetInfo.getColumnCount();
+        List<Object> header = sheetInfo.getHeaderRow();
+        boolean headerWritten = false;
+        if (header != null && !header.isEmpty()) {
+            writeRow(writer, header, width);
+            headerWritten = true;
+        }
+        long rows = 0;
+        // The grid size is from cached metadata and may miss rows appended since, so reading goes on past it until
+        // a window comes back empty. Windows inside the grid may be blank without the sheet having ended.
+        for (int first = SheetTailReader.FIRST_DATA_ROW; ; first += chunkRows) {
+            SheetTailReader.TailWindow window = tailReader.readWindow(sheetInfo.getTitle(), first, first + chunkRows - 1);
+            if (window == null) {
+                throw new IOException("Лист " + sheetInfo.getTitle() + " не найден");
+            }
+            if (!headerWritten) {
+                writeRow(writer, window.getHeaderRow(), width);
+                headerWritten = true;
+            }
+            if (first > sheetInfo.getRowCount() && window.getRows().isEmpty()) {
+                break;
+            }
+            for (List<Object> row : window.getRows()) {
+                if (!SheetTailReader.isBlankRow(row)) {
+                    writeRow(writer, row, width);
+                    rows++;
+                }
+            }
+        }
+        writer.flush();
+        logger.info("Exported {} rows ({} bytes) of sheet {} in {} ms", rows, limited.count, sheetInfo.getTitle(),
+                (System.nanoTime() - started) / 1_000_000);
+        return rows;
+    }
+
+    /**
+     * Writes one CSV record of exactly {@code width} fields, quoting the ones that need it.
+     */
+    static void writeRow(Writer out, List<Object> row, int width) throws IOException {
+        int fields = Math.max(width, row != null ? row.size() : 0);
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                out.write(DELIMITER);
+            }
+            Object cell = row != null && i < row.size() ? row.get(i) : null;
+            if (cell != null) {
+                writeField(out, cell.toString());
+            }
+        }
+        out.write("\r\n"); // RFC 4180 line break
+    }
+
+    private static void writeField(Writer out, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == DELIMITER || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        int from = 0;
+        for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', i + 1)) {
+            out.write(value, from, i + 1 - from);
+            out.write('"'); // Doubled
+            from = i + 1;
+        }
+        out.write(value, from, value.length() - from);
+        out.write('"');
+    }
+
+    /**
+     * Counts the bytes written and refuses to go beyond the limit, Telegram does not take bigger documents.
+     */
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private final long limit;
+        private long count;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            reserve(len);
+            out.write(b, off, len);
+        }
+
+        private void reserve(int bytes) throws IOException {
+            count += bytes;
+            if (count > limit) {
+                throw new IOException("файл больше " + (limit >> 20) + " МБ, Telegram его не примет");
+            }
+        }
+    }
+}
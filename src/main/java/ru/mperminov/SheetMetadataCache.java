@@ -0,0 +1,264 @@
+package ru.mperminov;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.GridProperties;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.SheetProperties;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared cache of the spreadsheet metadata: sheet titles, ids, grid sizes and header rows.
+ * Stale entries are still served while a background refresh runs, concurrent misses share one load.
+ */
+class SheetMetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetMetadataCache.class);
+
+    private final Sheets sheetsService;
+    private final String spreadsheetId;
+    private final long ttlMillis;
+    private final SheetsRequestScheduler scheduler;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheet-metadata-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Snapshot snapshot;
+    private CompletableFuture<Snapshot> inFlight; // Guarded by this
+    private boolean reloadAfterInFlight; // Invalidated while a load was running, guarded by this
+
+    SheetMetadataCache(Sheets sheetsService, String spreadsheetId, long ttlMillis, SheetsRequestScheduler scheduler) {
+        this.sheetsService = sheetsService;
+        this.spreadsheetId = spreadsheetId;
+        this.ttlMillis = ttlMillis;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the cached metadata. Only the very first call (or a call after a failed load) waits for Google,
+     * expired metadata is returned as is and refreshed in the background.
+     */
+    Snapshot get() throws IOException {
+        Snapshot current = snapshot;
+        if (current != null) {
+            if (System.currentTimeMillis() - current.loadedAt >= ttlMillis) {
+                refreshInBackground();
+            }
+            return current;
+        }
+        try {
+            return startLoad().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Не удалось загрузить список листов", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the cached metadata without waiting for Google, or {@code null} if none was loaded yet; a load is
+     * started then. Expired metadata is returned as is and refreshed in the background, as by {@link #get()}.
+     */
+    Snapshot getIfPresent() {
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.loadedAt >= ttlMillis) {
+            refreshInBackground();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the cached info for one sheet or {@code null} if there is no such sheet.
+     */
+    SheetInfo getSheet(String title) throws IOException {
+        return get().sheetsByTitle.get(title);
+    }
+
+    /**
+     * Returns the cached info for the sheet with this id or {@code null}, sheet ids survive renames.
+     */
+    SheetInfo getSheetById(int sheetId) throws IOException {
+        for (SheetInfo info : get().sheetsByTitle.values()) {
+            if (info.getSheetId() == sheetId) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the metadata as outdated, e.g. after the bot appended rows. The current snapshot stays
+     * readable until the refresh completes.
+     */
+    void invalidate() {
+        synchronized (this) {
+            if (snapshot != null) {
+                snapshot = snapshot.expired();
+            }
+            if (inFlight != null) {
+                reloadAfterInFlight = true; // The running load may have started before the change
+                return;
+            }
+        }
+        refreshInBackground();
+    }
+
+    private void refreshInBackground() {
+        startLoad().whenComplete((loaded, error) -> {
+            if (error != null) {
+                logger.warn("Background refresh of spreadsheet {} metadata failed, serving stale data", spreadsheetId, error);
+            }
+        });
+    }
+
+    private synchronized CompletableFuture<Snapshot> startLoad() {
+        if (inFlight != null) {
+            return inFlight;
+        }
+        CompletableFuture<Snapshot> load = CompletableFuture.supplyAsync(() -> {
+            try {
+                return load();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, refresher);
+        inFlight = load;
+        load.whenComplete((loaded, error) -> {
+            boolean reload;
+            synchronized (this) {
+                if (loaded != null) {
+                    snapshot = reloadAfterInFlight ? loaded.expired() : loaded;
+                }
+                inFlight = null;
+                reload = reloadAfterInFlight;
+                reloadAfterInFlight = false;
+            }
+            if (reload) {
+                refreshInBackground();
+            }
+        });
+        return load;
+    }
+
+    private Snapshot load() throws IOException {
+        long start = System.currentTimeMillis();
+        Spreadsheet spreadsheet = scheduler.execute(BotMetrics.SheetsCall.SPREADSHEETS_GET,
+                SheetsRequests.spreadsheet(sheetsService, spreadsheetId));
+        List<Sheet> sheets = spreadsheet.getSheets() != null ? spreadsheet.getSheets() : Collections.emptyList();
+
+        List<String> headerRanges = new ArrayList<>(sheets.size());
+        for (Sheet sheet : sheets) {
+            SheetProperties properties = sheet.getProperties();
+            headerRanges.add(SheetTailReader.quoteSheetName(properties.getTitle())
+                    + "!A1:" + SheetTailReader.columnLetters(columnCount(properties.getGridProperties())) + "1");
+        }
+        List<ValueRange> headers = Collections.emptyList();
+        if (!headerRanges.isEmpty()) {
+            headers = scheduler.execute(BotMetrics.SheetsCall.VALUES_BATCH_GET,
+                    SheetsRequests.batchValues(sheetsService, spreadsheetId, headerRanges))
+                    .getValueRanges();
+        }
+
+        Map<String, SheetInfo> sheetsByTitle = new LinkedHashMap<>();
+        for (int i = 0; i < sheets.size(); i++) {
+            SheetProperties properties = sheets.get(i).getProperties();
+            GridProperties grid = properties.getGridProperties();
+            List<List<Object>> headerValues = i < headers.size() ? headers.get(i).getValues() : null;
+            List<Object> headerRow = headerValues != null && !headerValues.isEmpty()
+                    ? Collections.unmodifiableList(new ArrayList<>(headerValues.get(0)))
+                    : Collections.emptyList();
+            sheetsByTitle.put(properties.getTitle(), new SheetInfo(
+                    properties.getTitle(),
+                    properties.getSheetId() != null ? properties.getSheetId() : 0,
+                    grid != null && grid.getRowCount() != null ? grid.getRowCount() : 0,
+                    columnCount(grid),
+                    headerRow));
+        }
+        logger.info("Loaded metadata of {} sheets from spreadsheet {} in {} ms",
+                sheetsByTitle.size(),
+                spreadsheetId,
+                System.currentTimeMillis() - start);
+        return new Snapshot(sheetsByTitle, System.currentTimeMillis());
+    }
+
+    private static int columnCount(GridProperties grid) {
+        return grid != null && grid.getColumnCount() != null ? grid.getColumnCount() : 1;
+    }
+
+    static final class Snapshot {
+        private final Map<String, SheetInfo> sheetsByTitle;
+        private final List<String> sheetTitles;
+        private final long loadedAt;
+
+        private Snapshot(Map<String, SheetInfo> sheetsByTitle, long loadedAt) {
+            this.sheetsByTitle = Collections.unmodifiableMap(sheetsByTitle);
+            this.sheetTitles = List.copyOf(sheetsByTitle.keySet());
+            this.loadedAt = loadedAt;
+        }
+
+        private Snapshot expired() {
+            return new Snapshot(sheetsByTitle, 0L);
+        }
+
+        List<String> getSheetTitles() {
+            return sheetTitles;
+        }
+
+        Map<String, SheetInfo> getSheetsByTitle() {
+            return sheetsByTitle;
+        }
+    }
+
+    static final class SheetInfo {
+        private final String title;
+        private final int sheetId;
+        private final int rowCount;
+        private final int columnCount;
+        private final List<Object> headerRow;
+
+        SheetInfo(String title, int sheetId, int rowCount, int columnCount, List<Object> headerRow) {
+            this.title = title;
+            this.sheetId = sheetId;
+            this.rowCount = rowCount;
+            this.columnCount = columnCount;
+            this.headerRow = headerRow;
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        int getSheetId() {
+            return sheetId;
+        }
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        int getColumnCount() {
+            return columnCount;
+        }
+
+        List<Object> getHeaderRow() {
+            return headerRow;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads the tail of the sheets a chat is likely to open while its sheet menu is on screen, so the tap on a sheet
+ * is answered without a cold read. The sheets the chat opened last go first, then the ones opened most by all chats.
+ * <p>
+ * Prefetches have a budget of their own and only start while the Sheets read quota has room to spare, a user
+ * waiting for an answer is never queued behind one. A tap that comes while its prefetch is still running joins it
+ * through the scheduler's coalescing of identical reads. Prefetched windows are served for a short time only and
+ * dropped as soon as the bot writes to their sheet.
+ * <p>
+ * With a replica the prefetcher loads the sheets the replica does not hold warm and keeps no rows itself, the
+ * replica serves them and keeps them current. Sheets the replica holds already cost nothing and are not counted.
+ */
+class SheetPrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetPrefetcher.class);
+    private static final int RECENT_PER_CHAT = 3; // Sheets remembered per chat
+    private static final int MAX_CHATS = 10_000; // Chats whose recent sheets are remembered
+    private static final long DECAY_INTERVAL = 1024; // Selections after which the popularity counts are halved
+
+    private static final class Entry {
+        private final SheetTailReader.TailWindow window; // null while in flight or when the replica holds the rows
+        private final boolean loaded;
+        private final int rowCount;
+        private final long createdAt;
+        private volatile boolean used;
+
+        private Entry(SheetTailReader.TailWindow window, boolean loaded, int rowCount, long createdAt) {
+            this.window = window;
+            this.loaded = loaded;
+            this.rowCount = rowCount;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final SheetTailReader tailReader;
+    private final SheetReplica replica; // null unless sheets are read from the replica
+    private final SheetsRequestScheduler scheduler;
+    private final int sheetsPerMenu;
+    private final long ttlNanos;
+    private final TokenBucket budget; // Guarded by itself
+    private final Map<String, Entry> windows = new ConcurrentHashMap<>();
+    private final Map<Long, String[]> recentByChat = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                    return size() > MAX_CHATS;
+                }
+            });
+    private final Map<String, Long> popularity = new HashMap<>(); // Guarded by itself
+    private long selections; // Guarded by popularity
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheet-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SheetPrefetcher(SheetTailReader tailReader, SheetReplica replica, SheetsRequestScheduler scheduler,
+                    int sheetsPerMenu, double fetchesPerMinute, long ttlMillis, BotMetrics metrics) {
+        this.tailReader = tailReader;
+        this.replica = replica;
+        this.scheduler = scheduler;
+        this.sheetsPerMenu = Math.max(1, sheetsPerMenu);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.budget = new TokenBucket(fetchesPerMinute / 60.0, this.sheetsPerMenu, System.nanoTime());
+        metrics.counter("bot_prefetch_fetches", "Sheet tails read ahead of a tap.", fetches::sum);
+        metrics.counter("bot_prefetch_hits", "Sheet openings answered from a prefetched tail.", hits::sum);
+        metrics.counter("bot_prefetch_misses", "Sheet openings that waited for a read no prefetch had done.", misses::sum);
+        metrics.counter("bot_prefetch_wasted", "Prefetched tails dropped without being shown.", wasted::sum);
+        metrics.counter("bot_prefetch_skipped", "Prefetches not started for lack of budget or spare quota.", skipped::sum);
+    }
+
+    /**
+     * Remembers that the chat opened the sheet, for its own next menu and for the popularity across chats.
+     */
+    void recordSelection(long chatId, String sheetName) {
+        recentByChat.compute(chatId, (id, recent) -> {
+            List<String> updated = new ArrayList<>(RECENT_PER_CHAT);
+            updated.add(sheetName);
+            if (recent != null) {
+                for (String name : recent) {
+                    if (!name.equals(sheetName) && updated.size() < RECENT_PER_CHAT) {
+                        updated.add(name);
+                    }
+                }
+            }
+            return updated.toArray(new String[0]);
+        });
+        synchronized (popularity) {
+            popularity.merge(sheetName, 1L, Long::sum);
+            if (++selections % DECAY_INTERVAL == 0) {
+                // Halving keeps the order current when what is popular changes
+                popularity.replaceAll((name, count) -> count / 2);
+                popularity.values().removeIf(count -> count == 0L);
+            }
+        }
+    }
+
+    /**
+     * Starts reading the likely sheets of the chat in the background, up to {@code rowCount} rows each.
+     */
+    void onMenuShown(long chatId, List<String> sheetNames, int rowCount) {
+        long now = System.nanoTime();
+        expire(now);
+        for (String sheetName : candidates(chatId, sheetNames)) {
+            if (windows.containsKey(sheetName) || (replica != null && replica.isWarm(sheetName, rowCount))) {
+                continue; // Warm or in flight already
+            }
+            boolean allowed;
+            synchronized (budget) {
+                allowed = budget.tryTake(now);
+            }
+            if (!allowed) {
+                skipped.increment();
+                return;
+            }
+            Entry loading = new Entry(null, false, rowCount, now);
+            if (windows.putIfAbsent(sheetName, loading) == null) {
+                executor.execute(() -> fetch(sheetName, rowCount, loading));
+            }
+        }
+    }
+
+    /**
+     * Returns the prefetched header and last {@code rowCount} rows of the sheet, or {@code null} if there is no
+     * fresh window that long or the replica holds the rows. Called for every opening of a sheet, it counts the hits
+     * and misses.
+     */
+    SheetTailReader.TailWindow take(String sheetName, int rowCount) {
+        Entry entry = windows.get(sheetName);
+        if (entry == null || !entry.loaded || entry.rowCount < rowCount
+                || System.nanoTime() - entry.createdAt > ttlNanos) {
+            if (replica == null || !replica.isWarm(sheetName, rowCount)) {
+                misses.increment();
+            }
+            return null;
+        }
+        entry.used = true;
+        hits.increment();
+        SheetTailReader.TailWindow window = entry.window;
+        if (window == null) {
+            return null; // Loaded into the replica, which answers from memory
+        }
+        List<List<Object>> rows = window.getRows();
+        if (rows.size() <= rowCount) {
+            return new SheetTailReader.TailWindow(window.getHeaderRow(), new ArrayList<>(rows), window.getFirstRowNumber());
+        }
+        int skip = rows.size() - rowCount;
+        return new SheetTailReader.TailWindow(window.getHeaderRow(),
+                new ArrayList<>(rows.subList(skip, rows.size())), window.getFirstRowNumber() + skip);
+    }
+
+    /**
+     * Drops what is known about the sheet, called when the bot changed it in a way the replica, if any, did not
+     * take in.
+     */
+    void invalidate(String sheetName) {
+        Entry entry = windows.remove(sheetName);
+        if (entry != null && entry.loaded && !entry.used) {
+            wasted.increment();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private List<String> candidates(long chatId, List<String> sheetNames) {
+        Set<String> candidates = new LinkedHashSet<>();
+        String[] recent = recentByChat.get(chatId);
+        if (recent != null) {
+            for (String name : recent) {
+                if (candidates.size() < sheetsPerMenu && sheetNames.contains(name)) {
+                    candidates.add(name);
+                }
+            }
+        }
+        if (candidates.size() < sheetsPerMenu) {
+            List<Map.Entry<String, Long>> popular;
+            synchronized (popularity) {
+                popular = new ArrayList<>(popularity.size());
+                for (Map.Entry<String, Long> entry : popularity.entrySet()) {
+                    popular.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+            popular.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            for (Map.Entry<String, Long> entry : popular) {
+                if (candidates.size() >= sheetsPerMenu) {
+                    break;
+                }
+                if (sheetNames.contains(entry.getKey())) {
+                    candidates.add(entry.getKey());
+                }
+            }
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    private void fetch(String sheetName, int rowCount, Entry loading) {
+        if (!scheduler.hasSpareReadCapacity()) {
+            windows.remove(sheetName, loading);
+            skipped.increment();
+            logger.debug("Skipped prefetch of sheet {}, Sheets reads are busy", sheetName);
+            return;
+        }
+        try {
+            SheetTailReader.TailWindow window = replica != null
+                    ? replica.tail(sheetName, rowCount)
+                    : tailReader.readTail(sheetName, rowCount);
+            fetches.increment();
+            if (window == null) {
+                windows.remove(sheetName, loading);
+                return;
+            }
+            // Rows the replica holds are not kept twice, those it reads live (too many, oversized sheet) are
+            boolean held = replica != null && replica.isWarm(sheetName, rowCount);
+            Entry loaded = new Entry(held ? null : window, true, rowCount, System.nanoTime());
+            if (!windows.replace(sheetName, loading, loaded)) {
+                wasted.increment(); // The bot wrote to the sheet while it was read
+            }
+            logger.debug("Prefetched {} rows of sheet {}", window.getRows().size(), sheetName);
+        } catch (IOException | RuntimeException e) {
+            windows.remove(sheetName, loading);
+            logger.debug("Prefetch of sheet {} failed", sheetName, e);
+        }
+    }
+
+    private void expire(long now) {
+        for (Map.Entry<String, Entry> entry : windows.entrySet()) {
+            Entry window = entry.getValue();
+            if (window.loaded && now - window.createdAt > ttlNanos
+                    && windows.remove(entry.getKey(), window) && !window.used) {
+                wasted.increment();
+            }
+        }
+    }
+}
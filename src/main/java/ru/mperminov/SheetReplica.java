@@ -0,0 +1,626 @@
+package ru.mperminov;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process copy of the header and the last rows of every sheet the bot shows, so reading a sheet does not wait
+ * for Google. Rows are stored column by column as codes into a per-column dictionary, repeated values such as
+ * dates or names are kept once.
+ * <p>
+ * A background poll keeps the copies current: when the grid of a sheet grew, or at the latest every verify
+ * interval, one batchGet fetches the header and the rows from the last few known ones on. The known rows must
+ * come back unchanged, otherwise the sheet was edited elsewhere and is read again in full. Rows the bot appends
+ * itself are added without a call.
+ */
+class SheetReplica {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetReplica.class);
+    private static final int OVERLAP_ROWS = 5; // Known rows fetched again to detect edits made elsewhere
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30); // Sheets not read for this long are dropped
+    private static final int MISSING = -1; // Code of a cell beyond the end of its row
+
+    /**
+     * Told about every change of the cached rows, called with the sheet locked.
+     */
+    interface ChangeListener {
+        /**
+         * The sheet was read in full, {@code rows} replace everything known about it.
+         */
+        void onLoaded(String sheetName, List<List<Object>> rows, int firstRowNumber);
+
+        /**
+         * Rows were added at the end, rows below {@code firstCachedRow} are no longer held.
+         */
+        void onAppended(String sheetName, List<List<Object>> rows, int firstRowNumber, int firstCachedRow);
+
+        void onDropped(String sheetName);
+    }
+
+    private final Sheets sheetsService;
+    private final String spreadsheetId;
+    private final SheetMetadataCache metadataCache;
+    private final SheetTailReader tailReader;
+    private final SheetsRequestScheduler scheduler;
+    private final int maxRowsPerSheet;
+    private final long maxBytes;
+    private final long verifyIntervalMillis;
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final Set<String> oversized = ConcurrentHashMap.newKeySet(); // Sheets over the memory budget, read live
+    private final LongAdder incrementalSyncs = new LongAdder();
+    private final LongAdder fullSyncs = new LongAdder();
+    private volatile ChangeListener listener;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheet-replica-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SheetReplica(Sheets sheetsService, String spreadsheetId, SheetMetadataCache metadataCache, SheetTailReader tailReader,
+                 SheetsRequestScheduler scheduler, int maxRowsPerSheet, long maxBytes,
+                 long pollMillis, long verifyIntervalMillis, BotMetrics metrics) {
+        this.sheetsService = sheetsService;
+        this.spreadsheetId = spreadsheetId;
+        this.metadataCache = metadataCache;
+        this.tailReader = tailReader;
+        this.scheduler = scheduler;
+        this.maxRowsPerSheet = Math.max(1, maxRowsPerSheet);
+        this.maxBytes = maxBytes;
+        this.verifyIntervalMillis = verifyIntervalMillis;
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        metrics.gauge("bot_replica_rows", "Rows held in the sheet replica.", this::getRowCount);
+        metrics.gauge("bot_replica_bytes", "Estimated memory of the sheet replica.", this::getEstimatedBytes);
+        metrics.gauge("bot_replica_bytes_per_row", "Estimated replica memory per cached row.", () -> {
+            long rows = getRowCount();
+            return rows == 0 ? 0 : getEstimatedBytes() / rows;
+        });
+        metrics.counter("bot_replica_incremental_syncs", "Replica syncs that fetched only new rows.", incrementalSyncs::sum);
+        metrics.counter("bot_replica_full_syncs", "Replica syncs that read a sheet again in full.", fullSyncs::sum);
+    }
+
+    /**
+     * Returns the header and up to {@code rowCount} last data rows of the sheet, from memory unless the sheet is
+     * read for the first time or changed by the bot in a way that could not be applied locally.
+     * Returns {@code null} if there is no such sheet.
+     */
+    SheetTailReader.TailWindow tail(String sheetName, int rowCount) throws IOException {
+        if (rowCount > maxRowsPerSheet || oversized.contains(sheetName)) {
+            return tailReader.readTail(sheetName, rowCount);
+        }
+        Table table = tables.computeIfAbsent(sheetName, Table::new);
+        SheetTailReader.TailWindow window;
+        synchronized (table) {
+            table.lastReadAt = System.currentTimeMillis();
+            if (!table.loaded || table.stale) {
+                SheetMetadataCache.SheetInfo info = metadataCache.getSheet(sheetName);
+                if (info == null) {
+                    tables.remove(sheetName, table);
+                    return null;
+                }
+                sync(table, info);
+            }
+            window = table.tail(rowCount);
+        }
+        enforceBudget();
+        return window;
+    }
+
+    /**
+     * Whether {@link #tail} would answer from memory, without a Sheets call.
+     */
+    boolean isWarm(String sheetName, int rowCount) {
+        Table table = tables.get(sheetName);
+        if (table == null || rowCount > maxRowsPerSheet || oversized.contains(sheetName)) {
+            return false;
+        }
+        synchronized (table) {
+            return table.loaded && !table.stale;
+        }
+    }
+
+    void setChangeListener(ChangeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Loads every sheet of the spreadsheet in the background, so the first reads and searches do not wait.
+     */
+    void preload() {
+        poller.execute(() -> {
+            try {
+                for (String title : metadataCache.get().getSheetTitles()) {
+                    tail(title, 1);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to preload the sheet replica", e);
+            }
+        });
+    }
+
+    /**
+     * Returns the header and the rows {@code firstRow..lastRow} from memory, or {@code null} if the replica does
+     * not hold all of them. Rows past the end of the sheet are left out.
+     */
+    SheetTailReader.TailWindow window(String sheetName, int firstRow, int lastRow) {
+        Table table = tables.get(sheetName);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table) {
+            int start = Math.max(SheetTailReader.FIRST_DATA_ROW, firstRow);
+            if (!table.loaded || table.stale || start < table.firstRowNumber) {
+                return null;
+            }
+            table.lastReadAt = System.currentTimeMillis();
+            int end = Math.min(lastRow, table.lastRowNumber());
+            List<List<Object>> rows = new ArrayList<>(Math.max(0, end - start + 1));
+            for (int rowNumber = start; rowNumber <= end; rowNumber++) {
+                rows.add(table.row(rowNumber - table.firstRowNumber));
+            }
+            return new SheetTailReader.TailWindow(table.header, rows, start);
+        }
+    }
+
+    /**
+     * Returns the cells of one sheet row if it is cached, without calling Google, otherwise {@code null}.
+     */
+    List<Object> row(String sheetName, int rowNumber) {
+        Table table = tables.get(sheetName);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table) {
+            int index = rowNumber - table.firstRowNumber;
+            return table.loaded && index >= 0 && index < table.size ? table.row(index) : null;
+        }
+    }
+
+    /**
+     * Returns the cached header of the sheet, or {@code null} if the sheet is not cached.
+     */
+    List<Object> header(String sheetName) {
+        Table table = tables.get(sheetName);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table) {
+            return table.loaded ? table.header : null;
+        }
+    }
+
+    /**
+     * Makes the next read of the sheet sync it first, after the bot wrote rows it did not apply locally.
+     */
+    void markStale(String sheetName) {
+        Table table = tables.get(sheetName);
+        if (table != null) {
+            synchronized (table) {
+                table.stale = true;
+            }
+        }
+    }
+
+    /**
+     * Adds a row the bot appended at the given sheet row. If the copy does not end right above it, rows were added
+     * elsewhere in between and the sheet is synced on its next read instead.
+     */
+    void onRowAppended(String sheetName, int rowNumber, List<Object> row) {
+        Table table = tables.get(sheetName);
+        if (table == null) {
+            return;
+        }
+        synchronized (table) {
+            if (table.loaded && !table.stale && rowNumber == table.lastRowNumber() + 1) {
+                table.append(List.of(row));
+                notifyAppended(table, List.of(row), rowNumber);
+            } else {
+                table.stale = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the sheet row of the newest cached row, or -1 if the sheet is not cached.
+     */
+    int lastRowNumber(String sheetName) {
+        Table table = tables.get(sheetName);
+        if (table == null) {
+            return -1;
+        }
+        synchronized (table) {
+            return table.loaded ? table.lastRowNumber() : -1;
+        }
+    }
+
+    long getRowCount() {
+        long rows = 0;
+        for (Table table : tables.values()) {
+            rows += table.size;
+        }
+        return rows;
+    }
+
+    long getEstimatedBytes() {
+        long bytes = 0;
+        for (Table table : tables.values()) {
+            bytes += table.estimatedBytes;
+        }
+        return bytes;
+    }
+
+    void shutdown() {
+        poller.shutdownNow();
+    }
+
+    private void poll() {
+        SheetMetadataCache.Snapshot snapshot;
+        try {
+            snapshot = metadataCache.get(); // Refreshes itself in the background once its TTL passed
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Replica sync skipped, spreadsheet metadata unavailable", e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Table table : tables.values()) {
+            SheetMetadataCache.SheetInfo info = snapshot.getSheetsByTitle().get(table.sheetName);
+            if (info == null || now - table.lastReadAt > IDLE_MILLIS) {
+                drop(table); // Deleted, renamed or no longer used
+                continue;
+            }
+            synchronized (table) {
+                boolean grown = info.getRowCount() != table.gridRows;
+                boolean due = now - table.syncedAt >= verifyIntervalMillis;
+                if (!table.loaded || !(grown || due || table.stale)) {
+                    continue;
+                }
+                try {
+                    sync(table, info);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Replica sync of sheet {} failed, serving the previous copy", table.sheetName, e);
+                }
+            }
+        }
+        enforceBudget();
+    }
+
+    /**
+     * Brings the table up to date, called with the table locked.
+     */
+    private void sync(Table table, SheetMetadataCache.SheetInfo info) throws IOException {
+        if (!table.loaded || info.getColumnCount() != table.columnCount) {
+            fullSync(table, info);
+            return;
+        }
+        int overlap = Math.min(OVERLAP_ROWS, table.size);
+        int from = table.lastRowNumber() - overlap + 1;
+        String quotedName = SheetTailReader.quoteSheetName(table.sheetName);
+        String lastColumn = SheetTailReader.columnLetters(table.columnCount);
+        List<ValueRange> ranges = scheduler.execute(BotMetrics.SheetsCall.VALUES_BATCH_GET,
+                SheetsRequests.batchValues(sheetsService, spreadsheetId, List.of(
+                        quotedName + "!A1:" + lastColumn + "1",
+                        quotedName + "!A" + from + ":" + lastColumn)))
+                .getValueRanges();
+        List<Object> header = SheetTailReader.firstRow(ranges.get(0).getValues());
+        List<List<Object>> rows = SheetTailReader.trimTrailingBlankRows(ranges.get(1).getValues());
+        String mismatch = null;
+        if (!header.equals(table.header)) {
+            mismatch = "header changed";
+        } else if (rows.size() < overlap) {
+            mismatch = "rows deleted";
+        } else {
+            for (int i = 0; i < overlap; i++) {
+                if (hashRow(rows.get(i)) != table.hashOf(from + i)) {
+                    mismatch = "row " + (from + i) + " edited";
+                    break;
+                }
+            }
+        }
+        if (mismatch != null) {
+            logger.info("Sheet {} changed outside the bot ({}), reading it again", table.sheetName, mismatch);
+            fullSync(table, info);
+            return;
+        }
+        List<List<Object>> added = rows.subList(overlap, rows.size());
+        table.append(added);
+        notifyAppended(table, added, from + overlap);
+        table.markSynced(info.getRowCount());
+        incrementalSyncs.increment();
+        logger.debug("Synced sheet {}: {} new rows, {} rows cached, about {} bytes",
+                table.sheetName, rows.size() - overlap, table.size, table.estimatedBytes);
+    }
+
+    private void fullSync(Table table, SheetMetadataCache.SheetInfo info) throws IOException {
+        SheetTailReader.TailWindow window = tailReader.readTail(table.sheetName, maxRowsPerSheet,
+                info.getRowCount(), info.getColumnCount(), null); // A fresh header, the cached one may be outdated
+        table.reset(window.getHeaderRow(), info.getColumnCount(), window.getRows(), window.getFirstRowNumber());
+        table.markSynced(info.getRowCount());
+        ChangeListener current = listener;
+        if (current != null) {
+            current.onLoaded(table.sheetName, window.getRows(), window.getFirstRowNumber());
+        }
+        fullSyncs.increment();
+        logger.info("Loaded sheet {} into the replica: {} rows from row {}, about {} bytes",
+                table.sheetName, table.size, table.firstRowNumber, table.estimatedBytes);
+    }
+
+    /**
+     * Drops the least recently read sheets while the replica is over its memory budget.
+     */
+    private void enforceBudget() {
+        for (Table table : tables.values()) {
+            if (table.estimatedBytes > maxBytes && drop(table)) {
+                oversized.add(table.sheetName); // Does not fit even alone, keep reading it live
+                logger.warn("Sheet {} needs about {} bytes, more than the replica budget of {}, it is read live from now on",
+                        table.sheetName, table.estimatedBytes, maxBytes);
+            }
+        }
+        while (getEstimatedBytes() > maxBytes) {
+            Table coldest = null;
+            for (Table table : tables.values()) {
+                if (coldest == null || table.lastReadAt < coldest.lastReadAt) {
+                    coldest = table;
+                }
+            }
+            if (coldest == null) {
+                return;
+            }
+            drop(coldest);
+            logger.info("Dropped sheet {} from the replica to stay within {} bytes", coldest.sheetName, maxBytes);
+        }
+    }
+
+    private boolean drop(Table table) {
+        if (!tables.remove(table.sheetName, table)) {
+            return false;
+        }
+        ChangeListener current = listener;
+        if (current != null) {
+            current.onDropped(table.sheetName);
+        }
+        return true;
+    }
+
+    private void notifyAppended(Table table, List<List<Object>> rows, int firstRowNumber) {
+        ChangeListener current = listener;
+        if (current != null && !rows.isEmpty()) {
+            current.onAppended(table.sheetName, rows, firstRowNumber, table.firstRowNumber);
+        }
+    }
+
+    /**
+     * Order-sensitive 64-bit hash of the cell texts of a row, missing trailing cells do not count.
+     */
+    static long hashRow(List<Object> row) {
+        long hash = 0xcbf29ce484222325L;
+        if (row == null) {
+            return hash;
+        }
+        for (Object cell : row) {
+            String text = cell == null ? "" : String.valueOf(cell);
+            hash = (hash ^ text.hashCode()) * 0x100000001b3L;
+            hash = (hash ^ text.length()) * 0x100000001b3L; // Keeps "a","" apart from "","a"
+        }
+        return hash;
+    }
+
+    /**
+     * The cached rows of one sheet, guarded by itself.
+     */
+    private final class Table {
+        private final String sheetName;
+        private List<Object> header = Collections.emptyList();
+        private int columnCount;
+        private Column[] columns = new Column[0];
+        private long[] hashes = new long[0];
+        private int size;
+        private int firstRowNumber = 2; // Sheet row of the first cached row
+        private boolean loaded;
+        private boolean stale;
+        private int gridRows;
+        private long syncedAt;
+        private volatile long lastReadAt = System.currentTimeMillis();
+        private volatile long estimatedBytes;
+
+        private Table(String sheetName) {
+            this.sheetName = sheetName;
+        }
+
+        int lastRowNumber() {
+            return firstRowNumber + size - 1;
+        }
+
+        long hashOf(int rowNumber) {
+            return hashes[rowNumber - firstRowNumber];
+        }
+
+        void reset(List<Object> header, int columnCount, List<List<Object>> rows, int firstRowNumber) {
+            this.header = Collections.unmodifiableList(new ArrayList<>(header));
+            this.columnCount = columnCount;
+            this.columns = new Column[Math.max(columnCount, header.size())];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = new Column();
+            }
+            this.hashes = new long[0];
+            this.size = 0;
+            this.firstRowNumber = firstRowNumber;
+            this.loaded = true;
+            append(rows);
+        }
+
+        void markSynced(int gridRows) {
+            this.gridRows = gridRows;
+            this.syncedAt = System.currentTimeMillis();
+            this.stale = false;
+        }
+
+        void append(List<List<Object>> rows) {
+            if (rows.isEmpty()) {
+                return;
+            }
+            int drop = Math.max(0, size + rows.size() - maxRowsPerSheet);
+            if (drop > 0) {
+                dropOldest(Math.min(drop, size));
+                drop -= Math.min(drop, size);
+            }
+            // More new rows than fit at all, only the last ones are kept
+            List<List<Object>> kept = rows.subList(drop, rows.size());
+            firstRowNumber += drop;
+            ensureCapacity(size + kept.size());
+            for (List<Object> row : kept) {
+                if (row.size() > columns.length) {
+                    addColumns(row.size());
+                }
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c].set(size, c < row.size() ? row.get(c) : null, c < row.size());
+                }
+                hashes[size] = hashRow(row);
+                size++;
+            }
+            updateEstimate();
+        }
+
+        SheetTailReader.TailWindow tail(int rowCount) {
+            int count = Math.min(rowCount, size);
+            List<List<Object>> rows = new ArrayList<>(count);
+            for (int r = size - count; r < size; r++) {
+                rows.add(row(r));
+            }
+            return new SheetTailReader.TailWindow(header, rows, firstRowNumber + size - count);
+        }
+
+        List<Object> row(int index) {
+            List<Object> row = new ArrayList<>(columns.length);
+            for (Column column : columns) {
+                int code = column.codes[index];
+                if (code == MISSING) {
+                    break;
+                }
+                row.add(column.values.get(code));
+            }
+            return row;
+        }
+
+        private void dropOldest(int count) {
+            for (Column column : columns) {
+                System.arraycopy(column.codes, count, column.codes, 0, size - count);
+            }
+            System.arraycopy(hashes, count, hashes, 0, size - count);
+            size -= count;
+            firstRowNumber += count;
+            for (Column column : columns) {
+                column.compactIfSparse(size);
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= hashes.length) {
+                return;
+            }
+            int newCapacity = Math.min(maxRowsPerSheet, Math.max(capacity, hashes.length * 2 + 16));
+            hashes = Arrays.copyOf(hashes, newCapacity);
+            for (Column column : columns) {
+                column.grow(newCapacity);
+            }
+        }
+
+        private void addColumns(int count) {
+            int old = columns.length;
+            columns = Arrays.copyOf(columns, count);
+            for (int c = old; c < count; c++) {
+                columns[c] = new Column();
+                columns[c].grow(hashes.length);
+                Arrays.fill(columns[c].codes, 0, size, MISSING);
+            }
+        }
+
+        private void updateEstimate() {
+            long bytes = 64 + 8L * hashes.length;
+            for (Column column : columns) {
+                bytes += column.estimatedBytes();
+            }
+            estimatedBytes = bytes;
+        }
+    }
+
+    /**
+     * One column of a table: a code per row, pointing into the distinct values of the column.
+     */
+    private static final class Column {
+        private static final int VALUE_OVERHEAD_BYTES = 96; // String, its array, list slot and map entry
+        private int[] codes = new int[0];
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> index = new HashMap<>();
+        private long valueBytes;
+
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        void set(int row, Object cell, boolean present) {
+            if (!present) {
+                codes[row] = MISSING;
+                return;
+            }
+            String text = cell == null ? "" : String.valueOf(cell);
+            Integer code = index.get(text);
+            if (code == null) {
+                code = values.size();
+                values.add(text);
+                index.put(text, code);
+                valueBytes += VALUE_OVERHEAD_BYTES + 2L * text.length();
+            }
+            codes[row] = code;
+        }
+
+        /**
+         * Rebuilds the dictionary once most of its values belong to rows that were dropped.
+         */
+        void compactIfSparse(int size) {
+            if (values.size() <= 2 * size + 64) {
+                return;
+            }
+            List<String> live = new ArrayList<>();
+            Map<String, Integer> liveIndex = new HashMap<>();
+            valueBytes = 0;
+            for (int r = 0; r < size; r++) {
+                if (codes[r] == MISSING) {
+                    continue;
+                }
+                String text = values.get(codes[r]);
+                Integer code = liveIndex.get(text);
+                if (code == null) {
+                    code = live.size();
+                    live.add(text);
+                    liveIndex.put(text, code);
+                    valueBytes += VALUE_OVERHEAD_BYTES + 2L * text.length();
+                }
+                codes[r] = code;
+            }
+            values.clear();
+            values.addAll(live);
+            index.clear();
+            index.putAll(liveIndex);
+        }
+
+        long estimatedBytes() {
+            return 4L * codes.length + valueBytes;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ru.mperminov;
+
+import com.google.api.services.sheets.v4.Sheets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Copies the rows of an uploaded file into a sheet. The first row of the file names its columns, they are matched
+ * to the sheet header by name, columns the sheet does not have are skipped. Rows are read one at a time and written
+ * in chunks with one {@code values().append} each, so memory does not grow with the file.
+ * <p>
+ * A failed append ends the import: it may have been written already, so it is not sent again, the user learns how
+ * far the import got instead.
+ */
+class SheetRowImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetRowImporter.class);
+    private static final int MAX_CELL_CHARS = 50_000; // Google Sheets limit for one cell
+
+    /**
+     * Called after every written chunk and once at the end.
+     */
+    interface ProgressListener {
+        void onProgress(Result progress);
+    }
+
+    static final class Result {
+        private int appended;
+        private int skipped; // Blank or invalid rows
+        private List<String> ignoredColumns = List.of();
+        private String error; // Why the import stopped early, or null
+        private boolean done;
+
+        int getAppended() {
+            return appended;
+        }
+
+        int getSkipped() {
+            return skipped;
+        }
+
+        List<String> getIgnoredColumns() {
+            return ignoredColumns;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+    }
+
+    private final Sheets sheetsService;
+    private final String spreadsheetId;
+    private final SheetsRequestScheduler scheduler;
+    private final int chunkRows;
+    private final int maxRows;
+
+    SheetRowImporter(Sheets sheetsService, String spreadsheetId, SheetsRequestScheduler scheduler,
+                     int chunkRows, int maxRows) {
+        this.sheetsService = sheetsService;
+        this.spreadsheetId = spreadsheetId;
+        this.scheduler = scheduler;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.maxRows = maxRows;
+    }
+
+    Result importRows(String sheetName, List<Object> sheetHeader, RowReader reader, ProgressListener listener) {
+        Result result = new Result();
+        long started = System.nanoTime();
+        try {
+            List<String> fileHeader = reader.next();
+            if (fileHeader == null) {
+                result.error = "файл пустой";
+                return result;
+            }
+            int[] targetColumns = mapColumns(fileHeader, sheetHeader);
+            result.ignoredColumns = unmatched(fileHeader, targetColumns);
+            if (Arrays.stream(targetColumns).allMatch(column -> column < 0)) {
+                result.error = "ни один столбец файла не совпал с заголовком листа";
+                return result;
+            }
+            String range = SheetTailReader.quoteSheetName(sheetName);
+            List<List<Object>> chunk = new ArrayList<>(chunkRows);
+            List<String> cells;
+            while ((cells = reader.next()) != null) {
+                List<Object> row = toSheetRow(cells, targetColumns, sheetHeader.size());
+                if (row == null) {
+                    result.skipped++;
+                    continue;
+                }
+                if (result.appended + chunk.size() >= maxRows) {
+                    result.error = "в файле больше " + maxRows + " строк, остальные не добавлены";
+                    break;
+                }
+                chunk.add(row);
+                if (chunk.size() == chunkRows) {
+                    append(range, chunk, result);
+                    listener.onProgress(result);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                append(range, chunk, result);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Import into sheet {} stopped at line {} of the file", sheetName, reader.getLineNumber(), e);
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            result.done = true;
+            logger.info("Imported {} rows into sheet {} in {} ms, {} skipped{}", result.appended, sheetName,
+                    (System.nanoTime() - started) / 1_000_000, result.skipped,
+                    result.error != null ? ", stopped: " + result.error : "");
+            listener.onProgress(result);
+        }
+        return result;
+    }
+
+    private void append(String range, List<List<Object>> chunk, Result result) throws IOException {
+        scheduler.execute(BotMetrics.SheetsCall.VALUES_APPEND,
+                SheetsRequests.append(sheetsService, spreadsheetId, range, chunk));
+        result.appended += chunk.size();
+        chunk.clear();
+    }
+
+    /**
+     * For every column of the file, the sheet column with the same name, or -1.
+     */
+    static int[] mapColumns(List<String> fileHeader, List<Object> sheetHeader) {
+        int[] target = new int[fileHeader.size()];
+        Arrays.fill(target, -1);
+        boolean[] taken = new boolean[sheetHeader.size()];
+        for (int i = 0; i < fileHeader.size(); i++) {
+            String name = normalizeHeader(fileHeader.get(i));
+            for (int j = 0; j < sheetHeader.size() && !name.isEmpty(); j++) {
+                if (!taken[j] && name.equals(normalizeHeader(String.valueOf(sheetHeader.get(j))))) {
+                    target[i] = j;
+                    taken[j] = true;
+                    break;
+                }
+            }
+        }
+        return target;
+    }
+
+    static String normalizeHeader(String name) {
+        if (name == null) {
+            return "";
+        }
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+
+    /**
+     * Builds the sheet row for one file row, or returns {@code null} if it is blank or cannot be written.
+     * Values that would be read as formulas are written as text.
+     */
+    static List<Object> toSheetRow(List<String> cells, int[] targetColumns, int width) {
+        Object[] row = new Object[width];
+        Arrays.fill(row, "");
+        boolean blank = true;
+        for (int i = 0; i < cells.size() && i < targetColumns.length; i++) {
+            String value = cells.get(i).trim();
+            if (targetColumns[i] < 0 || value.isEmpty()) {
+                continue;
+            }
+            if (value.length() > MAX_CELL_CHARS) {
+                return null;
+            }
+            row[targetColumns[i]] = value.startsWith("=") ? "'" + value : value;
+            blank = false;
+        }
+        return blank ? null : Arrays.asList(row);
+    }
+
+    private static List<String> unmatched(List<String> fileHeader, int[] targetColumns) {
+        List<String> ignored = new ArrayList<>();
+        for (int i = 0; i < targetColumns.length; i++) {
+            if (targetColumns[i] < 0 && !fileHeader.get(i).isBlank()) {
+                ignored.add(fileHeader.get(i).trim());
+            }
+        }
+        return ignored;
+    }
+}
@@ -0,0 +1,439 @@
+package ru.mperminov;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inverted index over the rows held by the {@link SheetReplica}, for {@code /find}. Every cell is split into
+ * normalized tokens, each token maps to the sorted sheet rows it appears in. Tokens are kept sorted, so a query
+ * word matches every token it is a prefix of: "иван" finds "Иванов" and "Иванова".
+ * <p>
+ * Normalization folds case and {@code ё} into {@code е}, and in words with Cyrillic letters replaces Latin
+ * look-alikes, so "Иванов" typed with a Latin {@code o} still matches. Digits of a cell are also indexed joined
+ * together, so a phone number is found however it was formatted.
+ * <p>
+ * The index follows the replica: a loaded sheet is indexed from scratch, appended rows are added, rows the replica
+ * no longer holds are pruned.
+ * <p>
+ * Rows the replica does not hold, all of them without one, are covered by an archive per sheet: read once in windows
+ * and kept as tokens and row numbers only. An archive is extended with the rows added after it and rebuilt now and
+ * then for the edited ones, matches from it have to be read again and checked with {@link #matches}.
+ */
+class SheetSearchIndex implements SheetReplica.ChangeListener {
+
+    private static final int MIN_JOINED_DIGITS = 5; // Shorter digit runs are left as they are
+    private static final String CYRILLIC_LOOKALIKES = "aceopxykmthb";
+    private static final String CYRILLIC_REPLACEMENTS = "асеорхукмтнв";
+
+    /**
+     * Reads rows of a sheet for an archive, {@link SheetTailReader#readWindow} outside of tests.
+     */
+    interface RowSource {
+        SheetTailReader.TailWindow readWindow(String sheetName, int firstRow, int lastRow) throws IOException;
+    }
+
+    private final Map<String, SheetIndex> sheets = new ConcurrentHashMap<>();
+    private final Map<String, Archive> archives = new ConcurrentHashMap<>();
+
+    @Override
+    public void onLoaded(String sheetName, List<List<Object>> rows, int firstRowNumber) {
+        SheetIndex index = new SheetIndex(firstRowNumber);
+        index.add(rows, firstRowNumber);
+        sheets.put(sheetName, index); // Replaces the old index at once, searches never see a half-built one
+    }
+
+    @Override
+    public void onAppended(String sheetName, List<List<Object>> rows, int firstRowNumber, int firstCachedRow) {
+        SheetIndex index = sheets.get(sheetName);
+        if (index != null) {
+            index.add(rows, firstRowNumber);
+            index.pruneBelow(firstCachedRow);
+        }
+    }
+
+    @Override
+    public void onDropped(String sheetName) {
+        sheets.remove(sheetName);
+    }
+
+    boolean isIndexed(String sheetName) {
+        return sheets.containsKey(sheetName);
+    }
+
+    /**
+     * Returns the rows of the sheet that contain every word of the query, newest first, at most {@code limit}.
+     */
+    List<Integer> search(String sheetName, String query, int limit) {
+        SheetIndex index = sheets.get(sheetName);
+        List<String> words = tokens(query);
+        if (index == null || words.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        return index.search(words, limit, Integer.MAX_VALUE);
+    }
+
+    /**
+     * First row the replica's index holds, {@link Integer#MAX_VALUE} if the sheet is not indexed.
+     */
+    int liveStart(String sheetName) {
+        SheetIndex index = sheets.get(sheetName);
+        return index != null ? index.firstLiveRow() : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Last row the archive of the sheet covers, the row above the first data row if there is no archive.
+     */
+    int archiveEnd(String sheetName) {
+        Archive archive = archives.get(sheetName);
+        return archive != null ? archive.lastRow : SheetTailReader.FIRST_DATA_ROW - 1;
+    }
+
+    /**
+     * Whether the archive of the sheet may miss rows up to {@code untilRow}: there is none, it was not read that
+     * far, or, read to the end of the sheet, the grid has changed size since.
+     */
+    boolean isArchiveBehind(String sheetName, int gridRows, int untilRow) {
+        Archive archive = archives.get(sheetName);
+        if (archive == null) {
+            return true;
+        }
+        return untilRow == Integer.MAX_VALUE ? archive.gridRows != gridRows : archive.lastRow < untilRow;
+    }
+
+    boolean isArchiveOlderThan(String sheetName, long millis) {
+        Archive archive = archives.get(sheetName);
+        return archive != null && System.currentTimeMillis() - archive.builtAt > millis;
+    }
+
+    /**
+     * Adds the rows after those the archive of the sheet covers, up to {@code untilRow}, reading {@code chunkRows}
+     * at a time. Reads go on past {@code gridRows} until a window comes back empty, the grid size may be older than
+     * the rows. Returns {@code false} without reading if the archive is being extended already.
+     */
+    boolean extendArchive(String sheetName, RowSource source, int gridRows, int untilRow, int chunkRows)
+            throws IOException {
+        Archive archive = archives.computeIfAbsent(sheetName, k -> new Archive());
+        return archive.extend(sheetName, source, gridRows, untilRow, chunkRows);
+    }
+
+    /**
+     * Reads the archive of the sheet again from its first row and replaces the old one once done, so the rows
+     * edited since are found by their new values.
+     */
+    void rebuildArchive(String sheetName, RowSource source, int gridRows, int untilRow, int chunkRows)
+            throws IOException {
+        Archive archive = new Archive();
+        archive.extend(sheetName, source, gridRows, untilRow, chunkRows);
+        archives.put(sheetName, archive);
+    }
+
+    /**
+     * Returns the archived rows of the sheet below {@code belowRow} that contained every word of the query when they
+     * were read, newest first, at most {@code limit}.
+     */
+    List<Integer> searchArchive(String sheetName, String query, int limit, int belowRow) {
+        Archive archive = archives.get(sheetName);
+        List<String> words = tokens(query);
+        if (archive == null || words.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        return archive.index.search(words, limit, belowRow);
+    }
+
+    /**
+     * Whether every word of the query is a prefix of a token of the row, as a search would find it.
+     */
+    static boolean matches(List<Object> row, String query) {
+        List<String> words = tokens(query);
+        if (row == null || words.isEmpty()) {
+            return false;
+        }
+        List<String> cellTokens = new ArrayList<>();
+        for (Object cell : row) {
+            if (cell != null) {
+                cellTokens.addAll(tokens(String.valueOf(cell)));
+            }
+        }
+        for (String word : words) {
+            boolean found = false;
+            for (String token : cellTokens) {
+                if (token.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getTokenCount() {
+        long tokens = 0;
+        for (SheetIndex index : sheets.values()) {
+            tokens += index.size();
+        }
+        for (Archive archive : archives.values()) {
+            tokens += archive.index.size();
+        }
+        return tokens;
+    }
+
+    /**
+     * Splits text into normalized tokens: runs of letters and digits, plus all digits joined if there are
+     * several runs of them with enough digits in total.
+     */
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder token = new StringBuilder();
+        StringBuilder digits = new StringBuilder();
+        int digitRuns = 0;
+        boolean inDigits = false;
+        for (int i = 0; i < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                token.appendCodePoint(codePoint);
+            } else if (token.length() > 0) {
+                tokens.add(foldCyrillic(token.toString()));
+                token.setLength(0);
+            }
+            if (Character.isDigit(codePoint)) {
+                digits.appendCodePoint(codePoint);
+                if (!inDigits) {
+                    digitRuns++;
+                }
+            }
+            inDigits = Character.isDigit(codePoint);
+        }
+        if (token.length() > 0) {
+            tokens.add(foldCyrillic(token.toString()));
+        }
+        if (digitRuns > 1 && digits.length() >= MIN_JOINED_DIGITS) {
+            tokens.add(digits.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Folds {@code ё} into {@code е} and, in a token that has Cyrillic letters, Latin look-alikes into their
+     * Cyrillic twins. Expects lower case.
+     */
+    static String foldCyrillic(String token) {
+        boolean cyrillic = false;
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.UnicodeBlock.of(token.charAt(i)) == Character.UnicodeBlock.CYRILLIC) {
+                cyrillic = true;
+                break;
+            }
+        }
+        char[] chars = token.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == 'ё') {
+                chars[i] = 'е';
+            } else if (cyrillic) {
+                int lookalike = CYRILLIC_LOOKALIKES.indexOf(chars[i]);
+                if (lookalike >= 0) {
+                    chars[i] = CYRILLIC_REPLACEMENTS.charAt(lookalike);
+                }
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Postings of the rows of a sheet read in windows, from the first data row up to {@link #lastRow}.
+     */
+    private static final class Archive {
+        private final SheetIndex index = new SheetIndex(SheetTailReader.FIRST_DATA_ROW);
+        private final ReentrantLock extending = new ReentrantLock();
+        private final long builtAt = System.currentTimeMillis();
+        private volatile int lastRow = SheetTailReader.FIRST_DATA_ROW - 1;
+        private volatile int gridRows; // Grid size when read to the end of the sheet
+
+        boolean extend(String sheetName, RowSource source, int gridRows, int untilRow, int chunkRows)
+                throws IOException {
+            if (!extending.tryLock()) {
+                return false;
+            }
+            try {
+                int first = lastRow + 1;
+                int dataEnd = lastRow; // Blank rows past the data are not covered, appends land there
+                while (first <= untilRow) {
+                    int last = (int) Math.min(untilRow, (long) first + chunkRows - 1);
+                    SheetTailReader.TailWindow window = source.readWindow(sheetName, first, last);
+                    if (window == null) {
+                        throw new IOException("Sheet " + sheetName + " not found");
+                    }
+                    List<List<Object>> rows = window.getRows();
+                    if (rows.isEmpty() && first > gridRows) {
+                        break; // Past the grid and its late rows
+                    }
+                    index.add(rows, window.getFirstRowNumber());
+                    if (!rows.isEmpty()) {
+                        dataEnd = window.getFirstRowNumber() + rows.size() - 1;
+                        lastRow = dataEnd;
+                    }
+                    first = last + 1;
+                }
+                if (untilRow == Integer.MAX_VALUE) {
+                    this.gridRows = gridRows;
+                } else if (first > untilRow) {
+                    lastRow = untilRow; // Rows above exist, the blank ones below are gaps and stay blank
+                }
+                return true;
+            } finally {
+                extending.unlock();
+            }
+        }
+    }
+
+    /**
+     * Postings of one sheet, guarded by itself.
+     */
+    private static final class SheetIndex {
+        private final NavigableMap<String, Postings> postings = new TreeMap<>();
+        private int firstLiveRow; // Rows below were dropped by the replica
+        private int deadRows;
+        private int liveRows;
+
+        private SheetIndex(int firstLiveRow) {
+            this.firstLiveRow = firstLiveRow;
+        }
+
+        synchronized void add(List<List<Object>> rows, int firstRowNumber) {
+            for (int i = 0; i < rows.size(); i++) {
+                int rowNumber = firstRowNumber + i;
+                for (Object cell : rows.get(i)) {
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (String token : tokens(String.valueOf(cell))) {
+                        postings.computeIfAbsent(token, k -> new Postings()).add(rowNumber);
+                    }
+                }
+            }
+            liveRows += rows.size();
+        }
+
+        /**
+         * Forgets rows below {@code firstRow} once they are as many as the live ones.
+         */
+        synchronized void pruneBelow(int firstRow) {
+            if (firstRow <= firstLiveRow) {
+                return;
+            }
+            int dropped = firstRow - firstLiveRow;
+            deadRows += Math.min(dropped, liveRows);
+            liveRows -= Math.min(dropped, liveRows);
+            firstLiveRow = firstRow;
+            if (deadRows < Math.max(liveRows, 64)) {
+                return; // Dead rows are skipped by searches until then
+            }
+            postings.values().removeIf(rows -> rows.removeBelow(firstRow));
+            deadRows = 0;
+        }
+
+        synchronized int firstLiveRow() {
+            return firstLiveRow;
+        }
+
+        /**
+         * Rows below {@code belowRow} with every word, newest first.
+         */
+        synchronized List<Integer> search(List<String> words, int limit, int belowRow) {
+            BitSet matches = null;
+            for (String word : words) {
+                BitSet rows = new BitSet();
+                for (Postings candidate : postings.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                    candidate.addTo(rows, firstLiveRow);
+                }
+                if (matches == null) {
+                    matches = rows;
+                } else {
+                    matches.and(rows);
+                }
+                if (matches.isEmpty()) {
+                    return List.of();
+                }
+            }
+            List<Integer> found = new ArrayList<>(Math.min(limit, matches.cardinality()));
+            long top = Math.min(matches.length() - 1, (long) belowRow - 1 - firstLiveRow);
+            if (top < 0) {
+                return List.of();
+            }
+            int start = matches.previousSetBit((int) top);
+            for (int row = start; row >= 0 && found.size() < limit; row = matches.previousSetBit(row - 1)) {
+                found.add(row + firstLiveRow);
+            }
+            return found;
+        }
+
+        synchronized int size() {
+            return postings.size();
+        }
+    }
+
+    /**
+     * Sorted rows of one token. Rows are indexed in ascending order, so adding is an append.
+     */
+    private static final class Postings {
+        private int[] rows = new int[2];
+        private int size;
+
+        void add(int row) {
+            if (size > 0 && rows[size - 1] >= row) {
+                return; // Token appears twice in the row
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        void addTo(BitSet target, int firstLiveRow) {
+            for (int i = lowerBound(firstLiveRow); i < size; i++) {
+                target.set(rows[i] - firstLiveRow);
+            }
+        }
+
+        /**
+         * Drops rows below {@code row}, returns {@code true} if none are left.
+         */
+        boolean removeBelow(int row) {
+            int from = lowerBound(row);
+            System.arraycopy(rows, from, rows, 0, size - from);
+            size -= from;
+            return size == 0;
+        }
+
+        private int lowerBound(int row) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (rows[mid] < row) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package ru.mperminov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders sheet rows as a Telegram Markdown table and splits it into messages that fit the size limit.
+ * Each worker thread reuses its own builder and width array, cells are padded from precomputed runs of
+ * spaces and dashes instead of {@code String.format}.
+ */
+final class SheetTableRenderer {
+
+    static final int MAX_MESSAGE_LENGTH = 4096; // Telegram limit for a text message
+    private static final String SPACES = " ".repeat(256);
+    private static final String DASHES = "-".repeat(256);
+    private static final String CELL_SEPARATOR = " | ";
+    private static final int MAX_COLUMN_WIDTH = 32; // Longer cells are not padded, one long note should not widen the table
+    private static final String CONTINUATION_TITLE = "(продолжение)\n\n";
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int maxMessageLength;
+
+    SheetTableRenderer() {
+        this(MAX_MESSAGE_LENGTH);
+    }
+
+    SheetTableRenderer(int maxMessageLength) {
+        if (maxMessageLength < 64) {
+            throw new IllegalArgumentException("maxMessageLength is too small: " + maxMessageLength);
+        }
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * Renders the header and rows of a sheet. Returns one or more message texts, a table that does not fit
+     * into one message is split between rows and every continuation repeats the header.
+     */
+    List<String> render(String sheetName, List<Object> headerRow, List<List<Object>> rows) {
+        return render(sheetName, headerRow, rows, -1);
+    }
+
+    /**
+     * Same as {@link #render(String, List, List)}, titled with the sheet rows shown if {@code firstRowNumber}
+     * is positive.
+     */
+    List<String> render(String sheetName, List<Object> headerRow, List<List<Object>> rows, int firstRowNumber) {
+        Scratch scratch = SCRATCH.get();
+        StringBuilder sb = scratch.builder;
+        sb.setLength(0);
+        int[] widths = columnWidths(scratch, headerRow, rows);
+
+        appendHeader(sb, headerRow, widths);
+        String headerBlock = sb.toString(); // Repeated on every page
+        sb.setLength(0);
+
+        List<String> pages = new ArrayList<>(1);
+        if (firstRowNumber > 0 && !rows.isEmpty()) {
+            sb.append("Строки ").append(firstRowNumber).append('–').append(firstRowNumber + rows.size() - 1).append(" из *");
+        } else {
+            sb.append("Последние ").append(rows.size()).append(" строк из *");
+        }
+        appendEscaped(sb, sheetName);
+        sb.append("*:\n\n").append(headerBlock);
+        int pageStart = sb.length(); // Nothing but title and header before this
+        for (List<Object> row : rows) {
+            int rowStart = sb.length();
+            appendRow(sb, row, widths);
+            if (sb.length() <= maxMessageLength) {
+                continue;
+            }
+            if (rowStart > pageStart) {
+                // Close the page before this row and carry the row over to a new one
+                pages.add(sb.substring(0, rowStart));
+                sb.delete(0, rowStart);
+                sb.insert(0, headerBlock).insert(0, CONTINUATION_TITLE);
+                pageStart = CONTINUATION_TITLE.length() + headerBlock.length();
+            }
+            if (sb.length() > maxMessageLength) {
+                truncate(sb, maxMessageLength); // A single row that is too long for any message
+            }
+        }
+        if (sb.length() > pageStart || pages.isEmpty()) {
+            if (sb.length() > maxMessageLength) {
+                truncate(sb, maxMessageLength); // Only a huge header
+            }
+            pages.add(sb.toString());
+        }
+        if (sb.capacity() > Scratch.MAX_RETAINED_CAPACITY) {
+            scratch.builder = new StringBuilder(Scratch.INITIAL_CAPACITY); // Do not keep one huge render alive
+        }
+        return pages;
+    }
+
+    /**
+     * Escapes the characters that start an entity in Telegram's legacy Markdown.
+     */
+    static String escapeMarkdown(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        appendEscaped(sb, text);
+        return sb.toString();
+    }
+
+    static void appendEscaped(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '_' || c == '*' || c == '`' || c == '[') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    private static int[] columnWidths(Scratch scratch, List<Object> headerRow, List<List<Object>> rows) {
+        int columns = headerRow != null ? headerRow.size() : 0;
+        for (List<Object> row : rows) {
+            columns = Math.max(columns, row.size());
+        }
+        if (scratch.widths.length < columns) {
+            scratch.widths = new int[Math.max(columns, scratch.widths.length * 2)];
+        }
+        int[] widths = scratch.widths;
+        Arrays.fill(widths, 0, columns, 0);
+        if (headerRow != null) {
+            widen(widths, headerRow);
+        }
+        for (List<Object> row : rows) {
+            widen(widths, row);
+        }
+        return widths;
+    }
+
+    private static void widen(int[] widths, List<Object> row) {
+        for (int i = 0; i < row.size(); i++) {
+            int length = Math.min(String.valueOf(row.get(i)).length(), MAX_COLUMN_WIDTH);
+            if (length > widths[i]) {
+                widths[i] = length;
+            }
+        }
+    }
+
+    private static void appendHeader(StringBuilder sb, List<Object> headerRow, int[] widths) {
+        if (headerRow == null || headerRow.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < headerRow.size(); i++) {
+            if (i > 0) {
+                sb.append(CELL_SEPARATOR);
+            }
+            String cell = String.valueOf(headerRow.get(i));
+            sb.append('`');
+            // Legacy Markdown has no escapes inside code, a backtick would end the entity
+            for (int c = 0; c < cell.length(); c++) {
+                char ch = cell.charAt(c);
+                sb.append(ch == '`' ? '\'' : ch);
+            }
+            appendRepeated(sb, SPACES, widths[i] - cell.length());
+            sb.append('`');
+        }
+        sb.append('\n');
+        for (int i = 0; i < headerRow.size(); i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            appendRepeated(sb, DASHES, widths[i] + 2);
+        }
+        sb.append('\n');
+    }
+
+    private static void appendRow(StringBuilder sb, List<Object> row, int[] widths) {
+        for (int i = 0; i < row.size(); i++) {
+            if (i > 0) {
+                sb.append(CELL_SEPARATOR);
+            }
+            String cell = String.valueOf(row.get(i));
+            appendEscaped(sb, cell);
+            appendRepeated(sb, SPACES, widths[i] - cell.length());
+        }
+        sb.append('\n');
+    }
+
+    private static void appendRepeated(StringBuilder sb, String run, int count) {
+        while (count > 0) {
+            int chunk = Math.min(count, run.length());
+            sb.append(run, 0, chunk);
+            count -= chunk;
+        }
+    }
+
+    /**
+     * Cuts the text to the limit without leaving a dangling escape or an unclosed code entity.
+     */
+    private static void truncate(StringBuilder sb, int limit) {
+        sb.setLength(limit - 2);
+        if (Character.isHighSurrogate(sb.charAt(sb.length() - 1))) {
+            sb.setLength(sb.length() - 1);
+        }
+        int backslashes = 0;
+        for (int i = sb.length() - 1; i >= 0 && sb.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        if (backslashes % 2 == 1) {
+            sb.setLength(sb.length() - 1);
+        }
+        int backticks = 0;
+        for (int i = 0; i < sb.length(); i++) {
+            if (sb.charAt(i) == '`' && (i == 0 || sb.charAt(i - 1) != '\\')) {
+                backticks++;
+            }
+        }
+        sb.append('…');
+        if (backticks % 2 == 1) {
+            sb.append('`');
+        }
+    }
+
+    private static final class Scratch {
+        private static final int INITIAL_CAPACITY = MAX_MESSAGE_LENGTH;
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+        private int[] widths = new int[16];
+    }
+}
@@ -0,0 +1,274 @@
+package ru.mperminov;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the header row and the last data rows of a sheet without downloading the whole sheet.
+ * The row window is derived from the cached grid size of the sheet. Blank grid rows below the
+ * data are skipped by growing the window upwards until enough rows are found.
+ */
+class SheetTailReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetTailReader.class);
+    private static final int WINDOW_GROWTH_FACTOR = 4; // How much the window grows after hitting only blank rows
+    static final int FIRST_DATA_ROW = 2; // Row 1 is always the header
+
+    private final Sheets sheetsService;
+    private final String spreadsheetId;
+    private final SheetMetadataCache metadataCache;
+    private final int minWindowRows;
+    private final SheetsRequestScheduler scheduler;
+
+    SheetTailReader(Sheets sheetsService, String spreadsheetId, SheetMetadataCache metadataCache, int minWindowRows,
+                    SheetsRequestScheduler scheduler) {
+        this.sheetsService = sheetsService;
+        this.spreadsheetId = spreadsheetId;
+        this.metadataCache = metadataCache;
+        this.minWindowRows = Math.max(1, minWindowRows);
+        this.scheduler = scheduler;
+    }
+
+    static String quoteSheetName(String sheetName) {
+        return "'" + sheetName.replace("'", "''") + "'";
+    }
+
+    /**
+     * Converts a 1-based column number into its A1 letters (1 -> A, 27 -> AA).
+     */
+    static String columnLetters(int columnNumber) {
+        StringBuilder sb = new StringBuilder();
+        int n = Math.max(1, columnNumber);
+        while (n > 0) {
+            int rem = (n - 1) % 26;
+            sb.append((char) ('A' + rem));
+            n = (n - 1) / 26;
+        }
+        return sb.reverse().toString();
+    }
+
+    static boolean isBlankRow(List<Object> row) {
+        if (row == null) {
+            return true;
+        }
+        for (Object cell : row) {
+            if (cell != null && !String.valueOf(cell).isBlank()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the header and up to {@code rowCount} last data rows of the sheet,
+     * or {@code null} if the sheet is not present in the spreadsheet metadata.
+     */
+    TailWindow readTail(String sheetName, int rowCount) throws IOException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheet(sheetName);
+        if (sheetInfo == null) {
+            logger.warn("No metadata for sheet {} in spreadsheet {}", sheetName, spreadsheetId);
+            return null;
+        }
+        return readTail(sheetName, rowCount, sheetInfo.getRowCount(), sheetInfo.getColumnCount(), sheetInfo.getHeaderRow());
+    }
+
+    /**
+     * Same as {@link #readTail(String, int)} but with the grid size already known.
+     * The header row is fetched together with the tail unless a non-empty cached one is given.
+     */
+    TailWindow readTail(String sheetName, int rowCount, int gridRows, int columnCount, List<Object> cachedHeader)
+            throws IOException {
+        String quotedName = quoteSheetName(sheetName);
+        String lastColumn = columnLetters(columnCount);
+        String headerRange = quotedName + "!A1:" + lastColumn + "1";
+
+        int window = Math.max(rowCount, minWindowRows);
+        int start = Math.max(FIRST_DATA_ROW, gridRows - window + 1);
+        // Open-ended range: rows appended after the metadata was read are included too
+        String tailRange = quotedName + "!A" + start + ":" + lastColumn;
+
+        List<Object> header;
+        List<List<Object>> tail;
+        if (cachedHeader != null && !cachedHeader.isEmpty()) {
+            header = cachedHeader;
+            tail = trimTrailingBlankRows(scheduler.execute(BotMetrics.SheetsCall.VALUES_GET,
+                    SheetsRequests.values(sheetsService, spreadsheetId, tailRange))
+                    .getValues());
+        } else {
+            BatchGetValuesResponse response = scheduler.execute(BotMetrics.SheetsCall.VALUES_BATCH_GET,
+                    SheetsRequests.batchValues(sheetsService, spreadsheetId, List.of(headerRange, tailRange)));
+            List<ValueRange> valueRanges = response.getValueRanges();
+            header = firstRow(valueRanges.get(0).getValues());
+            tail = trimTrailingBlankRows(valueRanges.get(1).getValues());
+        }
+        int calls = 1;
+
+        // Only blank grid rows in the window: look further up until enough data rows are found
+        int end = start - 1;
+        while (tail.size() < rowCount && end >= FIRST_DATA_ROW) {
+            window *= WINDOW_GROWTH_FACTOR;
+            start = Math.max(FIRST_DATA_ROW, end - window + 1);
+            String range = quotedName + "!A" + start + ":" + lastColumn + end;
+            List<List<Object>> above = scheduler.execute(BotMetrics.SheetsCall.VALUES_GET,
+                    SheetsRequests.values(sheetsService, spreadsheetId, range))
+                    .getValues();
+            calls++;
+            List<List<Object>> merged = new ArrayList<>(padToRows(above, end - start + 1));
+            merged.addAll(tail);
+            tail = trimTrailingBlankRows(merged);
+            end = start - 1;
+        }
+
+        int firstRowNumber = start;
+        if (tail.size() > rowCount) {
+            firstRowNumber += tail.size() - rowCount;
+            tail = new ArrayList<>(tail.subList(tail.size() - rowCount, tail.size()));
+        }
+        logger.debug("Read tail of sheet {}: {} rows from row {} in {} calls (grid rows: {})",
+                sheetName,
+                tail.size(),
+                firstRowNumber,
+                calls,
+                gridRows);
+        return new TailWindow(header, tail, firstRowNumber);
+    }
+
+    /**
+     * Reads the header and the rows {@code firstRow..lastRow} of the sheet with one call, however deep in the
+     * sheet they are. Blank rows at the end of the window are dropped. Returns {@code null} if there is no such sheet.
+     */
+    TailWindow readWindow(String sheetName, int firstRow, int lastRow) throws IOException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheet(sheetName);
+        if (sheetInfo == null) {
+            logger.warn("No metadata for sheet {} in spreadsheet {}", sheetName, spreadsheetId);
+            return null;
+        }
+        String quotedName = quoteSheetName(sheetName);
+        String lastColumn = columnLetters(sheetInfo.getColumnCount());
+        int start = Math.max(FIRST_DATA_ROW, firstRow);
+        String range = quotedName + "!A" + start + ":" + lastColumn + Math.max(start, lastRow);
+        List<Object> header = sheetInfo.getHeaderRow();
+        List<List<Object>> rows;
+        if (header != null && !header.isEmpty()) {
+            rows = scheduler.execute(BotMetrics.SheetsCall.VALUES_GET,
+                    SheetsRequests.values(sheetsService, spreadsheetId, range)).getValues();
+        } else {
+            List<ValueRange> valueRanges = scheduler.execute(BotMetrics.SheetsCall.VALUES_BATCH_GET,
+                    SheetsRequests.batchValues(sheetsService, spreadsheetId,
+                            List.of(quotedName + "!A1:" + lastColumn + "1", range))).getValueRanges();
+            header = firstRow(valueRanges.get(0).getValues());
+            rows = valueRanges.get(1).getValues();
+        }
+        return new TailWindow(header, trimTrailingBlankRows(rows), start);
+    }
+
+    /**
+     * Reads the rows {@code firstRow..lastRow} of the sheet as stored: numbers and dates as numbers, see
+     * {@link SheetsRequests#unformattedValues}. The header is the cached one. Blank rows at the end of the window are
+     * dropped. Returns {@code null} if there is no such sheet.
+     */
+    TailWindow readUnformattedWindow(String sheetName, int firstRow, int lastRow) throws IOException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheet(sheetName);
+        if (sheetInfo == null) {
+            logger.warn("No metadata for sheet {} in spreadsheet {}", sheetName, spreadsheetId);
+            return null;
+        }
+        int start = Math.max(FIRST_DATA_ROW, firstRow);
+        String range = quoteSheetName(sheetName) + "!A" + start + ":" + columnLetters(sheetInfo.getColumnCount())
+                + Math.max(start, lastRow);
+        List<List<Object>> rows = scheduler.execute(BotMetrics.SheetsCall.VALUES_GET,
+                SheetsRequests.unformattedValues(sheetsService, spreadsheetId, range)).getValues();
+        return new TailWindow(sheetInfo.getHeaderRow(), trimTrailingBlankRows(rows), start);
+    }
+
+    /**
+     * Reads single rows of the sheet, anywhere in it, with one call. The rows come back in the order asked for,
+     * missing ones as empty rows. Returns {@code null} if there is no such sheet.
+     */
+    List<List<Object>> readRows(String sheetName, List<Integer> rowNumbers) throws IOException {
+        SheetMetadataCache.SheetInfo sheetInfo = metadataCache.getSheet(sheetName);
+        if (sheetInfo == null) {
+            logger.warn("No metadata for sheet {} in spreadsheet {}", sheetName, spreadsheetId);
+            return null;
+        }
+        if (rowNumbers.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String quotedName = quoteSheetName(sheetName);
+        String lastColumn = columnLetters(sheetInfo.getColumnCount());
+        List<String> ranges = new ArrayList<>(rowNumbers.size());
+        for (int rowNumber : rowNumbers) {
+            ranges.add(quotedName + "!A" + rowNumber + ":" + lastColumn + rowNumber);
+        }
+        List<ValueRange> valueRanges = scheduler.execute(BotMetrics.SheetsCall.VALUES_BATCH_GET,
+                SheetsRequests.batchValues(sheetsService, spreadsheetId, ranges)).getValueRanges();
+        List<List<Object>> rows = new ArrayList<>(rowNumbers.size());
+        for (int i = 0; i < rowNumbers.size(); i++) {
+            rows.add(valueRanges != null && i < valueRanges.size() ? firstRow(valueRanges.get(i).getValues())
+                    : Collections.emptyList());
+        }
+        return rows;
+    }
+
+    static List<Object> firstRow(List<List<Object>> values) {
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return Collections.emptyList();
+        }
+        return values.get(0);
+    }
+
+    /**
+     * The API omits trailing empty rows of a range, pad them back so row numbers stay aligned.
+     */
+    private static List<List<Object>> padToRows(List<List<Object>> values, int rows) {
+        List<List<Object>> padded = values != null ? new ArrayList<>(values) : new ArrayList<>();
+        while (padded.size() < rows) {
+            padded.add(Collections.emptyList());
+        }
+        return padded;
+    }
+
+    static List<List<Object>> trimTrailingBlankRows(List<List<Object>> values) {
+        if (values == null) {
+            return new ArrayList<>();
+        }
+        int end = values.size();
+        while (end > 0 && isBlankRow(values.get(end - 1))) {
+            end--;
+        }
+        return new ArrayList<>(values.subList(0, end));
+    }
+
+    static final class TailWindow {
+        private final List<Object> headerRow;
+        private final List<List<Object>> rows;
+        private final int firstRowNumber; // 1-based sheet row of rows.get(0)
+
+        TailWindow(List<Object> headerRow, List<List<Object>> rows, int firstRowNumber) {
+            this.headerRow = headerRow;
+            this.rows = rows;
+            this.firstRowNumber = firstRowNumber;
+        }
+
+        List<Object> getHeaderRow() {
+            return headerRow;
+        }
+
+        List<List<Object>> getRows() {
+            return rows;
+        }
+
+        int getFirstRowNumber() {
+            return firstRowNumber;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.mperminov;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Header and template row a new entry of a sheet starts from, shared by every session editing that sheet.
+ * Snapshots are immutable and interned per sheet: {@link #of} returns the current snapshot of the sheet while the
+ * header and template are unchanged, and makes a new version when either changed. Sessions that still hold an older
+ * version keep it until they open the sheet again.
+ */
+final class SheetTemplate {
+
+    static final SheetTemplate EMPTY = new SheetTemplate("", 0, List.of(), List.of());
+    private static final int MAX_SHEETS = 256; // Interned sheets kept before the table starts over
+    private static final Map<String, SheetTemplate> CURRENT = new ConcurrentHashMap<>();
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final String sheetName;
+    private final long version;
+    private final List<Object> header;
+    private final int headerVersion;
+    private final List<Object> templateRow;
+
+    private SheetTemplate(String sheetName, long version, List<Object> header, List<Object> templateRow) {
+        this.sheetName = sheetName;
+        this.version = version;
+        this.header = header;
+        this.headerVersion = headerVersionOf(header);
+        this.templateRow = templateRow;
+    }
+
+    /**
+     * Returns the shared snapshot of the sheet with this header and template row, the lists are not kept.
+     */
+    static SheetTemplate of(String sheetName, List<Object> header, List<Object> templateRow) {
+        if (sheetName == null || (header.isEmpty() && templateRow.isEmpty())) {
+            return EMPTY;
+        }
+        SheetTemplate current = CURRENT.get(sheetName);
+        if (current != null && current.header.equals(header) && current.templateRow.equals(templateRow)) {
+            return current;
+        }
+        // A header equal to the current one is shared even when the template row changed
+        List<Object> sharedHeader = current != null && current.header.equals(header) ? current.header : freeze(header);
+        SheetTemplate created = new SheetTemplate(sheetName, VERSIONS.incrementAndGet(), sharedHeader, freeze(templateRow));
+        if (CURRENT.size() >= MAX_SHEETS) {
+            CURRENT.clear();
+        }
+        CURRENT.put(sheetName, created); // A racing update of the same sheet only costs a second copy
+        return created;
+    }
+
+    /**
+     * Version of a header as draft buttons carry it, see {@link #getHeaderVersion()}.
+     */
+    static int headerVersionOf(List<Object> header) {
+        return header.hashCode(); // Strings hash the same in every JVM
+    }
+
+    private static List<Object> freeze(List<Object> values) {
+        return Collections.unmodifiableList(new ArrayList<>(values)); // Cells may be null, List.copyOf refuses them
+    }
+
+    String getSheetName() {
+        return sheetName;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Hash of the header, the same for equal headers across restarts. Draft buttons carry it, so a button made
+     * for other columns is told apart from a current one.
+     */
+    int getHeaderVersion() {
+        return headerVersion;
+    }
+
+    List<Object> getHeader() {
+        return header;
+    }
+
+    List<Object> getTemplateRow() {
+        return templateRow;
+    }
+
+    @Override
+    public String toString() {
+        return sheetName + " v" + version + " " + Objects.toString(header);
+    }
+}
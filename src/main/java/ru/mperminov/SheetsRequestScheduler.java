@@ -0,0 +1,244 @@
+package ru.mperminov;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gate in front of every Google Sheets API call.
+ * <ul>
+ *     <li>Reads and writes take tokens from separate buckets, sized like the per-minute quotas of the API.
+ *     A 429 halves the rate of the bucket, every success brings it back a little.</li>
+ *     <li>A read that is already in flight is not sent again, callers asking for the same URL share its result.</li>
+ *     <li>429 and 5xx answers are retried with exponential backoff and jitter.</li>
+ *     <li>At most {@code maxConcurrent} calls run at once. A write waiting for a free slot goes before all reads,
+ *     so saving a row is not stuck behind a crowd of reads.</li>
+ * </ul>
+ */
+class SheetsRequestScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SheetsRequestScheduler.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 32_000;
+    private static final double MIN_RATE_FRACTION = 0.1; // Adaptive rate never drops below this share of the configured one
+    private static final double RECOVERY_FRACTION = 0.02; // Share of the configured rate won back per success
+
+    enum Kind {
+        READ,
+        WRITE
+    }
+
+    private final BotMetrics metrics;
+    private final int maxConcurrent;
+    private final int maxRetries;
+    private final double readRate;
+    private final double readBurst;
+    private final double writeRate;
+    private final TokenBucket readBucket;
+    private final TokenBucket writeBucket;
+    private int inFlight; // Guarded by this
+    private int writesWaitingForSlot; // Guarded by this
+    private final Map<String, CompletableFuture<Object>> inFlightReads = new ConcurrentHashMap<>();
+    private final LongAdder coalescedReads = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    SheetsRequestScheduler(double readsPerSecond, double readBurst, double writesPerSecond, double writeBurst,
+                           int maxConcurrent, int maxRetries, BotMetrics metrics) {
+        long now = System.nanoTime();
+        this.readRate = readsPerSecond;
+        this.readBurst = readBurst;
+        this.writeRate = writesPerSecond;
+        this.readBucket = new TokenBucket(readsPerSecond, readBurst, now);
+        this.writeBucket = new TokenBucket(writesPerSecond, writeBurst, now);
+        this.maxConcurrent = maxConcurrent;
+        this.maxRetries = maxRetries;
+        this.metrics = metrics;
+        metrics.counter("bot_sheets_coalesced_reads", "Reads answered by an identical request already in flight.",
+                coalescedReads::sum);
+        metrics.counter("bot_sheets_retries", "Sheets calls retried after a 429 or 5xx answer.", retries::sum);
+    }
+
+    /**
+     * Executes the request once quota allows and returns its result. The result of a read may be shared with
+     * other callers and must not be modified.
+     */
+    <T> T execute(BotMetrics.SheetsCall call, AbstractGoogleClientRequest<T> request) throws IOException {
+        if (call == BotMetrics.SheetsCall.VALUES_APPEND) {
+            return executeWithRetries(Kind.WRITE, call, request);
+        }
+        String key = request.getRequestMethod() + " " + request.buildHttpRequestUrl().build();
+        CompletableFuture<Object> own = new CompletableFuture<>();
+        CompletableFuture<Object> shared = inFlightReads.putIfAbsent(key, own);
+        if (shared != null) {
+            coalescedReads.increment();
+            logger.debug("Joined in-flight Sheets request {}", key);
+            return request.getResponseClass().cast(await(shared));
+        }
+        try {
+            T result = executeWithRetries(Kind.READ, call, request);
+            own.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightReads.remove(key, own);
+        }
+    }
+
+    /**
+     * Whether a read could start right now with quota to spare: no write waits for a slot, at most half of the slots
+     * are busy and at least half of the read burst is left. Background reads check it so they never delay a user.
+     */
+    synchronized boolean hasSpareReadCapacity() {
+        return writesWaitingForSlot == 0 && inFlight < Math.max(1, maxConcurrent / 2)
+                && readBucket.hasTokens(Math.max(1.0, readBurst / 2), System.nanoTime());
+    }
+
+    private <T> T executeWithRetries(Kind kind, BotMetrics.SheetsCall call, AbstractGoogleClientRequest<T> request)
+            throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            int status;
+            acquire(kind);
+            try {
+                T result = metrics.execute(call, request);
+                onSuccess(kind);
+                return result;
+            } catch (HttpResponseException e) {
+                status = e.getStatusCode();
+                if (status == 429) {
+                    onThrottled(kind);
+                }
+                if (attempt >= maxRetries || !isRetryable(kind, status)) {
+                    throw e;
+                }
+            } finally {
+                release();
+            }
+            long backoff = backoffMillis(attempt);
+            retries.increment();
+            logger.warn("Sheets {} failed with HTTP {}, retry {} of {} in {} ms",
+                    call, status, attempt + 1, maxRetries, backoff);
+            sleep(backoff); // Without holding a slot
+        }
+    }
+
+    /**
+     * An append may have been applied before a 5xx was returned, retrying it could write the rows twice.
+     * A 429 is refused before anything is written.
+     */
+    private static boolean isRetryable(Kind kind, int status) {
+        if (status == 429) {
+            return true;
+        }
+        return kind == Kind.READ && status >= 500 && status < 600;
+    }
+
+    /**
+     * A random wait between half and all of the exponential bound, so throttled callers do not retry in step.
+     */
+    static long backoffMillis(int attempt) {
+        long bound = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(bound / 2, bound + 1);
+    }
+
+    /**
+     * Waits for a token of the kind and then for a free slot. Writes only count as waiting once they have
+     * a token, so a throttled write bucket does not hold up reads.
+     */
+    private synchronized void acquire(Kind kind) throws InterruptedIOException {
+        boolean write = kind == Kind.WRITE;
+        TokenBucket bucket = write ? writeBucket : readBucket;
+        boolean waitingForSlot = false;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long waitNanos = bucket.nanosUntilAvailable(now);
+                if (waitNanos > 0L) {
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    continue;
+                }
+                if (inFlight < maxConcurrent && (write || writesWaitingForSlot == 0) && bucket.tryTake(now)) {
+                    inFlight++;
+                    return;
+                }
+                if (write && !waitingForSlot) {
+                    waitingForSlot = true;
+                    writesWaitingForSlot++;
+                }
+                wait(); // Woken by release()
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Sheets quota");
+        } finally {
+            if (waitingForSlot) {
+                writesWaitingForSlot--;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void onThrottled(Kind kind) {
+        long now = System.nanoTime();
+        TokenBucket bucket = kind == Kind.WRITE ? writeBucket : readBucket;
+        double configured = kind == Kind.WRITE ? writeRate : readRate;
+        double rate = Math.max(configured * MIN_RATE_FRACTION, bucket.getRatePerSecond() / 2);
+        bucket.setRatePerSecond(rate, now);
+        bucket.drain(now);
+        logger.warn("Sheets {} quota exceeded, rate lowered to {} per second", kind, String.format("%.2f", rate));
+    }
+
+    private synchronized void onSuccess(Kind kind) {
+        TokenBucket bucket = kind == Kind.WRITE ? writeBucket : readBucket;
+        double configured = kind == Kind.WRITE ? writeRate : readRate;
+        if (bucket.getRatePerSecond() < configured) {
+            bucket.setRatePerSecond(Math.min(configured, bucket.getRatePerSecond() + configured * RECOVERY_FRACTION),
+                    System.nanoTime());
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> shared) throws IOException {
+        try {
+            return shared.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared Sheets request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+}
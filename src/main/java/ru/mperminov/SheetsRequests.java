@@ -0,0 +1,116 @@
+package ru.mperminov;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * The Sheets API requests the bot makes, built in one place so each of them asks only for what is read:
+ * a {@code fields} mask per call and explicit value options, so a change of API defaults does not change our data.
+ * <p>
+ * Responses are gzip-compressed: the client sends {@code Accept-Encoding: gzip} and a user agent ending in
+ * {@code (gzip)}, which Google requires before compressing, and request bodies are gzipped too.
+ * All clients share one transport, so TLS connections are kept alive and reused between calls.
+ */
+final class SheetsRequests {
+
+    static final String APPLICATION_NAME = "Telegram Bot Sheets";
+    static final String SPREADSHEET_FIELDS = "sheets.properties(title,sheetId,gridProperties(rowCount,columnCount))";
+    static final String VALUES_FIELDS = "values";
+    static final String BATCH_VALUES_FIELDS = "valueRanges(values)";
+    static final String APPEND_FIELDS = "updates(updatedRange)";
+    static final String MAJOR_DIMENSION = "ROWS";
+    static final String VALUE_RENDER_OPTION = "FORMATTED_VALUE"; // What the user sees, also what USER_ENTERED parses back
+    static final String VALUE_INPUT_OPTION = "USER_ENTERED";
+    static final String UNFORMATTED_RENDER_OPTION = "UNFORMATTED_VALUE"; // Numbers and dates as numbers, text as text
+    static final String DATE_TIME_RENDER_OPTION = "SERIAL_NUMBER"; // Days since 1899-12-30
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+    private static HttpTransport sharedTransport; // Guarded by SheetsRequests.class
+
+    private SheetsRequests() {
+    }
+
+    /**
+     * The transport all Sheets clients use. It is created on first use, with a keep-alive pool of
+     * {@code maxConnections} connections unless {@code http.maxConnections} is already set.
+     */
+    static synchronized HttpTransport sharedTransport(int maxConnections) throws GeneralSecurityException, IOException {
+        if (sharedTransport == null) {
+            if (System.getProperty("http.maxConnections") == null) {
+                // HttpURLConnection keeps only 5 idle connections per host by default
+                System.setProperty("http.maxConnections", String.valueOf(Math.max(5, maxConnections)));
+            }
+            sharedTransport = GoogleNetHttpTransport.newTrustedTransport();
+        }
+        return sharedTransport;
+    }
+
+    /**
+     * Builds a client on the given transport. {@code credentials} may be {@code null} for a local stand-in.
+     */
+    static Sheets newService(HttpTransport transport, HttpRequestInitializer credentials) {
+        return new Sheets.Builder(transport, GsonFactory.getDefaultInstance(), request -> {
+            if (credentials != null) {
+                credentials.initialize(request);
+            }
+            request.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            request.setReadTimeout(READ_TIMEOUT_MILLIS);
+        }).setApplicationName(APPLICATION_NAME).build();
+    }
+
+    static Sheets.Spreadsheets.Get spreadsheet(Sheets sheets, String spreadsheetId) throws IOException {
+        return sheets.spreadsheets().get(spreadsheetId).setFields(SPREADSHEET_FIELDS);
+    }
+
+    static Sheets.Spreadsheets.Values.Get values(Sheets sheets, String spreadsheetId, String range) throws IOException {
+        return sheets.spreadsheets().values().get(spreadsheetId, range)
+                .setFields(VALUES_FIELDS)
+                .setMajorDimension(MAJOR_DIMENSION)
+                .setValueRenderOption(VALUE_RENDER_OPTION);
+    }
+
+    /**
+     * Same as {@link #values} but the cells as stored rather than as shown.
+     */
+    static Sheets.Spreadsheets.Values.Get unformattedValues(Sheets sheets, String spreadsheetId, String range)
+            throws IOException {
+        return sheets.spreadsheets().values().get(spreadsheetId, range)
+                .setFields(VALUES_FIELDS)
+                .setMajorDimension(MAJOR_DIMENSION)
+                .setValueRenderOption(UNFORMATTED_RENDER_OPTION)
+                .setDateTimeRenderOption(DATE_TIME_RENDER_OPTION);
+    }
+
+    static Sheets.Spreadsheets.Values.BatchGet batchValues(Sheets sheets, String spreadsheetId, List<String> ranges)
+            throws IOException {
+        return sheets.spreadsheets().values().batchGet(spreadsheetId)
+                .setRanges(ranges)
+                .setFields(BATCH_VALUES_FIELDS)
+                .setMajorDimension(MAJOR_DIMENSION)
+                .setValueRenderOption(VALUE_RENDER_OPTION);
+    }
+
+    /**
+     * Appends the rows below the data of the sheet, inserting new grid rows instead of overwriting blank ones.
+     */
+    static Sheets.Spreadsheets.Values.Append append(Sheets sheets, String spreadsheetId, String range,
+                                                     List<List<Object>> rows) throws IOException {
+        Sheets.Spreadsheets.Values.Append request = sheets.spreadsheets().values()
+                .append(spreadsheetId, range, new ValueRange().setMajorDimension(MAJOR_DIMENSION).setValues(rows))
+                .setFields(APPEND_FIELDS)
+                .setValueInputOption(VALUE_INPUT_OPTION)
+                .setInsertDataOption("INSERT_ROWS")
+                .setIncludeValuesInResponse(false);
+        request.setDisableGZipContent(false);
+        return request;
+    }
+}
@@ -0,0 +1,396 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound queue for Telegram API calls. Calls are sent with {@code executeAsync} under a global and a per-chat
+ * token bucket. Within a chat calls keep their order and only one is in flight at a time. A queued edit of a message
+ * is replaced by a newer edit of the same message, and calls rejected with 429 are retried after {@code retry_after}.
+ * The time from submitting a message or an edit to its result is recorded here, failures are logged here too and
+ * passed to the {@link FailureListener}: callers only queue calls and would not learn of them otherwise.
+ */
+class TelegramSendQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(TelegramSendQueue.class);
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+    private static final long CLEANUP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Told about a call that failed for good, e.g. to let the chat know the answer it waits for is not coming.
+     */
+    interface FailureListener {
+        void onFailed(long chatId, BotApiMethod<?> method, Throwable cause);
+    }
+
+    private final TelegramClient telegramClient;
+    private final BotMetrics metrics;
+    private final FailureListener failureListener;
+    private final double chatRatePerSecond;
+    private final double chatBurst;
+    private final int maxQueuedPerChat;
+    private final TokenBucket globalBucket; // Guarded by itself
+    private final Map<Long, ChatLane> lanes = new ConcurrentHashMap<>();
+    private final DelayQueue<ChatLane> readyLanes = new DelayQueue<>();
+    private final Thread sender;
+    private volatile boolean accepting = true;
+
+    TelegramSendQueue(TelegramClient telegramClient, double globalRatePerSecond, double chatRatePerSecond,
+                      double chatBurst, int maxQueuedPerChat, BotMetrics metrics, FailureListener failureListener) {
+        this.telegramClient = telegramClient;
+        this.metrics = metrics;
+        this.failureListener = failureListener;
+        this.chatRatePerSecond = chatRatePerSecond;
+        this.chatBurst = chatBurst;
+        this.maxQueuedPerChat = maxQueuedPerChat;
+        this.globalBucket = new TokenBucket(globalRatePerSecond, globalRatePerSecond, System.nanoTime());
+        this.sender = new Thread(this::sendLoop, "telegram-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+        logger.info("Telegram send queue started: {} msg/s global, {} msg/s per chat (burst {})",
+                globalRatePerSecond,
+                chatRatePerSecond,
+                chatBurst);
+    }
+
+    /**
+     * Queues an API call for the chat. The future completes with the API result once the call went through.
+     *
+     * @throws TelegramApiException if the queue is shut down or the chat has too many queued calls
+     */
+    <T extends Serializable> CompletableFuture<T> submit(long chatId, BotApiMethod<T> method) throws TelegramApiException {
+        if (!accepting) {
+            throw new TelegramApiException("Очередь отправки остановлена");
+        }
+        return enqueue(chatId, new Outgoing<>(method, null, System.nanoTime()));
+    }
+
+    /**
+     * Queues a document upload for the chat, under the same limits and in the same order as its other calls.
+     * Failures are not passed to the {@link FailureListener}, the caller waits for the upload.
+     *
+     * @throws TelegramApiException if the queue is shut down or the chat has too many queued calls
+     */
+    CompletableFuture<Message> submitUpload(long chatId, SendDocument document) throws TelegramApiException {
+        if (!accepting) {
+            throw new TelegramApiException("Очередь отправки остановлена");
+        }
+        return enqueue(chatId, new Outgoing<>(null, document, System.nanoTime()));
+    }
+
+    private <T extends Serializable> CompletableFuture<T> enqueue(long chatId, Outgoing<T> outgoing)
+            throws TelegramApiException {
+        while (true) {
+            ChatLane lane = lanes.computeIfAbsent(chatId, ChatLane::new);
+            synchronized (lane) {
+                if (lane.retired) {
+                    continue; // Dropped as idle since it was looked up, the next lookup creates a new one
+                }
+                if (outgoing.method instanceof EditMessageText && coalesceEdit(lane, outgoing)) {
+                    return outgoing.result;
+                }
+                if (lane.pending.size() >= maxQueuedPerChat) {
+                    throw new TelegramApiException("Слишком много сообщений в очереди для чата " + chatId);
+                }
+                lane.pending.addLast(outgoing);
+                scheduleIfIdle(lane, System.nanoTime());
+            }
+            return outgoing.result;
+        }
+    }
+
+    /**
+     * Number of calls waiting to be sent, over all chats.
+     */
+    int getQueuedCount() {
+        int queued = 0;
+        for (ChatLane lane : lanes.values()) {
+            synchronized (lane) {
+                queued += lane.pending.size();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stops accepting calls and waits until the queued ones are sent.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        accepting = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (System.nanoTime() < deadline && hasWork()) {
+            Thread.sleep(50);
+        }
+        if (hasWork()) {
+            logger.warn("Telegram send queue shut down with {} calls still queued", getQueuedCount());
+        }
+        sender.interrupt();
+    }
+
+    /**
+     * Replaces a queued, not yet sent edit of the same message. The replaced call completes with the newer result.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean coalesceEdit(ChatLane lane, Outgoing<?> outgoing) {
+        Integer messageId = ((EditMessageText) outgoing.method).getMessageId();
+        if (messageId == null) {
+            return false;
+        }
+        for (Iterator<Outgoing<?>> it = lane.pending.iterator(); it.hasNext(); ) {
+            Outgoing<?> queued = it.next();
+            if (queued.method instanceof EditMessageText
+                    && messageId.equals(((EditMessageText) queued.method).getMessageId())) {
+                logger.trace("Dropping outdated edit of message {} in chatId {}", messageId, lane.chatId);
+                // Both are EditMessageText calls, so the result types match
+                Outgoing<Serializable> older = (Outgoing<Serializable>) queued;
+                Outgoing<Serializable> newer = (Outgoing<Serializable>) outgoing;
+                older.method = newer.method; // The newer text takes the place of the older one in the queue
+                older.result.whenComplete((value, error) -> {
+                    if (error != null) {
+                        newer.result.completeExceptionally(error);
+                    } else {
+                        newer.result.complete(value);
+                    }
+                });
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasWork() {
+        for (ChatLane lane : lanes.values()) {
+            synchronized (lane) {
+                if (!lane.pending.isEmpty() || lane.inFlight) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts the lane in the ready queue unless it is already there or waiting for a response. Caller holds the lane lock.
+     */
+    private void scheduleIfIdle(ChatLane lane, long now) {
+        if (lane.scheduled || lane.inFlight || lane.pending.isEmpty()) {
+            return;
+        }
+        lane.readyAt = Math.max(now + lane.bucket.nanosUntilAvailable(now), lane.notBefore);
+        lane.scheduled = true;
+        readyLanes.add(lane);
+    }
+
+    private void sendLoop() {
+        long lastCleanup = System.nanoTime();
+        try {
+            while (true) {
+                ChatLane lane = readyLanes.poll(1, TimeUnit.SECONDS);
+                long now = System.nanoTime();
+                if (now - lastCleanup > CLEANUP_INTERVAL_NANOS) {
+                    dropIdleLanes(now);
+                    lastCleanup = now;
+                }
+                if (lane == null) {
+                    continue;
+                }
+                Outgoing<?> outgoing;
+                synchronized (lane) {
+                    lane.scheduled = false;
+                    now = System.nanoTime();
+                    if (lane.pending.isEmpty()) {
+                        continue;
+                    }
+                    if (!lane.bucket.tryTake(now)) {
+                        scheduleIfIdle(lane, now); // Another call took the token meanwhile
+                        continue;
+                    }
+                    outgoing = lane.pending.pollFirst();
+                    lane.inFlight = true; // Keeps the chat's order while the global token is awaited
+                }
+                try {
+                    awaitGlobalToken(); // Taken after the lane's, a throttled lane does not waste the others' tokens
+                } catch (InterruptedException e) {
+                    outgoing.result.completeExceptionally(e);
+                    throw e;
+                }
+                send(lane, outgoing);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("Telegram sender stopped");
+        }
+    }
+
+    private void awaitGlobalToken() throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (globalBucket) {
+                long now = System.nanoTime();
+                if (globalBucket.tryTake(now)) {
+                    return;
+                }
+                wait = globalBucket.nanosUntilAvailable(now);
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(wait, 1_000L));
+        }
+    }
+
+    private <T extends Serializable> void send(ChatLane lane, Outgoing<T> outgoing) {
+        CompletableFuture<T> call;
+        try {
+            call = outgoing.upload != null ? uploadResult(telegramClient.executeAsync(outgoing.upload))
+                    : telegramClient.executeAsync(outgoing.method);
+        } catch (TelegramApiException | RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((result, error) -> onSent(lane, outgoing, result, error));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> CompletableFuture<T> uploadResult(CompletableFuture<Message> upload) {
+        return (CompletableFuture<T>) upload; // Only uploads carry a document, their results are messages
+    }
+
+    private <T extends Serializable> void onSent(ChatLane lane, Outgoing<T> outgoing, T result, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        long now = System.nanoTime();
+        boolean retried = false;
+        synchronized (lane) {
+            lane.inFlight = false;
+            if (cause != null && isTooManyRequests(cause) && outgoing.attempts + 1 < MAX_ATTEMPTS) {
+                retried = true;
+                long retryAfterSeconds = retryAfterSeconds((TelegramApiRequestException) cause);
+                outgoing.attempts++;
+                lane.notBefore = now + TimeUnit.SECONDS.toNanos(retryAfterSeconds);
+                lane.bucket.drain(now);
+                lane.pending.addFirst(outgoing); // Keep the order of the chat
+                logger.warn("Telegram asked to retry after {} s for chatId {} (attempt {})",
+                        retryAfterSeconds,
+                        lane.chatId,
+                        outgoing.attempts);
+            } else if (cause != null) {
+                outgoing.result.completeExceptionally(cause);
+            } else {
+                outgoing.result.complete(result);
+            }
+            scheduleIfIdle(lane, now);
+        }
+        if (!retried) {
+            record(lane, outgoing, now, cause);
+        }
+    }
+
+    private void record(ChatLane lane, Outgoing<?> outgoing, long now, Throwable cause) {
+        BotMetrics.Outcome outcome = cause == null ? BotMetrics.Outcome.SUCCESS : BotMetrics.Outcome.ERROR;
+        BotApiMethod<?> method = outgoing.method;
+        long submittedAt = outgoing.submittedAt;
+        if (outgoing.upload != null) {
+            metrics.recordTelegramCall(BotMetrics.TelegramCall.SEND_DOCUMENT, outcome, now - submittedAt);
+            if (cause != null) {
+                logger.error("Failed to upload a document for chatId {}", lane.chatId, cause);
+            }
+            return;
+        }
+        if (method instanceof SendMessage) {
+            metrics.recordTelegramCall(BotMetrics.TelegramCall.SEND_MESSAGE, outcome, now - submittedAt);
+        } else if (method instanceof EditMessageText) {
+            metrics.recordTelegramCall(BotMetrics.TelegramCall.EDIT_MESSAGE_TEXT, outcome, now - submittedAt);
+        }
+        if (cause != null) {
+            logger.error("Failed to execute {} for chatId {}", method.getMethod(), lane.chatId, cause);
+            try {
+                failureListener.onFailed(lane.chatId, method, cause);
+            } catch (RuntimeException e) {
+                logger.error("Send failure listener failed for chatId {}", lane.chatId, e);
+            }
+        }
+    }
+
+    private void dropIdleLanes(long now) {
+        lanes.values().removeIf(lane -> {
+            synchronized (lane) {
+                // A full bucket carries no rate history, the lane can be recreated on demand
+                lane.retired = !lane.scheduled && !lane.inFlight && lane.pending.isEmpty()
+                        && lane.bucket.isFull(now) && now >= lane.notBefore;
+                return lane.retired;
+            }
+        });
+    }
+
+    private static boolean isTooManyRequests(Throwable error) {
+        return error instanceof TelegramApiRequestException
+                && Integer.valueOf(TOO_MANY_REQUESTS).equals(((TelegramApiRequestException) error).getErrorCode());
+    }
+
+    private static long retryAfterSeconds(TelegramApiRequestException error) {
+        if (error.getParameters() != null && error.getParameters().getRetryAfter() != null) {
+            return Math.max(1, error.getParameters().getRetryAfter());
+        }
+        return DEFAULT_RETRY_AFTER_SECONDS;
+    }
+
+    private final class ChatLane implements Delayed {
+        private final long chatId;
+        private final Deque<Outgoing<?>> pending = new ArrayDeque<>();
+        private final TokenBucket bucket;
+        private boolean scheduled; // In readyLanes
+        private boolean inFlight; // A call of this chat is waiting for its response
+        private boolean retired; // Removed from the lanes, a submit that still found it looks again
+        private long readyAt;
+        private long notBefore; // Set by retry_after
+
+        private ChatLane(long chatId) {
+            long now = System.nanoTime();
+            this.chatId = chatId;
+            this.bucket = new TokenBucket(chatRatePerSecond, chatBurst, now);
+            this.notBefore = now;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyAt, ((ChatLane) other).readyAt);
+        }
+    }
+
+    private static final class Outgoing<T extends Serializable> {
+        private BotApiMethod<T> method; // Replaced when a newer edit of the same message arrives, null for an upload
+        private final SendDocument upload; // Sent instead of the method if set
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long submittedAt; // Kept when a newer edit takes the place of this one
+        private int attempts;
+
+        private Outgoing(BotApiMethod<T> method, SendDocument upload, long submittedAt) {
+            this.method = method;
+            this.upload = upload;
+            this.submittedAt = submittedAt;
+        }
+    }
+}
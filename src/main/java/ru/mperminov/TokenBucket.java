@@ -0,0 +1,88 @@
+package ru.mperminov;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket: refills at {@code ratePerSecond} up to {@code capacity} tokens.
+ * Not thread-safe, callers synchronize.
+ */
+final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private double ratePerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double ratePerSecond, double capacity, long now) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Nanoseconds until one token is available, 0 if one is available right now.
+     */
+    long nanosUntilAvailable(long now) {
+        refill(now);
+        if (tokens >= 1.0) {
+            return 0L;
+        }
+        return (long) Math.ceil((1.0 - tokens) / ratePerSecond * NANOS_PER_SECOND);
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    boolean tryTake(long now) {
+        refill(now);
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empties the bucket, e.g. after the server asked us to back off.
+     */
+    void drain(long now) {
+        refill(now);
+        tokens = Math.min(tokens, 0.0);
+    }
+
+    double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * Changes the refill rate from now on, tokens already in the bucket stay.
+     */
+    void setRatePerSecond(double ratePerSecond, long now) {
+        refill(now);
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Whether at least {@code count} tokens are available, without taking any.
+     */
+    boolean hasTokens(double count, long now) {
+        refill(now);
+        return tokens >= count;
+    }
+
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * ratePerSecond / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+}
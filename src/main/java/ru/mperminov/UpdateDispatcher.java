@@ -0,0 +1,150 @@
+package ru.mperminov;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hands updates to the bot on a bounded worker pool.
+ * Updates of one chat are processed strictly in arrival order, different chats run in parallel.
+ */
+class UpdateDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpdateDispatcher.class);
+    private static final int MAX_UPDATES_PER_TURN = 16; // Give other chats a chance after this many updates
+    private static final long NO_CHAT_ID = 0L; // Lane for updates that do not belong to a chat
+
+    private final Consumer<Update> handler;
+    private final ExecutorService executor;
+    private final Map<Long, ChatQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    UpdateDispatcher(int maxConcurrency, Consumer<Update> handler) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.handler = handler;
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new WorkerThreadFactory());
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        logger.info("Update dispatcher started with max concurrency {}", maxConcurrency);
+    }
+
+    static long chatIdOf(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return update.getCallbackQuery().getMessage().getChatId();
+        }
+        return NO_CHAT_ID;
+    }
+
+    void submit(Update update) {
+        long chatId = chatIdOf(update);
+        int depth = queueDepth.incrementAndGet();
+        boolean[] needsSchedule = new boolean[1];
+        ChatQueue chatQueue = queues.compute(chatId, (id, queue) -> {
+            if (queue == null) {
+                queue = new ChatQueue(id);
+            }
+            queue.pending.add(update);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                needsSchedule[0] = true;
+            }
+            return queue;
+        });
+        logger.trace("Queued update for chatId {}. Queue depth: {}", chatId, depth);
+        if (needsSchedule[0]) {
+            executor.execute(() -> drain(chatQueue));
+        }
+    }
+
+    /**
+     * Number of updates accepted but not yet handed to the bot.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Number of chats that currently have queued or running updates.
+     */
+    int getActiveChats() {
+        return queues.size();
+    }
+
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout, unit)) {
+            logger.warn("Update dispatcher did not finish in time, {} updates left in queue", queueDepth.get());
+            executor.shutdownNow();
+        }
+    }
+
+    private void drain(ChatQueue chatQueue) {
+        for (int processed = 0; processed < MAX_UPDATES_PER_TURN; processed++) {
+            Update update = poll(chatQueue);
+            if (update == null) {
+                return; // The queue was unscheduled and removed by poll()
+            }
+            queueDepth.decrementAndGet();
+            try {
+                handler.accept(update);
+            } catch (RuntimeException e) {
+                logger.error("Unhandled error while processing update for chatId {}", chatQueue.chatId, e);
+            }
+        }
+        // Still more work for this chat, requeue behind the other chats
+        executor.execute(() -> drain(chatQueue));
+    }
+
+    private Update poll(ChatQueue chatQueue) {
+        Update[] next = new Update[1];
+        queues.compute(chatQueue.chatId, (id, queue) -> {
+            next[0] = chatQueue.pending.poll();
+            if (next[0] == null) {
+                chatQueue.scheduled = false;
+                return null; // Nothing left for this chat, drop the queue
+            }
+            return chatQueue;
+        });
+        return next[0];
+    }
+
+    private static final class ChatQueue {
+        private final long chatId;
+        private final Queue<Update> pending = new ArrayDeque<>(); // Guarded by queues.compute()
+        private boolean scheduled;
+
+        private ChatQueue(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "update-worker-" + counter.incrementAndGet());
+            thread.setDaemon(false);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.mperminov;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Receives updates that Telegram pushes to the bot's webhook, using the HTTP server built into the JDK.
+ * A request is answered as soon as its update is parsed, the update is then handed to the consumer,
+ * which is expected to only queue it.
+ */
+class WebhookServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookServer.class);
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false); // Newer Bot API fields are ignored
+    private final byte[] secretToken;
+    private final Consumer<List<Update>> consumer;
+
+    /**
+     * @param secretToken value Telegram sends in {@value #SECRET_HEADER}, requests without it are refused;
+     *                    {@code null} or empty turns the check off
+     * @param threads     threads that read and parse requests, the bot's work runs on its own dispatcher
+     */
+    WebhookServer(String host, int port, String path, String secretToken, int threads,
+                  Consumer<List<Update>> consumer) throws IOException {
+        this.secretToken = secretToken == null || secretToken.isEmpty()
+                ? null : secretToken.getBytes(StandardCharsets.UTF_8);
+        this.consumer = consumer;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new WebhookThreadFactory());
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext(path, this::respond);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Webhook listening on {}:{}{}", host, server.getAddress().getPort(), path);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        Update update;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!hasValidSecret(exchange)) {
+                logger.warn("Rejected webhook request from {} without a valid secret token", exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            try (InputStream body = exchange.getRequestBody()) {
+                update = objectMapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                logger.warn("Failed to parse webhook update", e);
+                exchange.sendResponseHeaders(400, -1); // Telegram drops the update instead of retrying it forever
+                return;
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            exchange.close();
+        }
+        consumer.accept(List.of(update)); // After the answer, so Telegram is never kept waiting for the queue
+    }
+
+    private boolean hasValidSecret(HttpExchange exchange) {
+        if (secretToken == null) {
+            return true;
+        }
+        String received = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        return received != null && MessageDigest.isEqual(secretToken, received.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class WebhookThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "webhook-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
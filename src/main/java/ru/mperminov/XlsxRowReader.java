@@ -0,0 +1,325 @@
+package ru.mperminov;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the rows of the first worksheet of an XLSX file with a StAX parser, one row at a time.
+ * Only the shared strings table is kept in memory, it is limited to {@value #MAX_SHARED_STRING_CHARS} characters.
+ * Cells with a date format are written as dates, the way the sheet expects them, not as day numbers.
+ */
+final class XlsxRowReader implements RowReader {
+
+    private static final String RELATIONSHIP_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final int MAX_SHARED_STRING_CHARS = 32 * 1024 * 1024;
+    private static final LocalDate EXCEL_EPOCH = LocalDate.of(1899, 12, 30); // Day 0, with the 1900 leap year bug folded in
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm");
+    private static final XMLInputFactory XML = newInputFactory();
+
+    private final ZipFile zip;
+    private final List<String> sharedStrings;
+    private final boolean[] dateStyles;
+    private final XMLStreamReader sheet;
+    private int lineNumber;
+
+    XlsxRowReader(Path file) throws IOException {
+        this.zip = new ZipFile(file.toFile());
+        try {
+            this.sharedStrings = readSharedStrings();
+            this.dateStyles = readDateStyles();
+            this.sheet = XML.createXMLStreamReader(open(firstSheetPath()));
+        } catch (XMLStreamException | RuntimeException e) {
+            zip.close();
+            throw new IOException("Файл XLSX повреждён или не поддерживается", e);
+        } catch (IOException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> next() throws IOException {
+        try {
+            while (sheet.hasNext()) {
+                if (sheet.next() == XMLStreamConstants.START_ELEMENT && "row".equals(sheet.getLocalName())) {
+                    String r = sheet.getAttributeValue(null, "r");
+                    lineNumber = r != null ? Integer.parseInt(r) : lineNumber + 1;
+                    return readRow();
+                }
+            }
+            return null;
+        } catch (XMLStreamException | RuntimeException e) {
+            throw new IOException("Не удалось прочитать строку " + (lineNumber + 1) + " файла XLSX", e);
+        }
+    }
+
+    @Override
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sheet.close();
+        } catch (XMLStreamException e) {
+            // Nothing left to release, the zip is closed below
+        } finally {
+            zip.close();
+        }
+    }
+
+    private List<String> readRow() throws XMLStreamException {
+        List<String> row = new ArrayList<>();
+        while (sheet.hasNext()) {
+            int event = sheet.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "row".equals(sheet.getLocalName())) {
+                return row;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT || !"c".equals(sheet.getLocalName())) {
+                continue;
+            }
+            String reference = sheet.getAttributeValue(null, "r");
+            int column = reference != null ? columnIndex(reference) : row.size();
+            while (row.size() < column) {
+                row.add(""); // Empty cells are not written
+            }
+            String type = sheet.getAttributeValue(null, "t");
+            String style = sheet.getAttributeValue(null, "s");
+            row.add(cellValue(type, style != null ? Integer.parseInt(style) : 0));
+        }
+        return row;
+    }
+
+    /**
+     * Reads the current {@code <c>} element up to its end.
+     */
+    private String cellValue(String type, int style) throws XMLStreamException {
+        StringBuilder value = new StringBuilder();
+        boolean inText = false;
+        while (sheet.hasNext()) {
+            int event = sheet.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = sheet.getLocalName();
+                inText = "v".equals(name) || "t".equals(name); // <v> or <is><t> of an inline string
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (inText) {
+                    value.append(sheet.getText());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if ("c".equals(sheet.getLocalName())) {
+                    break;
+                }
+                inText = false;
+            }
+        }
+        String raw = value.toString();
+        if (type == null || "n".equals(type)) {
+            return style < dateStyles.length && dateStyles[style] && !raw.isEmpty() ? formatDate(raw) : raw;
+        }
+        switch (type) {
+            case "s":
+                return sharedStrings.get(Integer.parseInt(raw.trim()));
+            case "b":
+                return "1".equals(raw) ? "TRUE" : "FALSE";
+            default: // inlineStr, str (formula result), e (error)
+                return raw;
+        }
+    }
+
+    static String formatDate(String serial) {
+        double days = Double.parseDouble(serial);
+        long wholeDays = (long) Math.floor(days);
+        long minutes = Math.round((days - wholeDays) * 24 * 60);
+        LocalDateTime dateTime = EXCEL_EPOCH.plusDays(wholeDays).atStartOfDay().plusMinutes(minutes);
+        return minutes == 0 ? dateTime.format(DATE_FORMAT) : dateTime.format(DATE_TIME_FORMAT);
+    }
+
+    /**
+     * Converts the letters of a cell reference like {@code AB12} into a 0-based column index.
+     */
+    static int columnIndex(String reference) {
+        int column = 0;
+        for (int i = 0; i < reference.length() && Character.isLetter(reference.charAt(i)); i++) {
+            column = column * 26 + (Character.toUpperCase(reference.charAt(i)) - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    private List<String> readSharedStrings() throws IOException, XMLStreamException {
+        List<String> strings = new ArrayList<>();
+        ZipEntry entry = zip.getEntry("xl/sharedStrings.xml");
+        if (entry == null) {
+            return strings;
+        }
+        long totalChars = 0;
+        XMLStreamReader reader = XML.createXMLStreamReader(zip.getInputStream(entry));
+        try {
+            StringBuilder item = new StringBuilder();
+            int phonetic = 0; // Inside <rPh>, reading hints that are not part of the text
+            boolean inText = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("si".equals(name)) {
+                        item.setLength(0);
+                    } else if ("rPh".equals(name)) {
+                        phonetic++;
+                    }
+                    inText = "t".equals(name) && phonetic == 0;
+                } else if (event == XMLStreamConstants.CHARACTERS && inText) {
+                    item.append(reader.getText());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("si".equals(name)) {
+                        totalChars += item.length();
+                        if (totalChars > MAX_SHARED_STRING_CHARS) {
+                            throw new IOException("В файле XLSX слишком много текста для импорта");
+                        }
+                        strings.add(item.toString());
+                    } else if ("rPh".equals(name)) {
+                        phonetic--;
+                    }
+                    inText = false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return strings;
+    }
+
+    /**
+     * Marks the cell styles whose number format shows a date: the built-in date formats and custom formats
+     * with day, month or year parts outside quotes and brackets.
+     */
+    private boolean[] readDateStyles() throws IOException, XMLStreamException {
+        ZipEntry entry = zip.getEntry("xl/styles.xml");
+        if (entry == null) {
+            return new boolean[0];
+        }
+        Set<Integer> dateFormats = new HashSet<>(List.of(14, 15, 16, 17, 18, 19, 20, 21, 22, 45, 46, 47));
+        List<Boolean> styles = new ArrayList<>();
+        XMLStreamReader reader = XML.createXMLStreamReader(zip.getInputStream(entry));
+        try {
+            boolean inCellFormats = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("numFmt".equals(name) && isDateFormat(reader.getAttributeValue(null, "formatCode"))) {
+                        dateFormats.add(Integer.parseInt(reader.getAttributeValue(null, "numFmtId")));
+                    } else if ("cellXfs".equals(name)) {
+                        inCellFormats = true;
+                    } else if ("xf".equals(name) && inCellFormats) {
+                        String format = reader.getAttributeValue(null, "numFmtId");
+                        styles.add(format != null && dateFormats.contains(Integer.parseInt(format)));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "cellXfs".equals(reader.getLocalName())) {
+                    inCellFormats = false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        boolean[] result = new boolean[styles.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = styles.get(i);
+        }
+        return result;
+    }
+
+    static boolean isDateFormat(String formatCode) {
+        if (formatCode == null) {
+            return false;
+        }
+        boolean quoted = false;
+        int bracket = 0;
+        for (int i = 0; i < formatCode.length(); i++) {
+            char c = formatCode.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '[') {
+                bracket++;
+            } else if (!quoted && c == ']') {
+                bracket--;
+            } else if (!quoted && bracket == 0 && "dDmMyY".indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Path of the first sheet of the workbook, following its relationship, as the file name may be anything.
+     */
+    private String firstSheetPath() throws IOException, XMLStreamException {
+        String relationshipId = null;
+        XMLStreamReader workbook = XML.createXMLStreamReader(open("xl/workbook.xml"));
+        try {
+            while (workbook.hasNext() && relationshipId == null) {
+                if (workbook.next() == XMLStreamConstants.START_ELEMENT && "sheet".equals(workbook.getLocalName())) {
+                    relationshipId = workbook.getAttributeValue(RELATIONSHIP_NS, "id");
+                }
+            }
+        } finally {
+            workbook.close();
+        }
+        Map<String, String> targets = new HashMap<>();
+        ZipEntry relsEntry = zip.getEntry("xl/_rels/workbook.xml.rels");
+        if (relsEntry != null) {
+            XMLStreamReader rels = XML.createXMLStreamReader(zip.getInputStream(relsEntry));
+            try {
+                while (rels.hasNext()) {
+                    if (rels.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(rels.getLocalName())) {
+                        targets.put(rels.getAttributeValue(null, "Id"), rels.getAttributeValue(null, "Target"));
+                    }
+                }
+            } finally {
+                rels.close();
+            }
+        }
+        String target = relationshipId != null ? targets.get(relationshipId) : null;
+        if (target == null) {
+            return "xl/worksheets/sheet1.xml";
+        }
+        return target.startsWith("/") ? target.substring(1) : "xl/" + target;
+    }
+
+    private InputStream open(String path) throws IOException {
+        ZipEntry entry = zip.getEntry(path);
+        if (entry == null) {
+            throw new IOException("В файле XLSX нет " + path);
+        }
+        return zip.getInputStream(entry);
+    }
+
+    /**
+     * A parser that ignores DTDs and external entities, uploaded files are not trusted.
+     */
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallbackDataTest {
+
+    private static final int TELEGRAM_MAX_BYTES = 64;
+
+    @Test
+    void roundTripsEveryAction() {
+        for (CallbackAction action : CallbackAction.values()) {
+            CallbackData data = CallbackData.decode(CallbackData.encode(action, 123456789, 42, 0xCAFEBABE));
+            assertNotNull(data, action.name());
+            assertEquals(action, data.getAction());
+            assertEquals(123456789, data.getSheetId());
+            assertEquals(42, data.getValue());
+            assertEquals(0xCAFEBABE, data.getHeaderVersion());
+        }
+    }
+
+    @Test
+    void readsActionWithoutDecoding() {
+        for (CallbackAction action : CallbackAction.values()) {
+            assertEquals(action, CallbackData.actionOf(CallbackData.encode(action, Integer.MAX_VALUE, 0, -1)));
+            assertEquals(action, CallbackData.actionOf(CallbackData.encode(action)));
+        }
+        assertNull(CallbackData.actionOf("SHEET_Лист1"));
+        assertNull(CallbackData.actionOf(base64(1, 0, 0, 0))); // Unknown action
+        assertNull(CallbackData.actionOf("AQ"));
+        assertNull(CallbackData.actionOf(null));
+    }
+
+    @Test
+    void roundTripsMissingFields() {
+        CallbackData data = CallbackData.decode(CallbackData.encode(CallbackAction.BACK_TO_SHEET_SELECTION));
+        assertNotNull(data);
+        assertEquals(CallbackAction.BACK_TO_SHEET_SELECTION, data.getAction());
+        assertEquals(-1, data.getSheetId());
+        assertEquals(-1, data.getValue());
+        assertEquals(0, data.getHeaderVersion());
+    }
+
+    @Test
+    void fitsTelegramLimitWithLargestFields() {
+        String encoded = CallbackData.encode(CallbackAction.EDIT_COLUMN_INDEX, Integer.MAX_VALUE, Integer.MAX_VALUE, -1);
+        assertTrue(encoded.length() <= 22, encoded);
+        assertTrue(encoded.getBytes(StandardCharsets.UTF_8).length <= TELEGRAM_MAX_BYTES, encoded);
+        CallbackData data = CallbackData.decode(encoded);
+        assertNotNull(data);
+        assertEquals(Integer.MAX_VALUE, data.getSheetId());
+        assertEquals(Integer.MAX_VALUE, data.getValue());
+        assertEquals(-1, data.getHeaderVersion());
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        String encoded = CallbackData.encode(CallbackAction.SHOW_PAGE, 987654321, 100_000, 7);
+        for (int length = 0; length < encoded.length(); length++) {
+            assertNull(CallbackData.decode(encoded.substring(0, length)), encoded.substring(0, length));
+        }
+    }
+
+    @Test
+    void rejectsMalformedData() {
+        assertNull(CallbackData.decode(null));
+        assertNull(CallbackData.decode("not base64!"));
+        assertNull(CallbackData.decode("SHEET_Лист1")); // Text prefix of older versions
+        assertNull(CallbackData.decode(CallbackData.encode(CallbackAction.SHOW_PAGE, 1, 2, 3) + "AAAA")); // Trailing bytes
+        assertNull(CallbackData.decode("A".repeat(23))); // Longer than any valid data
+        assertNull(CallbackData.decode(base64(2, 1, 0, 0, 0, 0, 0, 0))); // Unknown format
+        assertNull(CallbackData.decode(base64(1, 0, 0, 0, 0, 0, 0, 0))); // Unknown action
+        assertNull(CallbackData.decode(base64(1, 1, 0x80, 0x80, 0x80, 0x80, 0x80, 0, 0, 0, 0, 0))); // Varint too long
+    }
+
+    private static String base64(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+}
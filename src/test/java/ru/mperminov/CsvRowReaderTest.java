@@ -0,0 +1,67 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CsvRowReaderTest {
+
+    @Test
+    void readsQuotedFieldsWithDelimitersQuotesAndLineBreaks() throws Exception {
+        try (CsvRowReader reader = new CsvRowReader(fixture("quoted.csv"))) {
+            assertEquals(List.of("Имя", "Комментарий", "Кол-во"), reader.next());
+            assertEquals(List.of("Иванов, Иван", "Сказал \"спасибо\"", "2"), reader.next());
+            assertEquals(2, reader.getLineNumber());
+            assertEquals(List.of("Пётр", "две\nстроки", "3"), reader.next());
+            assertEquals(3, reader.getLineNumber());
+            assertEquals(List.of("", "", ""), reader.next());
+            assertEquals(5, reader.getLineNumber()); // The line break inside quotes counts
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void skipsByteOrderMarkAndDetectsSemicolons() throws Exception {
+        try (CsvRowReader reader = new CsvRowReader(fixture("bom-semicolon.csv"))) {
+            assertEquals(List.of("Дата", "Сумма", "Район"), reader.next());
+            assertEquals(List.of("01.05.2025", "1,5", "Центр; север"), reader.next());
+            assertEquals(List.of("02.05.2025", "", "Юг"), reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void readsWindows1251WhenFileIsNotUtf8() throws Exception {
+        Path file = Files.createTempFile("import", ".csv");
+        Files.write(file, "Имя\tРайон\nЁлкин\tСевер\n".getBytes(Charset.forName("windows-1251")));
+        assertEquals(Charset.forName("windows-1251"), CsvRowReader.detectCharset(file));
+        try (CsvRowReader reader = new CsvRowReader(file)) {
+            assertEquals(List.of("Имя", "Район"), reader.next());
+            assertEquals(List.of("Ёлкин", "Север"), reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void rejectsUnclosedQuote() throws Exception {
+        Path file = Files.createTempFile("import", ".csv");
+        Files.writeString(file, "Имя,Район\n\"Иван,Север\n");
+        try (CsvRowReader reader = new CsvRowReader(file)) {
+            reader.next();
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    private static Path fixture(String name) throws URISyntaxException {
+        return Path.of(CsvRowReaderTest.class.getResource(name).toURI());
+    }
+}
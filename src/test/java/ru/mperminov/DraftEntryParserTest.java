@@ -0,0 +1,77 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DraftEntryParserTest {
+
+    private static final String[] NAMES = names("ФИО", "Дата рождения", "Дата обращения", "Телефон", "Адрес", "Пол");
+
+    @Test
+    void normalizesCaseYoSpacesAndPunctuation() {
+        assertEquals("датарождения", DraftEntryParser.normalize(" Дата  рождения: "));
+        assertEquals("елка", DraftEntryParser.normalize("Ёлка"));
+        assertEquals("phone2", DraftEntryParser.normalize("Phone-2"));
+    }
+
+    @Test
+    void findsExactName() {
+        assertEquals(0, DraftEntryParser.findColumn(NAMES, "фио"));
+        assertEquals(5, DraftEntryParser.findColumn(NAMES, "пол"));
+    }
+
+    @Test
+    void findsUniquePrefix() {
+        assertEquals(3, DraftEntryParser.findColumn(NAMES, "тел"));
+        assertEquals(1, DraftEntryParser.findColumn(NAMES, "датарожд"));
+    }
+
+    @Test
+    void rejectsAmbiguousPrefix() {
+        assertEquals(-1, DraftEntryParser.findColumn(NAMES, "дата"));
+    }
+
+    @Test
+    void forgivesTypos() {
+        assertEquals(3, DraftEntryParser.findColumn(NAMES, "тилефон"));
+        assertEquals(4, DraftEntryParser.findColumn(NAMES, "адрис"));
+        assertEquals(1, DraftEntryParser.findColumn(NAMES, "датарождетя"));
+    }
+
+    @Test
+    void rejectsDistantOrEmptyNames() {
+        assertEquals(-1, DraftEntryParser.findColumn(NAMES, "комментарий"));
+        assertEquals(-1, DraftEntryParser.findColumn(NAMES, "фа")); // Two edits from "фио", short names get one
+        assertEquals(-1, DraftEntryParser.findColumn(NAMES, ""));
+    }
+
+    @Test
+    void rejectsTyposEquallyCloseToTwoColumns() {
+        assertEquals(-1, DraftEntryParser.findColumn(names("кот", "кит"), "кат"));
+    }
+
+    @Test
+    void parsesLinesAndSemicolons() {
+        List<Object> header = List.of("ФИО", "Телефон", "Адрес");
+        DraftEntryParser.Result lines = DraftEntryParser.parse("фио: Иванов Иван\nтел = +7 900 000-00-00\nзаметка", header);
+        assertEquals("Иванов Иван", lines.getValues().get(0));
+        assertEquals("+7 900 000-00-00", lines.getValues().get(1));
+        assertEquals(List.of("заметка"), lines.getUnmatched());
+
+        DraftEntryParser.Result semicolons = DraftEntryParser.parse("Адрес: ул. Ленина, 1; ФИО: Петров", header);
+        assertEquals("ул. Ленина, 1", semicolons.getValues().get(2));
+        assertEquals("Петров", semicolons.getValues().get(0));
+        assertEquals(List.of(), semicolons.getUnmatched());
+    }
+
+    private static String[] names(String... header) {
+        String[] names = new String[header.length];
+        for (int i = 0; i < header.length; i++) {
+            names[i] = DraftEntryParser.normalize(header[i]);
+        }
+        return names;
+    }
+}
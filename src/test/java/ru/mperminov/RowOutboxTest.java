@@ -0,0 +1,88 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowOutboxTest {
+
+    @Test
+    void matchesNumbersAsSheetsStoresThem() {
+        assertTrue(RowOutbox.sameCell(new BigDecimal("1234.5"), "1 234,5"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("1234.5"), "1,234.5"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("7"), "007"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("0.15"), "15%"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("-3"), " -3 "));
+        assertFalse(RowOutbox.sameCell(new BigDecimal("7"), "8"));
+        assertFalse(RowOutbox.sameCell(new BigDecimal("7"), "семь"));
+    }
+
+    @Test
+    void matchesDatesAndTimesAsSerialNumbers() {
+        assertTrue(RowOutbox.sameCell(new BigDecimal("45292"), "01.01.2024"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("45292"), "2024-01-01"));
+        assertTrue(RowOutbox.sameCell(new BigDecimal("45323"), "2/1/2024")); // February 1st, US order
+        assertTrue(RowOutbox.sameCell(new BigDecimal("45323"), "01.02.2024"));
+        assertTrue(RowOutbox.sameCell(45292.5, "01.01.2024 12:00"));
+        assertTrue(RowOutbox.sameCell(0.3125, "7:30"));
+        assertFalse(RowOutbox.sameCell(new BigDecimal("45292"), "02.01.2024"));
+        assertFalse(RowOutbox.sameCell(45292.5, "01.01.2024 12:00:01"));
+    }
+
+    @Test
+    void matchesTextAndBooleans() {
+        assertTrue(RowOutbox.sameCell("007", "'007"));
+        assertTrue(RowOutbox.sameCell("Иван", " Иван "));
+        assertTrue(RowOutbox.sameCell(Boolean.TRUE, "ИСТИНА"));
+        assertTrue(RowOutbox.sameCell(Boolean.FALSE, "false"));
+        assertTrue(RowOutbox.sameCell(null, ""));
+        assertFalse(RowOutbox.sameCell("Иван", "Пётр"));
+        assertFalse(RowOutbox.sameCell(Boolean.TRUE, "ЛОЖЬ"));
+    }
+
+    @Test
+    void comparesWholeRowsWithMissingTrailingCells() {
+        List<Object> stored = Arrays.asList("Иван", new BigDecimal("45292"));
+        assertTrue(RowOutbox.sameCells(stored, Arrays.asList("Иван", "01.01.2024", "", null)));
+        assertFalse(RowOutbox.sameCells(stored, Arrays.asList("Иван", "01.01.2024", "x")));
+    }
+
+    @Test
+    void ignoresRepeatedKeyAfterRowIsStoredAcrossRestarts() throws Exception {
+        Path directory = Files.createTempDirectory("outbox-test");
+        AtomicInteger appends = new AtomicInteger();
+        SheetAppendBatcher batcher = new SheetAppendBatcher(null, "spreadsheet", null, 1, 0, null) {
+            @Override
+            CompletableFuture<Integer> enqueue(String sheetName, List<Object> row) {
+                return CompletableFuture.completedFuture(appends.incrementAndGet() + 1);
+            }
+        };
+        List<Object> row = Arrays.asList("Иван", "01.01.2024");
+
+        RowOutbox outbox = new RowOutbox(directory, batcher, null, new BotMetrics());
+        CountDownLatch stored = new CountDownLatch(1);
+        outbox.open((entry, rowNumber, error) -> stored.countDown());
+        assertTrue(outbox.enqueue("1:10", 1, 10, "Лист1", row, -1));
+        assertTrue(stored.await(5, TimeUnit.SECONDS));
+        assertFalse(outbox.enqueue("1:10", 1, 10, "Лист1", row, -1));
+        outbox.close();
+
+        RowOutbox reopened = new RowOutbox(directory, batcher, null, new BotMetrics());
+        assertEquals(0, reopened.open((entry, rowNumber, error) -> { }));
+        assertFalse(reopened.enqueue("1:10", 1, 10, "Лист1", row, -1));
+        reopened.close();
+        assertEquals(1, appends.get());
+    }
+}
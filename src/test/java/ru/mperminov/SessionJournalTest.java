@@ -0,0 +1,232 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes journals, damages the files the way a crash or an interrupted compaction would, and opens them again.
+ * Segments are built by hand where a test needs records the journal itself never writes.
+ */
+class SessionJournalTest {
+
+    private static final int MAGIC = 0x484C5331;
+    private static final int FILE_HEADER_BYTES = Integer.BYTES + Long.BYTES; // magic + generation
+    private static final int SEGMENT_BYTES = 4096;
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final byte TYPE_PUT = 1;
+
+    @Test
+    void restoresSessionsOnceAfterReopen() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(0, journal.open(MAX_AGE_MILLIS));
+        journal.recordPut(1, session("Выдача", "хлеб"));
+        journal.recordPut(2, session("Выдача", "вода"));
+        journal.recordPut(3, session("Учёт", "чай"));
+        journal.recordRemove(3);
+        journal.close(5, TimeUnit.SECONDS);
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(2, reopened.open(MAX_AGE_MILLIS));
+        UserState restored = reopened.restore(1);
+        assertNotNull(restored);
+        assertEquals(UserState.State.AWAITING_COLUMN_TO_EDIT, restored.getState());
+        assertEquals("Выдача", restored.getSheetNameForEditing());
+        assertEquals("хлеб", restored.getPendingEdits().get(0));
+        assertEquals(List.of("Выдача", "Учёт"), restored.getAvailableSheets());
+        assertNull(reopened.restore(1)); // Handed out once, the session store owns it now
+        assertNull(reopened.restore(3));
+        reopened.close(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void replaysUpToTornTailRecord() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        journal.open(MAX_AGE_MILLIS);
+        journal.recordPut(1, session("Выдача", "хлеб"));
+        journal.recordPut(2, session("Выдача", "вода"));
+        journal.close(5, TimeUnit.SECONDS);
+
+        // The process died while the last record was copied into the mapping: its second half never arrived
+        Path segment = directory.resolve("sessions.journal");
+        List<Integer> offsets = recordOffsets(segment);
+        assertEquals(2, offsets.size());
+        int last = offsets.get(1);
+        int end = recordsEnd(segment);
+        zero(segment, last + (end - last) / 2, end);
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(1, reopened.open(MAX_AGE_MILLIS));
+        assertNull(reopened.restore(2));
+        reopened.recordPut(3, session("Выдача", "чай"));
+        reopened.close(5, TimeUnit.SECONDS);
+
+        // New records went in where the torn one started, so they are replayed too
+        assertEquals(last, (int) recordOffsets(segment).get(1));
+        SessionJournal again = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(2, again.open(MAX_AGE_MILLIS));
+        assertEquals("хлеб", again.restore(1).getPendingEdits().get(0));
+        assertEquals("чай", again.restore(3).getPendingEdits().get(0));
+        again.close(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void stopsAtRecordChecksummedForAnotherGeneration() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        long now = System.currentTimeMillis();
+        // Without a snapshot the generation is 0; the second record is a leftover of generation 1
+        writeSegment(directory.resolve("sessions.journal"), 0,
+                record(0, 1, now, SessionJournal.encode(session("Выдача", "хлеб"))),
+                record(1, 2, now, SessionJournal.encode(session("Выдача", "вода"))),
+                record(0, 3, now, SessionJournal.encode(session("Выдача", "чай"))));
+
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(1, journal.open(MAX_AGE_MILLIS));
+        assertNotNull(journal.restore(1));
+        assertNull(journal.restore(2));
+        assertNull(journal.restore(3)); // Everything after the first bad record is dropped
+        journal.close(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void ignoresSegmentOfAnotherGeneration() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        long now = System.currentTimeMillis();
+        writeSegment(directory.resolve("sessions.journal"), 7,
+                record(7, 1, now, SessionJournal.encode(session("Выдача", "хлеб"))));
+
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(0, journal.open(MAX_AGE_MILLIS));
+        journal.close(5, TimeUnit.SECONDS);
+        assertEquals(0L, headerGeneration(directory.resolve("sessions.journal"))); // Started over
+    }
+
+    @Test
+    void compactsIntoSnapshotAtThreeQuartersOfSegment() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        journal.open(MAX_AGE_MILLIS);
+        for (int i = 0; i < 200; i++) {
+            journal.recordPut(i % 5, session("Выдача", "значение " + i));
+        }
+        journal.close(5, TimeUnit.SECONDS);
+
+        Path segment = directory.resolve("sessions.journal");
+        Path snapshot = directory.resolve("sessions.snapshot");
+        assertTrue(Files.exists(snapshot));
+        assertFalse(Files.exists(directory.resolve("sessions.snapshot.tmp")));
+        assertEquals(SEGMENT_BYTES, (int) Files.size(segment));
+        long generation = headerGeneration(snapshot);
+        assertTrue(generation > 0, "no compaction happened");
+        assertEquals(generation, headerGeneration(segment));
+        assertTrue(recordsEnd(segment) <= SEGMENT_BYTES * 3 / 4, "segment filled past the compaction threshold");
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(5, reopened.open(MAX_AGE_MILLIS));
+        for (int chat = 0; chat < 5; chat++) {
+            assertEquals("значение " + (195 + chat), reopened.restore(chat).getPendingEdits().get(0));
+        }
+        reopened.close(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void decodesDormantSessionsOnlyWhenRestored() throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        long now = System.currentTimeMillis();
+        // Chat 2 holds bytes no version could decode; opening must not touch them
+        writeSegment(directory.resolve("sessions.journal"), 0,
+                record(0, 1, now, SessionJournal.encode(session("Выдача", "хлеб"))),
+                record(0, 2, now, new byte[]{100}),
+                record(0, 3, now, SessionJournal.encode(session("Выдача", "чай"))));
+
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_BYTES);
+        assertEquals(3, journal.open(MAX_AGE_MILLIS));
+        assertEquals("хлеб", journal.restore(1).getPendingEdits().get(0));
+        assertThrows(RuntimeException.class, () -> journal.restore(2));
+        journal.recordPut(3, session("Выдача", "кофе")); // A chat that is active again drops its dormant copy
+        assertNull(journal.restore(3));
+        journal.close(5, TimeUnit.SECONDS);
+    }
+
+    private static UserState session(String sheetName, String value) {
+        UserState state = new UserState(UserState.State.AWAITING_COLUMN_TO_EDIT, List.of("Выдача", "Учёт"));
+        state.setSheetNameForEditing(sheetName);
+        state.setTemplate(SheetTemplate.of(sheetName, List.of("Что", "Кому"), List.of("", "")));
+        state.setPendingEdit(0, value);
+        return state;
+    }
+
+    private static byte[] record(long generation, long chatId, long timestamp, byte[] payload) {
+        ByteBuffer fixed = ByteBuffer.allocate(Long.BYTES * 3 + 1);
+        fixed.putLong(generation).putLong(chatId).putLong(timestamp).put(TYPE_PUT);
+        CRC32 crc = new CRC32();
+        crc.update(fixed.array());
+        crc.update(payload);
+        int bodyLength = Long.BYTES + Long.BYTES + 1 + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES * 2 + bodyLength);
+        record.putInt(bodyLength).putInt((int) crc.getValue());
+        record.putLong(chatId).putLong(timestamp).put(TYPE_PUT).put(payload);
+        return record.array();
+    }
+
+    private static void writeSegment(Path segment, long generation, byte[]... records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_BYTES);
+        buffer.putInt(MAGIC).putLong(generation);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        Files.write(segment, buffer.array());
+    }
+
+    private static long headerGeneration(Path file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file)).getLong(Integer.BYTES);
+    }
+
+    /**
+     * Offsets of the records in the segment, following the length fields up to the first zero one.
+     */
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = FILE_HEADER_BYTES;
+        int length;
+        while (offset + Integer.BYTES <= buffer.limit() && (length = buffer.getInt(offset)) > 0) {
+            offsets.add(offset);
+            offset += Integer.BYTES * 2 + length;
+        }
+        return offsets;
+    }
+
+    private static int recordsEnd(Path segment) throws IOException {
+        List<Integer> offsets = recordOffsets(segment);
+        if (offsets.isEmpty()) {
+            return FILE_HEADER_BYTES;
+        }
+        int last = offsets.get(offsets.size() - 1);
+        return last + Integer.BYTES * 2 + ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(last);
+    }
+
+    private static void zero(Path file, int from, int to) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(to - from), from);
+        }
+    }
+}
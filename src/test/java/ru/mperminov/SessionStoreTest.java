@@ -0,0 +1,159 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionStoreTest {
+
+    private static final long NO_EXPIRY_MINUTES = 60;
+
+    @Test
+    void findsRestOfProbeChainAfterDeletingFromItsMiddle() {
+        SessionStore store = new SessionStore(8, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        List<Long> chain = keysWithHome(3, 16, 4); // Same home slot, so they sit in one cluster
+        for (long chatId : chain) {
+            store.put(chatId, session());
+        }
+        store.remove(chain.get(1));
+        assertNull(store.get(chain.get(1)));
+        assertTrue(store.get(chain.get(0)) != null);
+        assertTrue(store.get(chain.get(2)) != null, "entry behind the gap was not shifted back");
+        assertTrue(store.get(chain.get(3)) != null, "entry behind the gap was not shifted back");
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    void probesAcrossTheEndOfTheTable() {
+        SessionStore store = new SessionStore(8, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        List<Long> last = keysWithHome(15, 16, 3); // Home in the last slot, the cluster continues at slot 0
+        List<Long> first = keysWithHome(0, 16, 1); // Home in slot 0, pushed behind the wrapped ones
+        for (long chatId : last) {
+            store.put(chatId, session());
+        }
+        store.put(first.get(0), session());
+        store.remove(last.get(0));
+        store.remove(last.get(2));
+        assertTrue(store.get(last.get(1)) != null);
+        assertTrue(store.get(first.get(0)) != null, "entry homed at slot 0 lost after a wrapped delete");
+        assertNull(store.get(last.get(0)));
+        assertNull(store.get(last.get(2)));
+    }
+
+    @Test
+    void agreesWithMapUnderRandomChurn() {
+        SessionStore store = new SessionStore(64, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        Map<Long, UserState> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            long chatId = random.nextInt(60); // Fewer keys than capacity, nothing is evicted
+            if (random.nextInt(3) == 0) {
+                store.remove(chatId);
+                expected.remove(chatId);
+            } else {
+                UserState state = session();
+                store.put(chatId, state);
+                expected.put(chatId, state);
+            }
+        }
+        assertEquals(expected.size(), store.size());
+        for (long chatId = 0; chatId < 60; chatId++) {
+            assertSame(expected.get(chatId), store.get(chatId));
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWhenFull() {
+        SessionStore store = new SessionStore(3, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        List<Long> evicted = new ArrayList<>();
+        store.setEvictionListener(evicted::add);
+        store.put(1, session());
+        store.put(2, session());
+        store.put(3, session());
+        store.get(1); // 2 is now the least recently used
+        store.put(4, session());
+        assertEquals(List.of(2L), evicted);
+        assertNull(store.get(2));
+        store.put(5, session()); // 3 is next, 1 was used after it
+        assertEquals(List.of(2L, 3L), evicted);
+        assertEquals(3, store.size());
+        assertEquals(2L, store.evictionCount());
+        assertTrue(store.get(1) != null && store.get(4) != null && store.get(5) != null);
+    }
+
+    @Test
+    void expiresIdleSessions() throws InterruptedException {
+        SessionStore store = new SessionStore(8, 50, TimeUnit.MILLISECONDS);
+        List<Long> evicted = new ArrayList<>();
+        store.setEvictionListener(evicted::add);
+        store.put(1, session());
+        store.put(2, session());
+        store.put(3, session());
+        Thread.sleep(100);
+        store.put(4, session());
+        assertNull(store.get(1)); // Expired on access
+        assertEquals(List.of(1L), evicted);
+        assertEquals(2, store.evictExpired()); // 2 and 3 from the LRU tail, 4 is fresh
+        assertEquals(List.of(1L, 2L, 3L), evicted);
+        assertEquals(1, store.size());
+        assertTrue(store.get(4) != null);
+    }
+
+    @Test
+    void notifiesOnlyForEvictionsNotRemovals() {
+        SessionStore store = new SessionStore(2, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        List<Long> evicted = new ArrayList<>();
+        store.setEvictionListener(evicted::add);
+        store.put(1, session());
+        store.remove(1);
+        store.put(2, session());
+        store.put(3, session());
+        store.put(4, session());
+        assertEquals(List.of(2L), evicted);
+        assertEquals(1L, store.evictionCount());
+    }
+
+    @Test
+    void loadsMissingSessionsOnce() {
+        SessionStore store = new SessionStore(2, NO_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        UserState replayed = session();
+        List<Long> loads = new ArrayList<>();
+        store.setMissLoader(chatId -> {
+            loads.add(chatId);
+            return chatId == 7 ? replayed : null;
+        });
+        assertSame(replayed, store.get(7));
+        assertSame(replayed, store.get(7));
+        assertNull(store.get(8));
+        assertEquals(List.of(7L, 8L), loads);
+        assertEquals(1, store.size());
+    }
+
+    private static UserState session() {
+        return new UserState(UserState.State.IDLE, List.of());
+    }
+
+    /**
+     * Chat ids whose home slot in a table of {@code tableSize} slots is {@code slot}, with the hash of the store.
+     */
+    private static List<Long> keysWithHome(int slot, int tableSize, int count) {
+        List<Long> keys = new ArrayList<>(count);
+        for (long chatId = 1; keys.size() < count; chatId++) {
+            long h = chatId * 0x9E3779B97F4A7C15L;
+            if (((int) (h ^ (h >>> 32)) & (tableSize - 1)) == slot) {
+                keys.add(chatId);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SheetRowImporterTest {
+
+    @Test
+    void matchesHeadersIgnoringCaseSpacesAndYo() {
+        List<String> fileHeader = List.of("Ф.И.О.", "  Дата   выдачи ", "Ещё", "ещё", "", "Лишний");
+        List<Object> sheetHeader = List.of("Дата выдачи", "ЕЩЕ", "ф.и.о.");
+        int[] target = SheetRowImporter.mapColumns(fileHeader, sheetHeader);
+        assertEquals(List.of(2, 0, 1, -1, -1, -1), boxed(target)); // A sheet column is matched once
+    }
+
+    @Test
+    void normalizesHeaders() {
+        assertEquals("еще полет", SheetRowImporter.normalizeHeader(" ЕЩЁ\t ПОЛЁТ "));
+        assertEquals("", SheetRowImporter.normalizeHeader(null));
+    }
+
+    @Test
+    void buildsSheetRowsAndEscapesFormulas() {
+        int[] target = {1, -1, 0};
+        assertEquals(Arrays.asList("x", "'=1+1", ""), SheetRowImporter.toSheetRow(List.of("=1+1", "лишнее", " x "), target, 3));
+        assertNull(SheetRowImporter.toSheetRow(List.of(" ", "лишнее", ""), target, 3));
+    }
+
+    private static List<Integer> boxed(int[] values) {
+        return Arrays.stream(values).boxed().collect(Collectors.toList());
+    }
+}
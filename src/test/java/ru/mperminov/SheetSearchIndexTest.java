@@ -0,0 +1,90 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SheetSearchIndexTest {
+
+    @Test
+    void foldsYoAndLatinLookalikesInCyrillicWords() {
+        assertEquals("еж", SheetSearchIndex.foldCyrillic("ёж"));
+        assertEquals("иванов", SheetSearchIndex.foldCyrillic("ивaнoв")); // Latin a and o
+        assertEquals("poxy", SheetSearchIndex.foldCyrillic("poxy")); // No Cyrillic, left alone
+    }
+
+    @Test
+    void splitsAndNormalizesTokens() {
+        assertEquals(List.of("иванов", "иван"), SheetSearchIndex.tokens("ИВАНОВ, Иван"));
+        assertEquals(List.of("7", "900", "123", "45", "67", "79001234567"), SheetSearchIndex.tokens("+7 (900) 123-45-67"));
+        assertEquals(List.of("12", "3"), SheetSearchIndex.tokens("12.3")); // Too few digits to join
+        assertEquals(List.of(), SheetSearchIndex.tokens(" ,. "));
+    }
+
+    @Test
+    void findsRowsByWordPrefixesNewestFirst() {
+        SheetSearchIndex index = new SheetSearchIndex();
+        index.onLoaded("Лист", List.of(row("Иванов Иван"), row("Петров"), row("Иванова Мария")), 2);
+        assertEquals(List.of(4, 2), index.search("Лист", "иван", 10));
+        assertEquals(List.of(4), index.search("Лист", "Ивaнова мар", 10)); // Latin a
+        assertEquals(List.of(4), index.search("Лист", "иван", 1));
+        assertEquals(List.of(), index.search("Лист", "сидоров", 10));
+    }
+
+    @Test
+    void followsAppendsAndPrunes() {
+        SheetSearchIndex index = new SheetSearchIndex();
+        index.onLoaded("Лист", List.of(row("Иванов"), row("Петров")), 2);
+        index.onAppended("Лист", List.of(row("Иванова")), 4, 3);
+        assertEquals(List.of(4), index.search("Лист", "иван", 10));
+        assertEquals(3, index.liveStart("Лист"));
+        index.onDropped("Лист");
+        assertFalse(index.isIndexed("Лист"));
+    }
+
+    @Test
+    void archivesRowsInWindowsPastTheGrid() throws Exception {
+        List<List<Object>> sheet = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            sheet.add(i == 7 ? List.of() : row("Иванов " + (i + 2)));
+        }
+        SheetSearchIndex index = new SheetSearchIndex();
+        // The grid size is older than the last five rows
+        index.extendArchive("Лист", source(sheet), 21, Integer.MAX_VALUE, 4);
+        assertEquals(26, index.archiveEnd("Лист"));
+        assertFalse(index.isArchiveBehind("Лист", 21, Integer.MAX_VALUE));
+        assertTrue(index.isArchiveBehind("Лист", 22, Integer.MAX_VALUE));
+        assertEquals(List.of(26), index.searchArchive("Лист", "иванов 26", 10, Integer.MAX_VALUE));
+        assertEquals(List.of(11, 10, 8), index.searchArchive("Лист", "иванов", 3, 12)); // Row 9 is blank
+
+        sheet.add(row("Петров"));
+        index.extendArchive("Лист", source(sheet), 22, Integer.MAX_VALUE, 4);
+        assertEquals(List.of(27), index.searchArchive("Лист", "петров", 10, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void matchesRowsReadAgain() {
+        assertTrue(SheetSearchIndex.matches(List.of("Иванова Мария", "+7 900 123-45-67"), "иван 79001234567"));
+        assertFalse(SheetSearchIndex.matches(List.of("Петров"), "иван"));
+        assertFalse(SheetSearchIndex.matches(List.of("Иванов"), ""));
+    }
+
+    private static List<Object> row(String cell) {
+        return List.of(cell);
+    }
+
+    private static SheetSearchIndex.RowSource source(List<List<Object>> sheet) {
+        return (sheetName, firstRow, lastRow) -> {
+            List<List<Object>> rows = new ArrayList<>();
+            for (int r = firstRow; r <= lastRow && r - 2 < sheet.size(); r++) {
+                rows.add(sheet.get(r - 2));
+            }
+            return new SheetTailReader.TailWindow(List.of("ФИО"), SheetTailReader.trimTrailingBlankRows(rows), firstRow);
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package ru.mperminov;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how many bytes each Sheets call of the bot costs against {@link FakeSheetsTransport}, with and without the
+ * fields masks of {@link SheetsRequests}: a masked call must stay within its budget and the mask, and gzip for the
+ * larger reads, must make the response smaller.
+ */
+class SheetsRequestsTest {
+
+    private static final String SPREADSHEET_ID = "payload-check";
+    private static final int SHEETS = 5;
+    private static final int ROWS = 500;
+    private static final int COLUMNS = 8;
+    private static final int TAIL_ROWS = 20;
+
+    private final FakeSheetsTransport transport = new FakeSheetsTransport(SHEETS, ROWS, COLUMNS, 0, 0, 0);
+    private final Sheets sheets = SheetsRequests.newService(transport, null);
+    private final String sheet = SheetTailReader.quoteSheetName(transport.getSheetNames().get(0));
+    private final String lastColumn = SheetTailReader.columnLetters(COLUMNS);
+
+    @Test
+    void spreadsheetMetadataFitsBudget() throws IOException {
+        assertWithinBudget(1024, false,
+                sheets.spreadsheets().get(SPREADSHEET_ID),
+                SheetsRequests.spreadsheet(sheets, SPREADSHEET_ID));
+    }
+
+    @Test
+    void headerBatchGetFitsBudget() throws IOException {
+        List<String> headerRanges = new ArrayList<>();
+        for (String name : transport.getSheetNames()) {
+            headerRanges.add(SheetTailReader.quoteSheetName(name) + "!A1:" + lastColumn + "1");
+        }
+        assertWithinBudget(1024, false,
+                sheets.spreadsheets().values().batchGet(SPREADSHEET_ID).setRanges(headerRanges),
+                SheetsRequests.batchValues(sheets, SPREADSHEET_ID, headerRanges));
+    }
+
+    @Test
+    void tailGetIsCompressedAndFitsBudget() throws IOException {
+        String tailRange = sheet + "!A" + (ROWS + 2 - TAIL_ROWS) + ":" + lastColumn;
+        assertWithinBudget(2048, true,
+                sheets.spreadsheets().values().get(SPREADSHEET_ID, tailRange),
+                SheetsRequests.values(sheets, SPREADSHEET_ID, tailRange));
+    }
+
+    @Test
+    void appendFitsBudget() throws IOException {
+        List<List<Object>> row = List.of(new ArrayList<>(List.of("01.05.2025", "проверка")));
+        assertWithinBudget(256, false,
+                sheets.spreadsheets().values().append(SPREADSHEET_ID, sheet, new ValueRange().setValues(row))
+                        .setValueInputOption("USER_ENTERED"),
+                SheetsRequests.append(sheets, SPREADSHEET_ID, sheet, row));
+    }
+
+    /**
+     * Runs the call once without and once with the mask and compares the response sizes.
+     *
+     * @param expectGzip whether the masked response is big enough that compression must make it smaller
+     */
+    private void assertWithinBudget(long budgetBytes, boolean expectGzip,
+                                    AbstractGoogleClientRequest<?> plain, AbstractGoogleClientRequest<?> masked)
+            throws IOException {
+        long plainRaw = transport.getUncompressedResponseBytes();
+        plain.execute();
+        plainRaw = transport.getUncompressedResponseBytes() - plainRaw;
+
+        long maskedRaw = transport.getUncompressedResponseBytes();
+        long maskedWire = transport.getResponseBytes();
+        masked.execute();
+        maskedRaw = transport.getUncompressedResponseBytes() - maskedRaw;
+        maskedWire = transport.getResponseBytes() - maskedWire;
+
+        assertTrue(maskedWire <= budgetBytes, maskedWire + " bytes, budget " + budgetBytes);
+        assertTrue(maskedRaw < plainRaw, "fields mask does not shrink the response (" + maskedRaw + " >= " + plainRaw + ")");
+        if (expectGzip) {
+            assertTrue(maskedWire < maskedRaw, "response is not compressed");
+        }
+    }
+}
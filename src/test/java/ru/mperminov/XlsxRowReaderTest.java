@@ -0,0 +1,88 @@
+package ru.mperminov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The workbook is assembled from the XML parts below, as Excel writes them but with only what the reader looks at.
+ */
+class XlsxRowReaderTest {
+
+    private static final String WORKBOOK = "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\""
+            + " xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+            + "<sheets><sheet name=\"Выдача\" sheetId=\"1\" r:id=\"rId3\"/></sheets></workbook>";
+    private static final String RELATIONSHIPS = "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+            + "<Relationship Id=\"rId3\" Type=\"worksheet\" Target=\"worksheets/data.xml\"/></Relationships>";
+    private static final String SHARED_STRINGS = "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+            + "<si><t>Имя</t></si>"
+            + "<si><r><t xml:space=\"preserve\">Дата </t></r><r><rPr><b/></rPr><t>выдачи</t></r></si>" // Rich text runs
+            + "<si><t>Иван</t><rPh sb=\"0\" eb=\"4\"><t>イワン</t></rPh></si>" // Phonetic hint, not part of the text
+            + "</sst>";
+    private static final String STYLES = "<styleSheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+            + "<numFmts><numFmt numFmtId=\"164\" formatCode=\"dd/mm/yyyy hh:mm\"/>"
+            + "<numFmt numFmtId=\"165\" formatCode=\"0.0&quot; day&quot;\"/></numFmts>"
+            + "<cellXfs><xf numFmtId=\"0\"/><xf numFmtId=\"14\"/><xf numFmtId=\"164\"/><xf numFmtId=\"165\"/></cellXfs>"
+            + "</styleSheet>";
+    private static final String SHEET = "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+            + "<sheetData>"
+            + "<row r=\"1\"><c r=\"A1\" t=\"s\"><v>0</v></c><c r=\"B1\" t=\"s\"><v>1</v></c>"
+            + "<c r=\"D1\" t=\"inlineStr\"><is><t>Кол-во</t></is></c></row>"
+            + "<row r=\"3\"><c r=\"A3\" t=\"s\"><v>2</v></c><c r=\"B3\" s=\"1\"><v>45292</v></c>"
+            + "<c r=\"D3\" s=\"3\"><v>2.5</v></c><c r=\"E3\" t=\"b\"><v>1</v></c></row>"
+            + "<row r=\"4\"><c r=\"B4\" s=\"2\"><v>45292.5</v></c></row>"
+            + "</sheetData></worksheet>";
+
+    @Test
+    void readsSharedStringsSparseCellsAndDates() throws Exception {
+        try (XlsxRowReader reader = new XlsxRowReader(workbook())) {
+            assertEquals(List.of("Имя", "Дата выдачи", "", "Кол-во"), reader.next());
+            assertEquals(1, reader.getLineNumber());
+            assertEquals(List.of("Иван", "01.01.2024", "", "2.5", "TRUE"), reader.next());
+            assertEquals(3, reader.getLineNumber()); // Row 2 is not in the file
+            assertEquals(List.of("", "01.01.2024 12:00"), reader.next());
+            assertEquals(4, reader.getLineNumber());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void convertsReferencesAndFormats() {
+        assertEquals(0, XlsxRowReader.columnIndex("A1"));
+        assertEquals(27, XlsxRowReader.columnIndex("AB12"));
+        assertEquals("30.12.1899", XlsxRowReader.formatDate("0"));
+        assertEquals("29.02.2024 06:00", XlsxRowReader.formatDate("45351.25"));
+        assertTrue(XlsxRowReader.isDateFormat("[$-419]d mmmm yyyy"));
+        assertFalse(XlsxRowReader.isDateFormat("0.00\" day\""));
+        assertFalse(XlsxRowReader.isDateFormat("[Red]0.00"));
+    }
+
+    private static Path workbook() throws IOException {
+        Path file = Files.createTempFile("import", ".xlsx");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            put(zip, "xl/workbook.xml", WORKBOOK);
+            put(zip, "xl/_rels/workbook.xml.rels", RELATIONSHIPS);
+            put(zip, "xl/sharedStrings.xml", SHARED_STRINGS);
+            put(zip, "xl/styles.xml", STYLES);
+            put(zip, "xl/worksheets/data.xml", SHEET);
+        }
+        return file;
+    }
+
+    private static void put(ZipOutputStream zip, String name, String xml) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}